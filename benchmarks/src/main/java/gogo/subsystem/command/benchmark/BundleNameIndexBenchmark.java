@@ -0,0 +1,79 @@
+package gogo.subsystem.command.benchmark;
+
+import gogo.subsystem.command.BundleNameIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link BundleNameIndex#find(String)} with lower casing and searching the names
+ * of every bundle, as <code>sub:lb</code> did, for a framework with thousands of bundles.
+ * <p/>
+ * The setup verifies both return the same bundles before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleNameIndexBenchmark {
+    private static final String[] WORDS = {
+            "org", "apache", "aries", "subsystem", "felix", "eventadmin", "acme", "core", "api", "impl"
+    };
+
+    @Param({"acme.core.impl17", "EventAdmin", "api", "ap"})
+    public String pattern;
+
+    @Param({"5000"})
+    public int bundles;
+
+    private BundleNameIndex m_index;
+    private String[][] m_names;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(17);
+        m_index = new BundleNameIndex();
+        m_names = new String[bundles][];
+        for (int i = 0; i < bundles; i++) {
+            String symbolicName = WORDS[random.nextInt(WORDS.length)] + "." + WORDS[random.nextInt(WORDS.length)]
+                    + "." + WORDS[random.nextInt(WORDS.length)] + i;
+            String name = random.nextBoolean() ? null
+                    : WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+            m_names[i] = new String[]{symbolicName, name};
+            m_index.put(i, symbolicName, name);
+        }
+        List<Long> expected = scan();
+        long[] found = m_index.find(pattern);
+        boolean same = found.length == expected.size();
+        for (int i = 0; same && i < found.length; i++) {
+            same = found[i] == expected.get(i);
+        }
+        if (!same) {
+            throw new IllegalStateException("Index and scan differ for '" + pattern + "'");
+        }
+    }
+
+    @Benchmark
+    public List<Long> scan() {
+        List<Long> found = new ArrayList<Long>();
+        for (int i = 0; i < m_names.length; i++) {
+            for (String name : m_names[i]) {
+                if (name != null && name.toLowerCase().contains(pattern.toLowerCase())) {
+                    found.add((long) i);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public long[] index() {
+        return m_index.find(pattern);
+    }
+}
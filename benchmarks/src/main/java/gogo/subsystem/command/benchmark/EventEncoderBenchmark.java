@@ -0,0 +1,142 @@
+package gogo.subsystem.command.benchmark;
+
+import bundle_2.EventDecoder;
+import bundle_2.EventDictionary;
+import bundle_2.EventEncoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the binary event records of bundle 2 against the string dump it printed
+ * before, for a batch of service events as delivered by EventAdmin.
+ * <p/>
+ * Run with the GC profiler to compare the allocation per event, e.g.
+ * <code>java -jar benchmarks.jar EventEncoder -prof gc</code>; the
+ * <code>gc.alloc.rate.norm</code> of <code>encode</code> should stay near the size of the
+ * property name array per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventEncoderBenchmark {
+    private static final int BATCH = 16;
+
+    private Event[] m_events;
+    private EventEncoder m_encoder;
+    private EventDecoder m_decoder;
+    private StringBuilder m_text;
+
+    @Setup
+    public void setUp() {
+        m_events = new Event[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            ServiceReference<?> reference = new Reference(100 + i);
+            ServiceEvent serviceEvent = new ServiceEvent(ServiceEvent.REGISTERED, reference);
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put(EventConstants.EVENT, serviceEvent);
+            props.put(EventConstants.SERVICE, reference);
+            props.put(EventConstants.SERVICE_ID, reference.getProperty(Constants.SERVICE_ID));
+            props.put(EventConstants.SERVICE_OBJECTCLASS, reference.getProperty(Constants.OBJECTCLASS));
+            props.put(Constants.SERVICE_PID, "bundle_1.TestService1." + i);
+            m_events[i] = new Event("org/osgi/framework/ServiceEvent/REGISTERED", props);
+        }
+        EventDictionary dictionary = new EventDictionary();
+        m_encoder = new EventEncoder(dictionary, 64 * 1024);
+        m_decoder = new EventDecoder(dictionary);
+        m_text = new StringBuilder();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void stringDump(Blackhole bh) {
+        for (Event event : m_events) {
+            bh.consume(eventDetails(event));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encode() {
+        m_encoder.reset();
+        for (Event event : m_events) {
+            m_encoder.encode(event);
+        }
+        return m_encoder.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encodeAndRender() {
+        encode();
+        m_text.setLength(0);
+        m_decoder.renderAll(m_encoder.getBuffer(), m_encoder.size(), m_text);
+        return m_text.length();
+    }
+
+    /**
+     * The string dump of bundle 2 before the binary records, kept as the baseline.
+     */
+    private static String eventDetails(Event event) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Topic: ").append(event.getTopic()).append("\n");
+        String[] names = event.getPropertyNames();
+        for (String name : names) {
+            builder.append(name).append("=").append(event.getProperty(name)).append("\n");
+        }
+        return builder.toString();
+    }
+
+    private static class Reference implements ServiceReference<Object> {
+        private final Long m_id;
+        private final String[] m_objectClass = {"bundle_1.TestService1"};
+
+        Reference(long id) {
+            m_id = id;
+        }
+
+        public Object getProperty(String key) {
+            if (Constants.SERVICE_ID.equals(key)) {
+                return m_id;
+            }
+            return Constants.OBJECTCLASS.equals(key) ? m_objectClass : null;
+        }
+
+        public String[] getPropertyKeys() {
+            return new String[]{Constants.SERVICE_ID, Constants.OBJECTCLASS};
+        }
+
+        public Bundle getBundle() {
+            return null;
+        }
+
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        public boolean isAssignableTo(Bundle bundle, String className) {
+            return true;
+        }
+
+        public int compareTo(Object reference) {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + m_objectClass[0] + "]";
+        }
+    }
+}
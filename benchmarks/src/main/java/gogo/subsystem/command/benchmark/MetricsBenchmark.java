@@ -0,0 +1,62 @@
+package gogo.subsystem.command.benchmark;
+
+import gogo.subsystem.command.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a lifecycle latency and an event count in {@link Metrics}, single
+ * threaded and with four threads recording into the same subsystems, as the region
+ * listeners do when bundles of several subsystems change at once. Both should stay in
+ * the tens of nanoseconds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final int SUBSYSTEMS = 500;
+
+    private Metrics m_metrics;
+
+    @Setup
+    public void setUp() {
+        m_metrics = new Metrics();
+        for (int i = 0; i < SUBSYSTEMS; i++) {
+            m_metrics.record(i, Metrics.Operation.START, 1);
+            m_metrics.increment(i, Metrics.Counter.BUNDLE_EVENTS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        long m_next;
+        long m_latency = 12345;
+
+        long next() {
+            long id = m_next;
+            m_next = id + 1 == SUBSYSTEMS ? 0 : id + 1;
+            m_latency = m_latency * 31 % 100000007;
+            return id;
+        }
+    }
+
+    @Benchmark
+    public void record(Cursor cursor) {
+        m_metrics.record(cursor.next(), Metrics.Operation.START, cursor.m_latency);
+    }
+
+    @Benchmark
+    public void increment(Cursor cursor) {
+        m_metrics.increment(cursor.next(), Metrics.Counter.BUNDLE_EVENTS);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Cursor cursor) {
+        m_metrics.record(cursor.next(), Metrics.Operation.START, cursor.m_latency);
+    }
+}
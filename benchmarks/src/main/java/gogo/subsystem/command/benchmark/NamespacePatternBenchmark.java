@@ -0,0 +1,95 @@
+package gogo.subsystem.command.benchmark;
+
+import gogo.subsystem.command.NamespacePattern;
+import gogo.subsystem.command.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link NamespacePattern} with {@link Util#parseSubstring(String)} and
+ * {@link Util#compareSubstring(List, String)} over the namespaces of a subsystem with
+ * thousands of capabilities, as <code>sub:inspect</code> does for every command.
+ * <p/>
+ * The setup verifies both implementations agree on the whole corpus before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamespacePatternBenchmark {
+    private static final String[] NAMESPACES = {
+            "osgi.wiring.package", "osgi.wiring.bundle", "osgi.wiring.host", "osgi.identity",
+            "osgi.ee", "osgi.service", "osgi.extender", "osgi.contract", "osgi.native", "service",
+            "osgi.implementation", "osgi.serviceloader.registrar", "osgi.serviceloader.processor"
+    };
+
+    private static final String[] CHECKED_PATTERNS = {
+            "*", "service", "osgi.wiring.package", "osgi.wiring.*", "*.package", "osgi*package",
+            "osgi*wiring*package", "*wiring*", "*.*.*", "osgi.*.*.", "a\\*b", "", "o*o", "ab*b"
+    };
+
+    @Param({"osgi.wiring.package", "osgi.wiring.*", "*.package", "*", "osgi*wiring*package"})
+    public String pattern;
+
+    @Param({"5000"})
+    public int capabilities;
+
+    private String[] m_corpus;
+
+    @Setup
+    public void setup() {
+        List<String> corpus = new ArrayList<String>(capabilities);
+        for (int i = 0; i < capabilities; i++) {
+            if (i % 4 == 3) {
+                corpus.add("com.acme.capability" + i);
+            } else {
+                corpus.add(NAMESPACES[i % NAMESPACES.length]);
+            }
+        }
+        corpus.add("");
+        corpus.add("ab");
+        corpus.add("a*b");
+        corpus.add("o");
+        m_corpus = corpus.toArray(new String[corpus.size()]);
+
+        for (String p : CHECKED_PATTERNS) {
+            verify(p);
+        }
+        verify(pattern);
+    }
+
+    private void verify(String p) {
+        List<String> pieces = Util.parseSubstring(p);
+        NamespacePattern compiled = NamespacePattern.compile(p);
+        if (!Util.unparseSubstring(pieces).equals(compiled.toString())) {
+            throw new IllegalStateException("Pattern '" + p + "' renders as '" + compiled + "'");
+        }
+        for (String namespace : m_corpus) {
+            if (Util.compareSubstring(pieces, namespace) != compiled.matches(namespace)) {
+                throw new IllegalStateException("Pattern '" + p + "' differs on '" + namespace + "'");
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        List<String> pieces = Util.parseSubstring(pattern);
+        for (String namespace : m_corpus) {
+            bh.consume(Util.compareSubstring(pieces, namespace));
+        }
+    }
+
+    @Benchmark
+    public void compiled(Blackhole bh) {
+        NamespacePattern compiled = NamespacePattern.compile(pattern);
+        for (String namespace : m_corpus) {
+            bh.consume(compiled.matches(namespace));
+        }
+    }
+}
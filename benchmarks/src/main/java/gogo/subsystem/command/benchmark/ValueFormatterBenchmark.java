@@ -0,0 +1,87 @@
+package gogo.subsystem.command.benchmark;
+
+import gogo.subsystem.command.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures service property formatting as done by <code>sub:inspect ... service</code>
+ * against the former implementation sharing one synchronized <code>StringBuffer</code>.
+ * <p/>
+ * Run with increasing thread counts to compare scaling, e.g.
+ * <code>java -jar benchmarks.jar ValueFormatter -t 1</code>, then <code>-t 2</code>,
+ * <code>-t 4</code> and <code>-t 8</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValueFormatterBenchmark {
+    private static final Object[] VALUES = {
+            new String[]{"org.osgi.service.event.EventHandler", "org.osgi.service.cm.ManagedService"},
+            "org/osgi/framework/ServiceEvent/*",
+            Long.valueOf(42),
+            Boolean.TRUE,
+            new long[]{1, 2, 3, 5, 8, 13},
+            new Integer[]{Integer.valueOf(7), Integer.valueOf(11)}
+    };
+
+    @Benchmark
+    public void getValueString(Blackhole bh) {
+        for (Object value : VALUES) {
+            bh.consume(Util.getValueString(value));
+        }
+        bh.consume(Util.getUnderlineString(40));
+    }
+
+    @Benchmark
+    public void synchronizedStringBuffer(Blackhole bh) {
+        for (Object value : VALUES) {
+            bh.consume(LegacyFormatter.getValueString(value));
+        }
+        bh.consume(LegacyFormatter.getUnderlineString(40));
+    }
+
+    /**
+     * The formatter <code>Util</code> used before, kept as the baseline.
+     */
+    private static class LegacyFormatter {
+        private final static StringBuffer m_sb = new StringBuffer();
+
+        static String getUnderlineString(int len) {
+            synchronized (m_sb) {
+                m_sb.delete(0, m_sb.length());
+                for (int i = 0; i < len; i++) {
+                    m_sb.append('-');
+                }
+                return m_sb.toString();
+            }
+        }
+
+        static String getValueString(Object obj) {
+            synchronized (m_sb) {
+                if (obj instanceof String) {
+                    return (String) obj;
+                } else if (obj instanceof String[]) {
+                    String[] array = (String[]) obj;
+                    m_sb.delete(0, m_sb.length());
+                    for (int i = 0; i < array.length; i++) {
+                        if (i != 0) {
+                            m_sb.append(", ");
+                        }
+                        m_sb.append(array[i].toString());
+                    }
+                    return m_sb.toString();
+                } else if (obj == null) {
+                    return "null";
+                } else {
+                    return obj.toString();
+                }
+            }
+        }
+    }
+}
@@ -6,11 +6,16 @@ import org.osgi.framework.BundleContext;
 public class Activator implements BundleActivator {
 
     public void start(BundleContext bc) throws Exception {
-        bc.registerService(TestService1.class, new TestService1() {}, null);
+        LazyService.register(bc, TestService1.class, new LazyService<TestService1>() {
+            protected TestService1 create() {
+                System.out.println("Bundle 1 created TestService1");
+                return new TestService1() {};
+            }
+        }, null);
         System.out.println("Bundle 1 started");
     }
 
     public void stop(BundleContext bc) throws Exception {
         System.out.println("Bundle 1 stopped");
     }
-}
\ No newline at end of file
+}
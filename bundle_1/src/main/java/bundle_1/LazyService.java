@@ -0,0 +1,61 @@
+package bundle_1;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Dictionary;
+
+/**
+ * Registers a service whose implementation is created on the first
+ * <code>getService</code> instead of at bundle start.
+ * <p/>
+ * The framework caches the object per consuming bundle, the factory creates it once and
+ * hands the same instance to all bundles, as an eagerly registered service would.
+ *
+ * @param <S> the service type
+ */
+public abstract class LazyService<S> implements ServiceFactory<S> {
+    private volatile S m_service;
+
+    /**
+     * Registers a lazy service under the given type.
+     */
+    @SuppressWarnings("unchecked")
+    public static <S> ServiceRegistration<S> register(BundleContext bc, Class<S> type, LazyService<S> factory,
+                                                      Dictionary<String, ?> properties) {
+        // registered under the name of S, so the registration is one of S
+        return (ServiceRegistration<S>) bc.registerService(type.getName(), factory, properties);
+    }
+
+    /**
+     * Creates the service implementation, called once on first use.
+     */
+    protected abstract S create();
+
+    public S getService(Bundle bundle, ServiceRegistration<S> registration) {
+        S service = m_service;
+        if (service == null) {
+            synchronized (this) {
+                service = m_service;
+                if (service == null) {
+                    service = create();
+                    m_service = service;
+                }
+            }
+        }
+        return service;
+    }
+
+    public void ungetService(Bundle bundle, ServiceRegistration<S> registration, S service) {
+        // shared by all bundles, kept until the registration goes away
+    }
+
+    /**
+     * Returns whether the implementation has been created.
+     */
+    public boolean isCreated() {
+        return m_service != null;
+    }
+}
@@ -1,38 +1,95 @@
 package bundle_2;
 
+import event.batch.BatchEventHandler;
+import event.journal.EventJournal;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
-import org.osgi.service.event.EventHandler;
 
+import java.io.IOException;
 import java.util.Hashtable;
+import java.util.List;
 
-public class Activator implements BundleActivator, EventHandler {
+public class Activator implements BundleActivator, BatchEventHandler {
+    public static final String CAPACITY_PROPERTY = "bundle_2.queue.capacity";
+    public static final String OVERFLOW_PROPERTY = "bundle_2.queue.overflow";
+    public static final String PRINT_PROPERTY = "bundle_2.print";
+
+    private static final int RECORD_BUFFER_SIZE = 64 * 1024;
+
+    // used by the batch worker thread only
+    private final EventDictionary m_dictionary = new EventDictionary();
+    private final EventEncoder m_encoder = new EventEncoder(m_dictionary, RECORD_BUFFER_SIZE);
+    private final EventDecoder m_decoder = new EventDecoder(m_dictionary);
+    private final StringBuilder m_text = new StringBuilder();
+    private volatile boolean m_print;
+    private volatile EventJournal m_journal;
 
     public void start(BundleContext bc) throws Exception {
+        m_print = !"false".equalsIgnoreCase(bc.getProperty(PRINT_PROPERTY));
+        try {
+            m_journal = EventJournal.open(bc);
+        } catch (IOException e) {
+            System.err.println("Event journal is not available: " + e.getMessage());
+        }
+
         Hashtable props = new Hashtable();
         props.put(EventConstants.EVENT_TOPIC, "org/osgi/framework/ServiceEvent/*");
-        bc.registerService(EventHandler.class, this, props);
+        putProperty(props, BatchEventHandler.BATCH_CAPACITY, bc.getProperty(CAPACITY_PROPERTY));
+        putProperty(props, BatchEventHandler.BATCH_OVERFLOW, bc.getProperty(OVERFLOW_PROPERTY));
+        bc.registerService(BatchEventHandler.class, this, props);
 
         System.out.println("Bundle 2 started");
     }
 
     public void stop(BundleContext bc) throws Exception {
+        EventJournal journal = m_journal;
+        m_journal = null;
+        if (journal != null) {
+            journal.close();
+        }
         System.out.println("Bundle 2 stopped");
     }
 
-    public void handleEvent(Event event) {
-        System.out.println("Event received: " + eventDetails(event));
+    /**
+     * Appends a batch of events to the journal and, if printing is enabled, encodes them into
+     * binary records and prints their readable form with one console write. The journal is
+     * the durable record, the encoding only feeds the console.
+     */
+    public void handleEvents(List<Event> events) {
+        journal(events);
+        if (m_print) {
+            m_encoder.reset();
+            for (Event event : events) {
+                m_encoder.encode(event);
+            }
+            m_text.setLength(0);
+            m_decoder.renderAll(m_encoder.getBuffer(), m_encoder.size(), m_text);
+            System.out.print(m_text);
+        }
+    }
+
+    private void journal(List<Event> events) {
+        EventJournal journal = m_journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            for (Event event : events) {
+                if (!journal.append(event)) {
+                    System.err.println("Event not journaled: " + event.getTopic());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Event journal failed: " + e.getMessage());
+            m_journal = null;
+        }
     }
 
-    private String eventDetails(Event event) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("Topic: ").append(event.getTopic()).append("\n");
-        String[] names = event.getPropertyNames();
-        for (String name : names) {
-            builder.append(name).append("=").append(event.getProperty(name)).append("\n");
+    private static void putProperty(Hashtable props, String key, String value) {
+        if (value != null) {
+            props.put(key, value);
         }
-        return builder.toString();
     }
-}
\ No newline at end of file
+}
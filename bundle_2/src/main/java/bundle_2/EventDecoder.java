@@ -0,0 +1,46 @@
+package bundle_2;
+
+import event.journal.EventValues;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Renders the records of an {@link EventEncoder} in the readable form bundle 2 printed
+ * before, only when asked to. Service references, bundles and service events were
+ * encoded by ID and are rendered as such.
+ */
+public class EventDecoder {
+    private final EventDictionary m_dictionary;
+
+    public EventDecoder(EventDictionary dictionary) {
+        m_dictionary = dictionary;
+    }
+
+    /**
+     * Appends all records between index 0 and <code>size</code> of the buffer, without
+     * changing its position.
+     */
+    public void renderAll(ByteBuffer buffer, int size, StringBuilder out) {
+        int offset = 0;
+        while (offset < size) {
+            render(buffer, offset, out);
+            offset += buffer.getInt(offset);
+        }
+    }
+
+    /**
+     * Appends the record starting at an index of the buffer.
+     */
+    public void render(ByteBuffer buffer, int offset, StringBuilder out) {
+        int index = offset + 4;
+        out.append("Event received: Topic: ").append(m_dictionary.get(buffer.getChar(index))).append('\n');
+        int count = buffer.getChar(index + 2);
+        index += 4;
+        for (int i = 0; i < count; i++) {
+            out.append(m_dictionary.get(buffer.getChar(index))).append('=');
+            index = EventValues.render(buffer, index + 2, out);
+            out.append('\n');
+        }
+        out.append('\n');
+    }
+}
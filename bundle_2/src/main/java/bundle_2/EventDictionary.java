@@ -0,0 +1,42 @@
+package bundle_2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interned event topics and property keys, shared by an {@link EventEncoder} and its
+ * {@link EventDecoder}. Looking up a known string does not allocate.
+ * <p/>
+ * Not thread safe, encoder and decoder are confined to one thread.
+ */
+public class EventDictionary {
+    // ids are written as unsigned 16 bit values
+    private static final int MAX_SIZE = 0xFFFF;
+
+    private final Map<String, Integer> m_ids = new HashMap<String, Integer>();
+    private final List<String> m_strings = new ArrayList<String>();
+
+    public int intern(String s) {
+        Integer id = m_ids.get(s);
+        if (id != null) {
+            return id;
+        }
+        if (m_strings.size() == MAX_SIZE) {
+            throw new IllegalStateException("Event dictionary is full");
+        }
+        id = m_strings.size();
+        m_strings.add(s);
+        m_ids.put(s, id);
+        return id;
+    }
+
+    public String get(int id) {
+        return m_strings.get(id);
+    }
+
+    public int size() {
+        return m_strings.size();
+    }
+}
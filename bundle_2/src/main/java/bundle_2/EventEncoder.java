@@ -0,0 +1,86 @@
+package bundle_2;
+
+import event.journal.EventValues;
+import org.osgi.service.event.Event;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes events as compact binary records into a reusable direct buffer.
+ * <p/>
+ * A record is its length (int), the topic id (char), the number of properties (char)
+ * and per property the key id (char) and the value as written by {@link EventValues}.
+ * Topic and keys are interned in an {@link EventDictionary}. The only allocation left per
+ * event is the array returned by {@link Event#getPropertyNames()}.
+ */
+public class EventEncoder {
+    private final EventDictionary m_dictionary;
+    private ByteBuffer m_buffer;
+    private int m_count;
+
+    public EventEncoder(EventDictionary dictionary, int capacity) {
+        m_dictionary = dictionary;
+        m_buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Discards the encoded records, keeping the buffer.
+     */
+    public void reset() {
+        m_buffer.clear();
+        m_count = 0;
+    }
+
+    /**
+     * Appends the record of an event, growing the buffer if it is full.
+     */
+    public void encode(Event event) {
+        int start = m_buffer.position();
+        while (true) {
+            try {
+                write(event);
+                m_buffer.putInt(start, m_buffer.position() - start);
+                m_count++;
+                return;
+            } catch (BufferOverflowException e) {
+                m_buffer.position(start);
+                grow();
+            }
+        }
+    }
+
+    private void write(Event event) {
+        String[] names = event.getPropertyNames();
+        m_buffer.putInt(0);
+        m_buffer.putChar((char) m_dictionary.intern(event.getTopic()));
+        m_buffer.putChar((char) names.length);
+        for (String name : names) {
+            m_buffer.putChar((char) m_dictionary.intern(name));
+            EventValues.write(m_buffer, event.getProperty(name));
+        }
+    }
+
+    private void grow() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(m_buffer.capacity() * 2);
+        m_buffer.flip();
+        buffer.put(m_buffer);
+        m_buffer = buffer;
+    }
+
+    /**
+     * Returns the buffer holding the records from index 0 to {@link #size()}. It is
+     * replaced when the encoder grows.
+     */
+    public ByteBuffer getBuffer() {
+        return m_buffer;
+    }
+
+    public int size() {
+        return m_buffer.position();
+    }
+
+    public int getCount() {
+        return m_count;
+    }
+}
@@ -0,0 +1,17 @@
+package event.batch;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+public class Activator implements BundleActivator {
+    private BatchAdapter m_adapter;
+
+    public void start(BundleContext bc) throws Exception {
+        m_adapter = new BatchAdapter(bc);
+        m_adapter.open();
+    }
+
+    public void stop(BundleContext bc) throws Exception {
+        m_adapter.close();
+    }
+}
@@ -0,0 +1,56 @@
+package event.batch;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Subscribes every {@link BatchEventHandler} to EventAdmin as a normal event handler,
+ * for as long as the batch handler is registered.
+ */
+public class BatchAdapter extends ServiceTracker<BatchEventHandler, Batcher> {
+    public BatchAdapter(BundleContext bc) {
+        super(bc, BatchEventHandler.class, null);
+    }
+
+    @Override
+    public Batcher addingService(ServiceReference<BatchEventHandler> reference) {
+        BatchEventHandler handler = context.getService(reference);
+        if (handler == null) {
+            return null;
+        }
+        try {
+            Batcher batcher = new Batcher(reference, handler);
+            batcher.open(context, reference);
+            return batcher;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring batch event handler " + reference + ": " + e.getMessage());
+            context.ungetService(reference);
+            return null;
+        }
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<BatchEventHandler> reference, Batcher batcher) {
+        try {
+            batcher.modified(reference);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid batch event handler settings " + reference + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void removedService(ServiceReference<BatchEventHandler> reference, Batcher batcher) {
+        try {
+            batcher.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        EventRing<?> queue = batcher.getQueue();
+        System.out.println("Batch event handler " + reference.getProperty(Constants.SERVICE_ID)
+                + " removed, events dropped: " + queue.getDropped()
+                + ", max queue depth: " + queue.getMaxDepth() + "/" + queue.getCapacity());
+        context.ungetService(reference);
+    }
+}
@@ -0,0 +1,70 @@
+package event.batch;
+
+import org.osgi.service.event.Event;
+
+import java.util.List;
+
+/**
+ * Receives events in batches instead of one call per event.
+ * <p/>
+ * A batch handler is registered with <code>event.topics</code> and optionally
+ * <code>event.filter</code> like an <code>EventHandler</code>. The batch adapter subscribes
+ * to EventAdmin on its behalf and delivers a batch when {@link #BATCH_SIZE} events are
+ * collected or {@link #BATCH_LATENCY} milliseconds after the first event of the batch,
+ * whichever comes first. Batches are delivered from a thread of the adapter, one at a time
+ * per handler, in the order the events were received.
+ */
+public interface BatchEventHandler {
+    /**
+     * Service property with the maximum number of events in a batch, 100 by default.
+     */
+    String BATCH_SIZE = "batch.size";
+
+    /**
+     * Service property with the maximum time in milliseconds an event waits for its batch
+     * to be delivered, 100 by default.
+     */
+    String BATCH_LATENCY = "batch.latency";
+
+    /**
+     * Service property with the number of events queued for delivery, 1024 by default.
+     */
+    String BATCH_CAPACITY = "batch.capacity";
+
+    /**
+     * Service property with the policy applied when the queue is full: <code>block</code>
+     * (the default), <code>drop-oldest</code> or <code>drop-newest</code>.
+     */
+    String BATCH_OVERFLOW = "batch.overflow";
+
+    /**
+     * Property of the event handler registered on behalf of a batch handler with the current
+     * number of queued events. The queue properties are updated after a batch is delivered
+     * when the dropped events or the maximum depth changed.
+     */
+    String QUEUE_DEPTH = "batch.queue.depth";
+
+    /**
+     * Property of the event handler registered on behalf of a batch handler with the maximum
+     * number of queued events so far.
+     */
+    String QUEUE_MAX_DEPTH = "batch.queue.maxDepth";
+
+    /**
+     * Property of the event handler registered on behalf of a batch handler with the number
+     * of events dropped so far.
+     */
+    String QUEUE_DROPPED = "batch.queue.dropped";
+
+    /**
+     * Property of the event handler registered on behalf of a batch handler with the
+     * <code>service.id</code> of the batch handler.
+     */
+    String HANDLER_ID = "batch.handler.id";
+
+    /**
+     * Called with the events of a batch, which is never empty. The list is only valid
+     * during the call.
+     */
+    void handleEvents(List<Event> events);
+}
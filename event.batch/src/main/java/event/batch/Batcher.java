@@ -0,0 +1,173 @@
+package event.batch;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventAdmin subscription of one batch handler. Received events are queued in an
+ * {@link EventRing} and delivered in batches by a worker thread. The queue statistics are
+ * published as properties of the subscription, so an overload is visible while it happens.
+ */
+class Batcher implements EventHandler, Runnable {
+    private static final int DEFAULT_SIZE = 100;
+    private static final long DEFAULT_LATENCY = 100;
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final BatchEventHandler m_handler;
+    private final EventRing<Event> m_queue;
+    private final Thread m_worker;
+    private volatile int m_size;
+    private volatile long m_latencyNanos;
+    private ServiceRegistration<EventHandler> m_registration;
+    private ServiceReference<BatchEventHandler> m_reference;
+    // the statistics last published, used by the worker thread only
+    private long m_publishedDropped;
+    private long m_publishedMaxDepth;
+
+    Batcher(ServiceReference<BatchEventHandler> reference, BatchEventHandler handler) {
+        m_handler = handler;
+        Object overflow = reference.getProperty(BatchEventHandler.BATCH_OVERFLOW);
+        m_queue = new EventRing<Event>(
+                getInt(reference, BatchEventHandler.BATCH_CAPACITY, DEFAULT_CAPACITY),
+                overflow != null ? EventRing.Overflow.parse(overflow.toString()) : EventRing.Overflow.BLOCK);
+        configure(reference);
+        m_worker = new Thread(this, "event-batch-" + reference.getProperty(Constants.SERVICE_ID));
+        m_worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the worker and subscribes to the topics of the handler.
+     */
+    void open(BundleContext bc, ServiceReference<BatchEventHandler> reference) {
+        synchronized (this) {
+            m_reference = reference;
+            m_registration = bc.registerService(EventHandler.class, this, getProperties());
+        }
+        m_worker.start();
+    }
+
+    /**
+     * Applies changed window settings and subscription properties. The capacity and the
+     * overflow policy of the queue are fixed when the handler is registered.
+     */
+    void modified(ServiceReference<BatchEventHandler> reference) {
+        configure(reference);
+        synchronized (this) {
+            m_reference = reference;
+            m_registration.setProperties(getProperties());
+        }
+    }
+
+    /**
+     * Unsubscribes and waits until the queued events are delivered.
+     */
+    void close() throws InterruptedException {
+        try {
+            m_registration.unregister();
+        } catch (IllegalStateException e) {
+            // unregistered with the adapter bundle
+        }
+        m_queue.close();
+        m_worker.join();
+    }
+
+    private void configure(ServiceReference<BatchEventHandler> reference) {
+        m_size = Math.max(1, getInt(reference, BatchEventHandler.BATCH_SIZE, DEFAULT_SIZE));
+        m_latencyNanos = TimeUnit.MILLISECONDS.toNanos(
+                getInt(reference, BatchEventHandler.BATCH_LATENCY, (int) DEFAULT_LATENCY));
+    }
+
+    public void handleEvent(Event event) {
+        m_queue.put(event);
+    }
+
+    public void run() {
+        List<Event> batch = new ArrayList<Event>();
+        Event event;
+        while ((event = m_queue.take()) != null) {
+            batch.add(event);
+            // the latency window starts with the first event of the batch
+            long deadline = System.nanoTime() + m_latencyNanos;
+            while (batch.size() < m_size) {
+                event = m_queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (event == null) {
+                    break;
+                }
+                batch.add(event);
+            }
+            try {
+                m_handler.handleEvents(batch);
+            } catch (Throwable t) {
+                t.printStackTrace(System.err);
+            }
+            batch.clear();
+            publish();
+        }
+    }
+
+    /**
+     * Updates the queue properties of the subscription if events were dropped or the queue
+     * grew deeper since they were last published.
+     */
+    private void publish() {
+        long dropped = m_queue.getDropped();
+        long maxDepth = m_queue.getMaxDepth();
+        if (dropped == m_publishedDropped && maxDepth == m_publishedMaxDepth) {
+            return;
+        }
+        m_publishedDropped = dropped;
+        m_publishedMaxDepth = maxDepth;
+        synchronized (this) {
+            try {
+                m_registration.setProperties(getProperties());
+            } catch (IllegalStateException e) {
+                // unregistered while closing
+            }
+        }
+    }
+
+    EventRing<Event> getQueue() {
+        return m_queue;
+    }
+
+    private Hashtable<String, Object> getProperties() {
+        Hashtable<String, Object> props = getSubscription(m_reference);
+        props.put(BatchEventHandler.HANDLER_ID, m_reference.getProperty(Constants.SERVICE_ID));
+        props.put(BatchEventHandler.BATCH_CAPACITY, m_queue.getCapacity());
+        props.put(BatchEventHandler.QUEUE_DEPTH, m_queue.getDepth());
+        props.put(BatchEventHandler.QUEUE_MAX_DEPTH, m_queue.getMaxDepth());
+        props.put(BatchEventHandler.QUEUE_DROPPED, m_queue.getDropped());
+        return props;
+    }
+
+    private static Hashtable<String, Object> getSubscription(ServiceReference<BatchEventHandler> reference) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        Object topics = reference.getProperty(EventConstants.EVENT_TOPIC);
+        if (topics != null) {
+            props.put(EventConstants.EVENT_TOPIC, topics);
+        }
+        Object filter = reference.getProperty(EventConstants.EVENT_FILTER);
+        if (filter != null) {
+            props.put(EventConstants.EVENT_FILTER, filter);
+        }
+        return props;
+    }
+
+    private static int getInt(ServiceReference<?> reference, String key, int defaultValue) {
+        Object value = reference.getProperty(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return value != null ? Integer.parseInt(value.toString().trim()) : defaultValue;
+    }
+}
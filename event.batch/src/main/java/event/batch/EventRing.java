@@ -0,0 +1,213 @@
+package event.batch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated ring buffer for many producers and one consumer.
+ * <p/>
+ * Every slot carries a sequence number telling whether it may be written or read next,
+ * so producers claim slots with a single compare-and-set and never take a lock. What
+ * happens when the ring is full is decided by the {@link Overflow} policy.
+ */
+public class EventRing<E> {
+    public enum Overflow {
+        /**
+         * Wait until the consumer frees a slot.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued element to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the element being offered.
+         */
+        DROP_NEWEST;
+
+        public static Overflow parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final long BLOCK_PARK_NANOS = 50000;
+
+    private final int m_mask;
+    private final AtomicReferenceArray<E> m_slots;
+    private final AtomicLongArray m_sequences;
+    private final Overflow m_overflow;
+
+    private final AtomicLong m_tail = new AtomicLong();
+    private final AtomicLong m_head = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicLong m_maxDepth = new AtomicLong();
+
+    private volatile Thread m_consumer;
+    private volatile boolean m_closed;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    public EventRing(int capacity, Overflow overflow) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        m_mask = size - 1;
+        m_slots = new AtomicReferenceArray<E>(size);
+        m_sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            m_sequences.set(i, i);
+        }
+        m_overflow = overflow;
+    }
+
+    /**
+     * Queues an element, applying the overflow policy if the ring is full.
+     *
+     * @return <code>false</code> if the element or an older one was dropped
+     */
+    public boolean put(E element) {
+        while (!m_closed) {
+            if (offer(element)) {
+                Thread consumer = m_consumer;
+                if (consumer != null) {
+                    LockSupport.unpark(consumer);
+                }
+                return true;
+            }
+            switch (m_overflow) {
+                case DROP_NEWEST:
+                    m_dropped.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    if (poll() != null) {
+                        m_dropped.incrementAndGet();
+                    }
+                    if (offer(element)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+        }
+        // nobody will consume the element any more
+        m_dropped.incrementAndGet();
+        return false;
+    }
+
+    private boolean offer(E element) {
+        while (true) {
+            long position = m_tail.get();
+            int index = (int) position & m_mask;
+            long difference = m_sequences.get(index) - position;
+            if (difference == 0) {
+                if (m_tail.compareAndSet(position, position + 1)) {
+                    m_slots.lazySet(index, element);
+                    m_sequences.set(index, position + 1);
+                    updateMaxDepth(position + 1 - m_head.get());
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, or returns <code>null</code> if the ring is empty.
+     * <p/>
+     * Only the consumer calls this, apart from producers making room under
+     * {@link Overflow#DROP_OLDEST}.
+     */
+    public E poll() {
+        while (true) {
+            long position = m_head.get();
+            int index = (int) position & m_mask;
+            long difference = m_sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (m_head.compareAndSet(position, position + 1)) {
+                    E element = m_slots.get(index);
+                    m_slots.lazySet(index, null);
+                    m_sequences.set(index, position + m_mask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for one to be queued.
+     *
+     * @return the element, or <code>null</code> if the ring was closed and is empty
+     */
+    public E take() {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Removes the oldest element, waiting up to the timeout for one to be queued.
+     *
+     * @return the element, or <code>null</code> if the timeout elapsed or the ring was
+     *         closed and is empty
+     */
+    public E poll(long timeout, TimeUnit unit) {
+        m_consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (m_closed || remaining <= 0) {
+                return poll();
+            }
+            // a producer unparks us after queueing, the timeout covers the race with it
+            LockSupport.parkNanos(this, Math.min(remaining, BLOCK_PARK_NANOS * 20));
+        }
+    }
+
+    /**
+     * Rejects further elements and wakes the consumer, which drains what is left.
+     */
+    public void close() {
+        m_closed = true;
+        Thread consumer = m_consumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void updateMaxDepth(long depth) {
+        long max;
+        while (depth > (max = m_maxDepth.get())) {
+            if (m_maxDepth.compareAndSet(max, depth)) {
+                return;
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return m_mask + 1;
+    }
+
+    public Overflow getOverflow() {
+        return m_overflow;
+    }
+
+    public long getDepth() {
+        return Math.max(0, m_tail.get() - m_head.get());
+    }
+
+    public long getMaxDepth() {
+        return m_maxDepth.get();
+    }
+
+    public long getDropped() {
+        return m_dropped.get();
+    }
+}
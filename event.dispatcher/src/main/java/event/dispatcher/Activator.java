@@ -0,0 +1,51 @@
+package event.dispatcher;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Hashtable;
+
+public class Activator implements BundleActivator {
+    /**
+     * Framework property with the time in milliseconds a dispatched handler may take for an
+     * event before it is blacklisted, 5000 by default.
+     */
+    public static final String TIMEOUT_PROPERTY = "event.dispatcher.timeout";
+
+    /**
+     * Framework property with the number of events queued per dispatched handler, 1024 by
+     * default.
+     */
+    public static final String CAPACITY_PROPERTY = "event.dispatcher.capacity";
+
+    private EventDispatcher m_dispatcher;
+
+    public void start(BundleContext bc) throws Exception {
+        m_dispatcher = new EventDispatcher(bc, getLong(bc, TIMEOUT_PROPERTY, 5000),
+                (int) getLong(bc, CAPACITY_PROPERTY, 1024));
+        m_dispatcher.open();
+
+        // the bridge, the only subscription EventAdmin has to match events against
+        Hashtable props = new Hashtable();
+        props.put(EventConstants.EVENT_TOPIC, "*");
+        bc.registerService(EventHandler.class, m_dispatcher, props);
+    }
+
+    public void stop(BundleContext bc) throws Exception {
+        m_dispatcher.close();
+    }
+
+    private static long getLong(BundleContext bc, String key, long defaultValue) {
+        String value = bc.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring " + key + "=" + value);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,161 @@
+package event.dispatcher;
+
+import org.osgi.framework.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives all events through one EventAdmin subscription and routes them to the
+ * handlers registered with the {@link #DISPATCHER_TOPICS} property.
+ * <p/>
+ * Dispatched handlers must not set <code>event.topics</code>, otherwise EventAdmin
+ * delivers to them as well. Their <code>event.filter</code> is compiled when they are
+ * registered or modified; handlers with an invalid filter are ignored.
+ * <p/>
+ * EventAdmin blacklists a handler that takes longer than its timeout, which for the
+ * dispatcher would stop the delivery to every dispatched handler. The dispatcher
+ * therefore only queues an event per handler and returns; each handler receives its
+ * events in order from a thread of a shared pool, one call at a time. This makes
+ * <code>sendEvent</code> asynchronous for dispatched handlers. A handler still in a call
+ * after the timeout is blacklisted on its own, and events for a handler whose queue is
+ * full are dropped.
+ */
+public class EventDispatcher extends ServiceTracker<EventHandler, EventDispatcher.Registration>
+        implements EventHandler {
+    /**
+     * Service property with the topics of a dispatched handler, a <code>String</code> or
+     * <code>String[]</code> in the syntax of <code>event.topics</code>.
+     */
+    public static final String DISPATCHER_TOPICS = "dispatcher.topics";
+
+    private final TopicTrie m_trie = new TopicTrie();
+    private final ExecutorService m_executor = Executors.newCachedThreadPool(new DispatcherThreadFactory());
+    private final long m_timeout;
+    private final int m_capacity;
+
+    /**
+     * @param timeout  the time in milliseconds a handler may take for an event
+     * @param capacity the number of events queued per handler
+     */
+    public EventDispatcher(BundleContext bc, long timeout, int capacity) throws InvalidSyntaxException {
+        super(bc, bc.createFilter("(&(" + Constants.OBJECTCLASS + "=" + EventHandler.class.getName() + ")("
+                + DISPATCHER_TOPICS + "=*))"), null);
+        m_timeout = timeout;
+        m_capacity = capacity;
+    }
+
+    public void handleEvent(Event event) {
+        m_trie.dispatch(event);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        m_executor.shutdown();
+    }
+
+    @Override
+    public Registration addingService(ServiceReference<EventHandler> reference) {
+        Filter filter;
+        try {
+            filter = getFilter(reference);
+        } catch (InvalidSyntaxException e) {
+            System.err.println("Ignoring event handler " + reference + ": " + e.getMessage());
+            return null;
+        }
+        String[] topics = getTopics(reference);
+        EventHandler handler = context.getService(reference);
+        if (topics.length == 0 || handler == null) {
+            if (handler != null) {
+                context.ungetService(reference);
+            }
+            return null;
+        }
+        Registration registration = new Registration(
+                new TopicTrie.Subscription(handler, filter, m_executor, m_timeout, m_capacity));
+        registration.subscribe(topics);
+        return registration;
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<EventHandler> reference, Registration registration) {
+        // keep the service and its queue, update the filter and the topics in place
+        try {
+            registration.m_subscription.setFilter(getFilter(reference));
+            registration.subscribe(getTopics(reference));
+        } catch (InvalidSyntaxException e) {
+            System.err.println("Ignoring event handler " + reference + ": " + e.getMessage());
+            registration.subscribe(new String[0]);
+        }
+    }
+
+    @Override
+    public void removedService(ServiceReference<EventHandler> reference, Registration registration) {
+        registration.subscribe(new String[0]);
+        registration.m_subscription.cancel();
+        context.ungetService(reference);
+    }
+
+    private Filter getFilter(ServiceReference<EventHandler> reference) throws InvalidSyntaxException {
+        Object filter = reference.getProperty(EventConstants.EVENT_FILTER);
+        return filter != null ? context.createFilter(filter.toString()) : null;
+    }
+
+    private static String[] getTopics(ServiceReference<EventHandler> reference) {
+        Object topics = reference.getProperty(DISPATCHER_TOPICS);
+        if (topics instanceof String) {
+            return new String[]{(String) topics};
+        } else if (topics instanceof String[]) {
+            return (String[]) topics;
+        } else if (topics instanceof Collection) {
+            Collection<?> collection = (Collection<?>) topics;
+            return collection.toArray(new String[collection.size()]);
+        }
+        return new String[0];
+    }
+
+    class Registration {
+        private final TopicTrie.Subscription m_subscription;
+        private Set<String> m_topics = Collections.emptySet();
+
+        Registration(TopicTrie.Subscription subscription) {
+            m_subscription = subscription;
+        }
+
+        /**
+         * Subscribes to the given topics, adding and removing only the topics that changed.
+         */
+        synchronized void subscribe(String[] topics) {
+            Set<String> subscribed = new HashSet<String>(Arrays.asList(topics));
+            for (String topic : subscribed) {
+                if (!m_topics.contains(topic)) {
+                    m_trie.add(topic, m_subscription);
+                }
+            }
+            for (String topic : m_topics) {
+                if (!subscribed.contains(topic)) {
+                    m_trie.remove(topic, m_subscription);
+                }
+            }
+            m_topics = subscribed;
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "event-dispatcher-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package event.dispatcher;
+
+import org.osgi.framework.Filter;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trie of topic segments holding the subscriptions of the dispatched handlers.
+ * <p/>
+ * An exact topic <code>a/b/c</code> is kept at the node of <code>c</code>, a wildcard
+ * topic <code>a/b/*</code> at the node of <code>b</code> and <code>*</code> at the root,
+ * so the subscriptions of an event are found by walking its topic once. The routes of
+ * recently dispatched topics are cached until the subscriptions change.
+ */
+public class TopicTrie {
+    private static final int MAX_ROUTES = 1024;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final Node m_root = new Node();
+    private final ConcurrentMap<String, Subscription[]> m_routes = new ConcurrentHashMap<String, Subscription[]>();
+    private final AtomicInteger m_generation = new AtomicInteger();
+
+    public void add(String topic, Subscription subscription) {
+        if ("*".equals(topic)) {
+            m_root.m_wildcard.add(subscription);
+        } else if (topic.endsWith("/*")) {
+            node(topic.substring(0, topic.length() - 2)).m_wildcard.add(subscription);
+        } else {
+            node(topic).m_exact.add(subscription);
+        }
+        invalidateRoutes();
+    }
+
+    public void remove(String topic, Subscription subscription) {
+        if ("*".equals(topic)) {
+            m_root.m_wildcard.remove(subscription);
+        } else if (topic.endsWith("/*")) {
+            node(topic.substring(0, topic.length() - 2)).m_wildcard.remove(subscription);
+        } else {
+            node(topic).m_exact.remove(subscription);
+        }
+        invalidateRoutes();
+    }
+
+    private void invalidateRoutes() {
+        m_generation.incrementAndGet();
+        m_routes.clear();
+    }
+
+    private Node node(String path) {
+        Node node = m_root;
+        for (String segment : path.split("/")) {
+            Node child = node.m_children.get(segment);
+            if (child == null) {
+                Node created = new Node();
+                child = node.m_children.putIfAbsent(segment, created);
+                if (child == null) {
+                    child = created;
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Queues an event for all subscriptions of its topic whose filter matches.
+     *
+     * @return the number of handlers the event was queued for
+     */
+    public int dispatch(Event event) {
+        int queued = 0;
+        for (Subscription subscription : route(event.getTopic())) {
+            if (subscription.matches(event) && subscription.offer(event)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the subscriptions of a topic, in the order of their nodes from the root.
+     */
+    public Subscription[] route(String topic) {
+        Subscription[] route = m_routes.get(topic);
+        if (route == null) {
+            int generation = m_generation.get();
+            route = collect(topic);
+            if (m_routes.size() >= MAX_ROUTES) {
+                m_routes.clear();
+            }
+            m_routes.put(topic, route);
+            if (generation != m_generation.get()) {
+                // the subscriptions changed while collecting, the route may be stale
+                m_routes.remove(topic, route);
+            }
+        }
+        return route;
+    }
+
+    private Subscription[] collect(String topic) {
+        List<Subscription> route = new ArrayList<Subscription>();
+        Node node = m_root;
+        int start = 0;
+        while (node != null) {
+            int end = topic.indexOf('/', start);
+            if (end < 0) {
+                // wildcards of the parent match, those of the last segment only match longer topics
+                route.addAll(node.m_wildcard);
+                node = node.m_children.get(topic.substring(start));
+                if (node != null) {
+                    route.addAll(node.m_exact);
+                }
+                break;
+            }
+            route.addAll(node.m_wildcard);
+            node = node.m_children.get(topic.substring(start, end));
+            start = end + 1;
+        }
+        return route.isEmpty() ? NO_SUBSCRIPTIONS : route.toArray(new Subscription[route.size()]);
+    }
+
+    private static class Node {
+        private final ConcurrentMap<String, Node> m_children = new ConcurrentHashMap<String, Node>();
+        private final List<Subscription> m_exact = new CopyOnWriteArrayList<Subscription>();
+        private final List<Subscription> m_wildcard = new CopyOnWriteArrayList<Subscription>();
+    }
+
+    /**
+     * A handler with its <code>event.filter</code>, compiled when the handler was
+     * registered or modified, and the queue of events waiting for it.
+     * <p/>
+     * The queue is drained by one task of the executor at a time, so the handler receives
+     * its events one by one and in order. When the queue is full new events are dropped. A
+     * handler that is still in a call after the timeout when the next event arrives is
+     * blacklisted: its queue is cleared and it receives no more events.
+     */
+    public static class Subscription implements Runnable {
+        private final EventHandler m_handler;
+        private final Executor m_executor;
+        private final long m_timeoutNanos;
+        private final BlockingQueue<Event> m_queue;
+        private final AtomicBoolean m_scheduled = new AtomicBoolean();
+        private volatile Filter m_filter;
+        // System.nanoTime() when the current call began, 0 between calls
+        private volatile long m_callStart;
+        private volatile boolean m_blacklisted;
+        private volatile boolean m_cancelled;
+        private final AtomicInteger m_dropped = new AtomicInteger();
+
+        public Subscription(EventHandler handler, Filter filter, Executor executor, long timeout, int capacity) {
+            m_handler = handler;
+            m_filter = filter;
+            m_executor = executor;
+            m_timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            m_queue = new LinkedBlockingQueue<Event>(capacity);
+        }
+
+        public EventHandler getHandler() {
+            return m_handler;
+        }
+
+        public void setFilter(Filter filter) {
+            m_filter = filter;
+        }
+
+        public boolean isBlacklisted() {
+            return m_blacklisted;
+        }
+
+        /**
+         * Returns the number of events dropped because the queue was full.
+         */
+        public int getDropped() {
+            return m_dropped.get();
+        }
+
+        /**
+         * Stops the delivery of queued events, called when the handler goes away.
+         */
+        public void cancel() {
+            m_cancelled = true;
+            m_queue.clear();
+        }
+
+        private boolean isStopped() {
+            return m_blacklisted || m_cancelled;
+        }
+
+        boolean matches(Event event) {
+            Filter filter = m_filter;
+            return !isStopped() && (filter == null || event.matches(filter));
+        }
+
+        boolean offer(Event event) {
+            long callStart = m_callStart;
+            if (callStart != 0 && System.nanoTime() - callStart > m_timeoutNanos) {
+                m_blacklisted = true;
+                m_queue.clear();
+                System.err.println("Blacklisting event handler " + m_handler + ", a call takes longer than "
+                        + TimeUnit.NANOSECONDS.toMillis(m_timeoutNanos) + " ms");
+                return false;
+            }
+            if (!m_queue.offer(event)) {
+                if (m_dropped.getAndIncrement() == 0) {
+                    System.err.println("Event handler " + m_handler + " falls behind, dropping events");
+                }
+                return false;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (m_scheduled.compareAndSet(false, true)) {
+                try {
+                    m_executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the dispatcher is closing
+                    m_scheduled.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            for (Event event = m_queue.poll(); event != null && !isStopped(); event = m_queue.poll()) {
+                m_callStart = System.nanoTime();
+                try {
+                    m_handler.handleEvent(event);
+                } catch (Throwable t) {
+                    t.printStackTrace(System.err);
+                } finally {
+                    m_callStart = 0;
+                }
+            }
+            m_scheduled.set(false);
+            // an event offered after the last poll found the task still scheduled
+            if (!m_queue.isEmpty() && !isStopped()) {
+                schedule();
+            }
+        }
+    }
+}
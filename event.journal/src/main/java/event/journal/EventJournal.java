@@ -0,0 +1,268 @@
+package event.journal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of events in memory-mapped segment files.
+ * <p/>
+ * A segment starts with a header (magic, version, creation time) followed by records: the
+ * record length (int), the time it was appended (long), the ID of the bundle the event
+ * originates from (long, -1 if unknown), the topic, the number of properties (char) and
+ * per property the key and the value as written by {@link EventValues}. The length is
+ * written last, after a length of 0 is put behind the record, so a reader mapping the same
+ * file stops at the first length of 0 and never sees a partial record.
+ * <p/>
+ * Several writers may share a directory. The segment names start with the name of the writer,
+ * a journal appends to the last segment of its writer when it is opened again. When a record
+ * does not fit in the current segment a new one is started, then the oldest segments of the
+ * writer beyond the maximum count or older than the retention period are deleted, as are the
+ * segments of other writers that have not written for the retention period.
+ */
+public class EventJournal {
+    public static final String DIRECTORY_PROPERTY = "event.journal.dir";
+    public static final String SEGMENT_SIZE_PROPERTY = "event.journal.segment.size";
+    public static final String SEGMENTS_PROPERTY = "event.journal.segments";
+    public static final String RETENTION_PROPERTY = "event.journal.retention";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final long DEFAULT_RETENTION = 168; // hours
+
+    static final int MAGIC = 0x45564A4E; // EVJN
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final String SUFFIX = ".journal";
+
+    private final File m_dir;
+    private final String m_writer;
+    private final int m_segmentSize;
+    private final int m_maxSegments;
+    private final long m_retention;
+    private FileChannel m_channel;
+    private MappedByteBuffer m_buffer;
+    private int m_sequence;
+    private boolean m_closed;
+
+    /**
+     * @param writer name of the writer, unique among the writers sharing the directory
+     */
+    public EventJournal(File dir, String writer, int segmentSize, int maxSegments, long retention, TimeUnit unit)
+            throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        m_dir = dir;
+        m_writer = writer.replaceAll("[^A-Za-z0-9_.]", "_");
+        m_segmentSize = segmentSize;
+        m_maxSegments = Math.max(1, maxSegments);
+        m_retention = unit.toMillis(retention);
+        if (!m_dir.isDirectory() && !m_dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + m_dir);
+        }
+        if (!reopen()) {
+            roll();
+        }
+    }
+
+    /**
+     * Opens a journal configured by the <code>event.journal.*</code> framework properties,
+     * written by the bundle of the context. The writer is named after the symbolic name and
+     * version of the bundle, so a reinstalled bundle appends to its former segments.
+     */
+    public static EventJournal open(BundleContext bc) throws IOException {
+        Bundle bundle = bc.getBundle();
+        return new EventJournal(getDirectory(bc), bundle.getSymbolicName() + "_" + bundle.getVersion(),
+                getInt(bc, SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE),
+                getInt(bc, SEGMENTS_PROPERTY, DEFAULT_SEGMENTS),
+                getLong(bc, RETENTION_PROPERTY, DEFAULT_RETENTION), TimeUnit.HOURS);
+    }
+
+    /**
+     * Returns the journal directory shared by the writers and readers of a framework.
+     */
+    public static File getDirectory(BundleContext bc) {
+        String dir = bc.getProperty(DIRECTORY_PROPERTY);
+        return dir != null ? new File(dir) : new File(System.getProperty("java.io.tmpdir"), "event-journal");
+    }
+
+    /**
+     * Appends the record of an event.
+     *
+     * @return <code>false</code> if the journal is closed or the record is larger than a segment
+     */
+    public synchronized boolean append(Event event) throws IOException {
+        if (m_closed) {
+            return false;
+        }
+        int start = m_buffer.position();
+        try {
+            write(event);
+        } catch (BufferOverflowException e) {
+            m_buffer.position(start);
+            if (start == HEADER_SIZE) {
+                return false;
+            }
+            roll();
+            start = m_buffer.position();
+            try {
+                write(event);
+            } catch (BufferOverflowException ex) {
+                m_buffer.position(start);
+                return false;
+            }
+        }
+        if (m_buffer.remaining() >= 4) {
+            // terminates the record, the space may hold a partial record of an earlier run
+            m_buffer.putInt(m_buffer.position(), 0);
+        }
+        m_buffer.putInt(start, m_buffer.position() - start);
+        return true;
+    }
+
+    private void write(Event event) {
+        String[] names = event.getPropertyNames();
+        m_buffer.putInt(0);
+        m_buffer.putLong(System.currentTimeMillis());
+        m_buffer.putLong(getBundleId(event));
+        EventValues.writeString(m_buffer, event.getTopic());
+        m_buffer.putChar((char) names.length);
+        for (String name : names) {
+            EventValues.writeString(m_buffer, name);
+            EventValues.write(m_buffer, event.getProperty(name));
+        }
+    }
+
+    private static long getBundleId(Event event) {
+        Object id = event.getProperty(EventConstants.BUNDLE_ID);
+        if (id instanceof Long) {
+            return (Long) id;
+        }
+        Object service = event.getProperty(EventConstants.SERVICE);
+        if (service instanceof ServiceReference) {
+            Bundle bundle = ((ServiceReference) service).getBundle();
+            if (bundle != null) {
+                return bundle.getBundleId();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Maps the last segment of the writer and positions behind its last complete record.
+     *
+     * @return <code>false</code> if there is no segment to append to
+     */
+    private boolean reopen() throws IOException {
+        File[] segments = JournalReader.listSegments(m_dir, m_writer);
+        if (segments.length == 0) {
+            return false;
+        }
+        File file = segments[segments.length - 1];
+        m_sequence = JournalReader.getSequence(file) + 1;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        long size = channel.size();
+        MappedByteBuffer buffer = null;
+        if (size > HEADER_SIZE && size <= Integer.MAX_VALUE) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (buffer == null || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            System.err.println("Not appending to invalid journal segment " + file);
+            channel.close();
+            return false;
+        }
+        int offset = HEADER_SIZE;
+        int limit = buffer.limit();
+        while (offset + 4 <= limit) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + length > limit) {
+                break;
+            }
+            offset += length;
+        }
+        buffer.position(offset);
+        m_channel = channel;
+        m_buffer = buffer;
+        retain(System.currentTimeMillis());
+        return true;
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        long created = System.currentTimeMillis();
+        File file = new File(m_dir, String.format("%s-%016d-%04d%s", m_writer, created, m_sequence++ % 10000, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(m_segmentSize);
+        m_channel = raf.getChannel();
+        m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, m_segmentSize);
+        m_buffer.putInt(MAGIC).putInt(VERSION).putLong(created);
+        retain(created);
+    }
+
+    private void retain(long now) {
+        File[] segments = JournalReader.listSegments(m_dir, m_writer);
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments.length - i > m_maxSegments
+                    || JournalReader.getCreated(segments[i + 1]) < now - m_retention) {
+                delete(segments[i]);
+            }
+        }
+        // writers that are gone, e.g. an older version of a bundle, leave their segments behind
+        Map<String, File> newest = new HashMap<String, File>();
+        File[] all = JournalReader.listSegments(m_dir, null);
+        for (File segment : all) {
+            newest.put(JournalReader.getWriter(segment), segment);
+        }
+        for (File segment : all) {
+            String writer = JournalReader.getWriter(segment);
+            if (!writer.equals(m_writer) && newest.get(writer).lastModified() < now - m_retention) {
+                delete(segment);
+            }
+        }
+    }
+
+    private static void delete(File segment) {
+        if (!segment.delete()) {
+            System.err.println("Cannot delete journal segment " + segment);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (m_channel != null) {
+            m_buffer.force();
+            m_channel.close();
+            m_channel = null;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (!m_closed) {
+            m_closed = true;
+            closeSegment();
+        }
+    }
+
+    private static int getInt(BundleContext bc, String key, int defaultValue) {
+        String value = bc.getProperty(key);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static long getLong(BundleContext bc, String key, long defaultValue) {
+        String value = bc.getProperty(key);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+}
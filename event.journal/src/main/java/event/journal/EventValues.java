@@ -0,0 +1,195 @@
+package event.journal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of event property values: a type tag (byte) followed by the value.
+ * <p/>
+ * Strings, primitive wrappers, string arrays, service references, bundles and service
+ * events are written without allocating; service references, bundles and service events
+ * by ID. Other values fall back to their <code>toString()</code>.
+ */
+public final class EventValues {
+    public static final byte NULL = 0;
+    public static final byte STRING = 1;
+    public static final byte INT = 2;
+    public static final byte LONG = 3;
+    public static final byte SHORT = 4;
+    public static final byte BYTE = 5;
+    public static final byte BOOLEAN = 6;
+    public static final byte DOUBLE = 7;
+    public static final byte FLOAT = 8;
+    public static final byte CHAR = 9;
+    public static final byte STRING_ARRAY = 10;
+    public static final byte SERVICE_REFERENCE = 11;
+    public static final byte BUNDLE = 12;
+    public static final byte SERVICE_EVENT = 13;
+    public static final byte OTHER = 14;
+
+    private EventValues() {
+    }
+
+    /**
+     * Writes a value at the position of the buffer.
+     *
+     * @throws java.nio.BufferOverflowException if the value does not fit
+     */
+    public static void write(ByteBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.put(NULL);
+        } else if (value instanceof String) {
+            buffer.put(STRING);
+            writeString(buffer, (String) value);
+        } else if (value instanceof Integer) {
+            buffer.put(INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(LONG).putLong((Long) value);
+        } else if (value instanceof Short) {
+            buffer.put(SHORT).putShort((Short) value);
+        } else if (value instanceof Byte) {
+            buffer.put(BYTE).put((Byte) value);
+        } else if (value instanceof Boolean) {
+            buffer.put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Double) {
+            buffer.put(DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Float) {
+            buffer.put(FLOAT).putFloat((Float) value);
+        } else if (value instanceof Character) {
+            buffer.put(CHAR).putChar((Character) value);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            buffer.put(STRING_ARRAY).putInt(array.length);
+            for (String s : array) {
+                writeString(buffer, s);
+            }
+        } else if (value instanceof ServiceReference) {
+            buffer.put(SERVICE_REFERENCE).putLong(getServiceId((ServiceReference) value));
+        } else if (value instanceof Bundle) {
+            buffer.put(BUNDLE).putLong(((Bundle) value).getBundleId());
+        } else if (value instanceof ServiceEvent) {
+            ServiceEvent serviceEvent = (ServiceEvent) value;
+            buffer.put(SERVICE_EVENT).putInt(serviceEvent.getType())
+                    .putLong(getServiceId(serviceEvent.getServiceReference()));
+        } else {
+            buffer.put(OTHER);
+            writeString(buffer, value.toString());
+        }
+    }
+
+    /**
+     * Writes the length of a string (int) followed by its characters.
+     */
+    public static void writeString(ByteBuffer buffer, String s) {
+        int length = s.length();
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * Appends the readable form of the value at an index of the buffer, without changing
+     * its position.
+     *
+     * @return the index after the value
+     */
+    public static int render(ByteBuffer buffer, int index, StringBuilder out) {
+        byte type = buffer.get(index++);
+        switch (type) {
+            case NULL:
+                out.append("null");
+                return index;
+            case STRING:
+            case OTHER:
+                return renderString(buffer, index, out);
+            case INT:
+                out.append(buffer.getInt(index));
+                return index + 4;
+            case LONG:
+                out.append(buffer.getLong(index));
+                return index + 8;
+            case SHORT:
+                out.append(buffer.getShort(index));
+                return index + 2;
+            case BYTE:
+                out.append(buffer.get(index));
+                return index + 1;
+            case BOOLEAN:
+                out.append(buffer.get(index) != 0);
+                return index + 1;
+            case DOUBLE:
+                out.append(buffer.getDouble(index));
+                return index + 8;
+            case FLOAT:
+                out.append(buffer.getFloat(index));
+                return index + 4;
+            case CHAR:
+                out.append(buffer.getChar(index));
+                return index + 2;
+            case STRING_ARRAY:
+                int length = buffer.getInt(index);
+                index += 4;
+                out.append('[');
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    index = renderString(buffer, index, out);
+                }
+                out.append(']');
+                return index;
+            case SERVICE_REFERENCE:
+                out.append("{service.id=").append(buffer.getLong(index)).append('}');
+                return index + 8;
+            case BUNDLE:
+                out.append("bundle ").append(buffer.getLong(index));
+                return index + 8;
+            case SERVICE_EVENT:
+                out.append("ServiceEvent(").append(getServiceEventType(buffer.getInt(index)))
+                        .append(", service.id=").append(buffer.getLong(index + 4)).append(')');
+                return index + 12;
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    /**
+     * Appends the string at an index of the buffer.
+     *
+     * @return the index after the string
+     */
+    public static int renderString(ByteBuffer buffer, int index, StringBuilder out) {
+        int length = buffer.getInt(index);
+        index += 4;
+        for (int i = 0; i < length; i++) {
+            out.append(buffer.getChar(index));
+            index += 2;
+        }
+        return index;
+    }
+
+    private static long getServiceId(ServiceReference reference) {
+        Object id = reference.getProperty(Constants.SERVICE_ID);
+        return id instanceof Long ? (Long) id : -1;
+    }
+
+    private static String getServiceEventType(int type) {
+        switch (type) {
+            case ServiceEvent.REGISTERED:
+                return "REGISTERED";
+            case ServiceEvent.MODIFIED:
+                return "MODIFIED";
+            case ServiceEvent.UNREGISTERING:
+                return "UNREGISTERING";
+            case ServiceEvent.MODIFIED_ENDMATCH:
+                return "MODIFIED_ENDMATCH";
+            default:
+                return Integer.toString(type);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package event.journal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selects journal records by topic pattern, time range and originating bundle.
+ * <p/>
+ * The topic pattern follows the EventAdmin <code>event.topics</code> syntax: an exact
+ * topic, a prefix ending with <code>/*</code> or <code>*</code> for all topics. It is
+ * matched against the characters of the mapped record, the topic is never copied.
+ */
+public class JournalQuery {
+    private final String m_topic;
+    private final boolean m_prefix;
+    private final long m_from;
+    private final long m_to;
+    private final long m_bundleId;
+
+    /**
+     * @param topic    topic pattern, <code>null</code> for all topics
+     * @param from     first time in milliseconds, inclusive
+     * @param to       last time in milliseconds, exclusive
+     * @param bundleId originating bundle, -1 for all bundles
+     */
+    public JournalQuery(String topic, long from, long to, long bundleId) {
+        if (topic == null || "*".equals(topic)) {
+            m_topic = "";
+            m_prefix = true;
+        } else if (topic.endsWith("/*")) {
+            m_topic = topic.substring(0, topic.length() - 1);
+            m_prefix = true;
+        } else {
+            m_topic = topic;
+            m_prefix = false;
+        }
+        m_from = from;
+        m_to = to;
+        m_bundleId = bundleId;
+    }
+
+    public long getFrom() {
+        return m_from;
+    }
+
+    public long getTo() {
+        return m_to;
+    }
+
+    boolean matchesTime(long time) {
+        return time >= m_from && time < m_to;
+    }
+
+    boolean matchesBundle(long bundleId) {
+        return m_bundleId < 0 || m_bundleId == bundleId;
+    }
+
+    /**
+     * Matches the string (length and characters) at an index of the buffer.
+     */
+    boolean matchesTopic(ByteBuffer buffer, int index) {
+        int length = buffer.getInt(index);
+        int expected = m_topic.length();
+        if (m_prefix ? length < expected : length != expected) {
+            return false;
+        }
+        index += 4;
+        for (int i = 0; i < expected; i++, index += 2) {
+            if (buffer.getChar(index) != m_topic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
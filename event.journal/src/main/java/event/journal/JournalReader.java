@@ -0,0 +1,159 @@
+package event.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scans the segments of an {@link EventJournal} in the order they were written.
+ * <p/>
+ * Segments are mapped read only, one at a time, so scanning does not load them onto the
+ * heap. A segment holds the records appended between its creation and the creation of the
+ * next one of the same writer, segments outside the time range of a query are not mapped at
+ * all.
+ */
+public class JournalReader {
+    public interface Visitor {
+        /**
+         * @return <code>false</code> to stop the scan
+         */
+        boolean visit(JournalRecord record);
+    }
+
+    private final File m_dir;
+
+    public JournalReader(File dir) {
+        m_dir = dir;
+    }
+
+    /**
+     * Visits the records matching the query.
+     *
+     * @return the number of records visited
+     */
+    public int scan(JournalQuery query, Visitor visitor) throws IOException {
+        File[] segments = listSegments(m_dir, null);
+        // the creation time of the next segment of the same writer
+        long[] nexts = new long[segments.length];
+        Map<String, Long> latest = new HashMap<String, Long>();
+        for (int i = segments.length - 1; i >= 0; i--) {
+            Long created = latest.put(getWriter(segments[i]), getCreated(segments[i]));
+            nexts[i] = created != null ? created : Long.MAX_VALUE;
+        }
+        JournalRecord record = new JournalRecord();
+        int visited = 0;
+        for (int i = 0; i < segments.length; i++) {
+            long created = getCreated(segments[i]);
+            long next = nexts[i];
+            if (next <= query.getFrom() || created >= query.getTo()) {
+                continue;
+            }
+            MappedByteBuffer buffer = map(segments[i]);
+            if (buffer == null) {
+                continue;
+            }
+            int offset = EventJournal.HEADER_SIZE;
+            int limit = buffer.limit();
+            while (offset + JournalRecord.TOPIC <= limit) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + length > limit) {
+                    break;
+                }
+                record.reset(buffer, offset);
+                if (query.matchesTime(record.getTimestamp())
+                        && query.matchesBundle(record.getBundleId())
+                        && query.matchesTopic(buffer, offset + JournalRecord.TOPIC)) {
+                    visited++;
+                    if (!visitor.visit(record)) {
+                        return visited;
+                    }
+                }
+                offset += length;
+            }
+        }
+        return visited;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            return null; // deleted by retention
+        }
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < EventJournal.HEADER_SIZE
+                    || buffer.getInt(0) != EventJournal.MAGIC || buffer.getInt(4) != EventJournal.VERSION) {
+                System.err.println("Skipping invalid journal segment " + file);
+                return null;
+            }
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Lists the segments of a writer, or of all writers if it is <code>null</code>, ordered
+     * by creation time.
+     */
+    static File[] listSegments(File dir, final String writer) {
+        File[] segments = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EventJournal.SUFFIX)
+                        && (writer == null || writer.equals(getWriter(file)));
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long createdA = getCreated(a);
+                long createdB = getCreated(b);
+                return createdA < createdB ? -1 : createdA > createdB ? 1 : a.getName().compareTo(b.getName());
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * Returns the writer of a segment named <code>writer-created-sequence.journal</code>.
+     */
+    static String getWriter(File segment) {
+        String[] parts = getNameParts(segment);
+        return parts.length == 3 ? parts[0] : "";
+    }
+
+    static long getCreated(File segment) {
+        String[] parts = getNameParts(segment);
+        try {
+            return Long.parseLong(parts[parts.length - 2]);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    static int getSequence(File segment) {
+        String[] parts = getNameParts(segment);
+        try {
+            return Integer.parseInt(parts[parts.length - 1]);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static String[] getNameParts(File segment) {
+        String name = segment.getName();
+        return name.substring(0, name.length() - EventJournal.SUFFIX.length()).split("-");
+    }
+}
@@ -0,0 +1,80 @@
+package event.journal;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * View of one record of a mapped journal segment.
+ * <p/>
+ * The instance is reused for every record of a scan and is only valid while it is being
+ * visited; time and bundle are read straight from the segment, topic and properties are
+ * copied only when asked for.
+ */
+public class JournalRecord {
+    private static final int TIMESTAMP = 4;
+    private static final int BUNDLE_ID = 12;
+    static final int TOPIC = 20;
+
+    private ByteBuffer m_buffer;
+    private int m_offset;
+
+    void reset(ByteBuffer buffer, int offset) {
+        m_buffer = buffer;
+        m_offset = offset;
+    }
+
+    public long getTimestamp() {
+        return m_buffer.getLong(m_offset + TIMESTAMP);
+    }
+
+    public long getBundleId() {
+        return m_buffer.getLong(m_offset + BUNDLE_ID);
+    }
+
+    public String getTopic() {
+        StringBuilder topic = new StringBuilder();
+        EventValues.renderString(m_buffer, m_offset + TOPIC, topic);
+        return topic.toString();
+    }
+
+    /**
+     * Appends the properties as <code>key=value</code> lines.
+     */
+    public void render(StringBuilder out, String lineSeparator) {
+        int index = skipTopic();
+        int count = m_buffer.getChar(index);
+        index += 2;
+        for (int i = 0; i < count; i++) {
+            index = EventValues.renderString(m_buffer, index, out);
+            out.append('=');
+            index = EventValues.render(m_buffer, index, out);
+            out.append(lineSeparator);
+        }
+    }
+
+    /**
+     * Returns the properties with their values in readable form.
+     */
+    public Map<String, String> getProperties() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        StringBuilder sb = new StringBuilder();
+        int index = skipTopic();
+        int count = m_buffer.getChar(index);
+        index += 2;
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            index = EventValues.renderString(m_buffer, index, sb);
+            String key = sb.toString();
+            sb.setLength(0);
+            index = EventValues.render(m_buffer, index, sb);
+            properties.put(key, sb.toString());
+        }
+        return properties;
+    }
+
+    private int skipTopic() {
+        int index = m_offset + TOPIC;
+        return index + 4 + m_buffer.getInt(index) * 2;
+    }
+}
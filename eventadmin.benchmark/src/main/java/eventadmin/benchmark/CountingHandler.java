@@ -0,0 +1,42 @@
+package eventadmin.benchmark;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event handler registered by the benchmark bundles. It only counts deliveries, so the
+ * benchmark measures EventAdmin and not the handler.
+ * <p/>
+ * The class is exported by the system bundle, so all handlers in all regions share the
+ * counter with the benchmark.
+ */
+public class CountingHandler implements EventHandler {
+    private static final AtomicLong DELIVERED = new AtomicLong();
+
+    public void handleEvent(Event event) {
+        DELIVERED.incrementAndGet();
+    }
+
+    public static long getDelivered() {
+        return DELIVERED.get();
+    }
+
+    /**
+     * Waits until the number of deliveries reaches a target.
+     *
+     * @throws IllegalStateException if the target is not reached within the timeout
+     */
+    public static void await(long target, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (DELIVERED.get() < target) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException(
+                        "Events not delivered: " + DELIVERED.get() + " of " + target);
+            }
+            Thread.yield();
+        }
+    }
+}
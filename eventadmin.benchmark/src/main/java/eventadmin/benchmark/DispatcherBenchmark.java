@@ -0,0 +1,106 @@
+package eventadmin.benchmark;
+
+import event.dispatcher.EventDispatcher;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wildcard handlers subscribed to EventAdmin directly compared with the same handlers
+ * routed by the topic trie of the <code>event.dispatcher</code> bundle, which must be
+ * installed in the local repository.
+ * <p/>
+ * The handlers subscribe to <code>benchmark/topicN/*</code> round robin over ten topics,
+ * so each event reaches a tenth of them. The dispatcher delivers from its own threads even
+ * for <code>sendEvent</code>, so both benchmarks wait for all deliveries of an event.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatcherBenchmark {
+    private static final String DISPATCHER_URL = "mvn:subsystem_ea_tests/event.dispatcher/1.0.0-SNAPSHOT";
+
+    private static final int TOPICS = 10;
+
+    private static final long DELIVERY_TIMEOUT = 10;
+
+    @Param({"eventadmin", "dispatcher"})
+    public String route;
+
+    @Param({"10", "100", "1000"})
+    public int handlers;
+
+    private EmbeddedPlatform m_platform;
+    private EventAdmin m_eventAdmin;
+    private Event[] m_events;
+    private long[] m_deliveries;
+    private int m_next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File storage = File.createTempFile("dispatcher-benchmark", "");
+        storage.delete();
+        m_platform = new EmbeddedPlatform(storage);
+        m_platform.start();
+        m_eventAdmin = m_platform.getEventAdmin();
+
+        String topicProperty;
+        if ("dispatcher".equals(route)) {
+            m_platform.installArtifact(DISPATCHER_URL);
+            topicProperty = EventDispatcher.DISPATCHER_TOPICS;
+        } else if ("eventadmin".equals(route)) {
+            topicProperty = null;
+        } else {
+            throw new IllegalArgumentException("Unknown route: " + route);
+        }
+        m_platform.installBundle("eventadmin.benchmark.handlers", HandlerArchives.createBundle(
+                "eventadmin.benchmark.handlers", handlers, TOPICS, topicProperty, true));
+
+        m_events = new Event[TOPICS];
+        m_deliveries = new long[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            m_events[i] = new Event(HandlerActivator.getTopic(i) + "/event", new HashMap<String, Object>());
+            // handler h subscribes to topic h % TOPICS
+            m_deliveries[i] = handlers / TOPICS + (i < handlers % TOPICS ? 1 : 0);
+            long target = CountingHandler.getDelivered() + m_deliveries[i];
+            m_eventAdmin.sendEvent(m_events[i]);
+            CountingHandler.await(target, DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+        }
+        System.out.println("Deliveries per event (" + route + "): " + m_deliveries[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        m_platform.stop();
+    }
+
+    @Benchmark
+    public void sendEvent() {
+        int topic = nextTopic();
+        long target = CountingHandler.getDelivered() + m_deliveries[topic];
+        m_eventAdmin.sendEvent(m_events[topic]);
+        CountingHandler.await(target, DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void postEvent() {
+        int topic = nextTopic();
+        long target = CountingHandler.getDelivered() + m_deliveries[topic];
+        m_eventAdmin.postEvent(m_events[topic]);
+        CountingHandler.await(target, DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private int nextTopic() {
+        // the benchmarks are single threaded, the cursor needs no synchronization
+        int topic = m_next;
+        m_next = topic + 1 == m_events.length ? 0 : topic + 1;
+        return topic;
+    }
+}
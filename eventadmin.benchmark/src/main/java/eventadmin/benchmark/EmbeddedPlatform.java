@@ -0,0 +1,210 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.util.tracker.ServiceTracker;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Equinox framework started in the benchmark JVM with the bundles of a profile of
+ * <code>platform-equinox.xml</code>, i.e. the same EventAdmin and Aries subsystem stack
+ * as <code>mvn -P run</code>.
+ * <p/>
+ * The event, subsystem and benchmark packages are exported by the system bundle, so the
+ * benchmark calls the services of the framework directly.
+ */
+public class EmbeddedPlatform {
+    public static final String DEFINITION_PROPERTY = "platform.definition";
+    public static final String PROFILE_PROPERTY = "platform.profile";
+    public static final String REPOSITORY_PROPERTY = "maven.repo.local";
+
+    private static final String SYSTEM_PACKAGES_EXTRA =
+            "org.osgi.service.event;version=1.3.0,"
+                    + "org.osgi.service.subsystem;version=1.0.0,"
+                    + HandlerActivator.class.getPackage().getName() + ";version=1.0.0";
+
+    private static final long SERVICE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final File m_storage;
+    private Framework m_framework;
+
+    public EmbeddedPlatform(File storage) {
+        m_storage = storage;
+    }
+
+    public void start() throws Exception {
+        List<File> files = readDefinition(
+                new File(System.getProperty(DEFINITION_PROPERTY, "platform-equinox.xml")),
+                System.getProperty(PROFILE_PROPERTY, "minimal"),
+                getRepository());
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, m_storage.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        config.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, SYSTEM_PACKAGES_EXTRA);
+        FrameworkFactory factory = ServiceLoader.load(FrameworkFactory.class).iterator().next();
+        m_framework = factory.newFramework(config);
+        m_framework.start();
+
+        BundleContext bc = m_framework.getBundleContext();
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (File file : files) {
+            bundles.add(bc.installBundle(file.toURI().toString()));
+        }
+        for (Bundle bundle : bundles) {
+            if (bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null) {
+                bundle.start();
+            }
+        }
+    }
+
+    public void stop() throws Exception {
+        if (m_framework != null) {
+            m_framework.stop();
+            m_framework.waitForStop(SERVICE_TIMEOUT);
+            m_framework = null;
+        }
+        delete(m_storage);
+    }
+
+    /**
+     * Returns the context of the system bundle, in the root region.
+     */
+    public BundleContext getBundleContext() {
+        return m_framework.getBundleContext();
+    }
+
+    public EventAdmin getEventAdmin() throws InterruptedException {
+        return waitForService(EventAdmin.class);
+    }
+
+    public Subsystem getRootSubsystem() throws InterruptedException {
+        return waitForService(Subsystem.class);
+    }
+
+    /**
+     * Installs and starts a bundle in the root region.
+     */
+    public Bundle installBundle(String location, byte[] content) throws Exception {
+        Bundle bundle = m_framework.getBundleContext().installBundle(location, new ByteArrayInputStream(content));
+        bundle.start();
+        return bundle;
+    }
+
+    /**
+     * Installs and starts a bundle of the local repository in the root region.
+     */
+    public Bundle installArtifact(String url) throws Exception {
+        Bundle bundle = m_framework.getBundleContext().installBundle(
+                resolve(url, getRepository()).toURI().toString());
+        bundle.start();
+        return bundle;
+    }
+
+    /**
+     * Installs and starts a child subsystem of the root subsystem.
+     */
+    public Subsystem installSubsystem(String location, byte[] content) throws Exception {
+        Subsystem subsystem = getRootSubsystem().install(location, new ByteArrayInputStream(content));
+        subsystem.start();
+        return subsystem;
+    }
+
+    private <S> S waitForService(Class<S> type) throws InterruptedException {
+        // the first registered service of the type, which for subsystems is the root
+        ServiceTracker<S, S> tracker = new ServiceTracker<S, S>(m_framework.getBundleContext(), type, null);
+        tracker.open();
+        try {
+            S service = tracker.waitForService(SERVICE_TIMEOUT);
+            if (service == null) {
+                throw new IllegalStateException("Service not available: " + type.getName());
+            }
+            return service;
+        } finally {
+            tracker.close();
+        }
+    }
+
+    /**
+     * Returns the bundle files of a profile, including the profiles it extends, in
+     * installation order.
+     */
+    static List<File> readDefinition(File definition, String profile, File repository) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(definition);
+        Map<String, Element> profiles = new HashMap<String, Element>();
+        NodeList profileElements = document.getElementsByTagName("profile");
+        for (int i = 0; i < profileElements.getLength(); i++) {
+            Element element = (Element) profileElements.item(i);
+            profiles.put(element.getAttribute("name"), element);
+        }
+
+        LinkedList<Element> chain = new LinkedList<Element>();
+        for (String name = profile; name.length() > 0; ) {
+            Element element = profiles.get(name);
+            if (element == null) {
+                throw new IllegalArgumentException("Unknown profile: " + name);
+            }
+            chain.addFirst(element);
+            name = element.getAttribute("extends");
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (Element element : chain) {
+            NodeList urls = element.getElementsByTagName("url");
+            for (int i = 0; i < urls.getLength(); i++) {
+                files.add(resolve(urls.item(i).getTextContent().trim(), repository));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Maps a <code>mvn:group/artifact/version[/type[/classifier]]</code> URL to the
+     * artifact in the local repository.
+     */
+    static File resolve(String url, File repository) {
+        if (!url.startsWith("mvn:")) {
+            throw new IllegalArgumentException("Unsupported bundle URL: " + url);
+        }
+        String[] parts = url.substring("mvn:".length()).split("/");
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Invalid bundle URL: " + url);
+        }
+        String type = parts.length > 3 && parts[3].length() > 0 ? parts[3] : "jar";
+        String classifier = parts.length > 4 ? "-" + parts[4] : "";
+        File file = new File(repository, parts[0].replace('.', '/') + "/" + parts[1] + "/" + parts[2]
+                + "/" + parts[1] + "-" + parts[2] + classifier + "." + type);
+        if (!file.isFile()) {
+            throw new IllegalStateException("Not in the local repository: " + url + " (" + file + ")");
+        }
+        return file;
+    }
+
+    private static File getRepository() {
+        return new File(System.getProperty(REPOSITORY_PROPERTY,
+                System.getProperty("user.home") + "/.m2/repository"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
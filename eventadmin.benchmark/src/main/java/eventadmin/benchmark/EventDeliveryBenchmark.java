@@ -0,0 +1,100 @@
+package eventadmin.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of EventAdmin delivery from the root region to handlers in the same region, in a
+ * composite subsystem exporting them with <code>Subsystem-ExportService</code>, and in a
+ * composite subsystem not exporting them (no delivery, only the isolation check).
+ * <p/>
+ * Each event topic is subscribed by <code>handlers / topics</code> handlers. Throughput
+ * and sample time are reported for synchronous <code>sendEvent</code> and for
+ * <code>postEvent</code> up to the delivery to the last handler.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventDeliveryBenchmark {
+    private static final long DELIVERY_TIMEOUT = 10;
+
+    @Param({"same", "exported", "unrelated"})
+    public String region;
+
+    @Param({"1", "10", "100"})
+    public int handlers;
+
+    @Param({"1", "10"})
+    public int topics;
+
+    private EmbeddedPlatform m_platform;
+    private EventAdmin m_eventAdmin;
+    private Event[] m_events;
+    // the number of handlers the isolation lets receive an event of each topic
+    private long[] m_deliveries;
+    private int m_next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File storage = File.createTempFile("eventadmin-benchmark", "");
+        storage.delete();
+        m_platform = new EmbeddedPlatform(storage);
+        m_platform.start();
+        m_eventAdmin = m_platform.getEventAdmin();
+
+        String name = "eventadmin.benchmark.handlers." + region;
+        byte[] bundle = HandlerArchives.createBundle(name, handlers, topics);
+        if ("same".equals(region)) {
+            m_platform.installBundle(name, bundle);
+        } else if ("exported".equals(region) || "unrelated".equals(region)) {
+            m_platform.installSubsystem(name + ".esa", HandlerArchives.createSubsystem(
+                    name + ".subsystem", name, bundle, "exported".equals(region)));
+        } else {
+            throw new IllegalArgumentException("Unknown region: " + region);
+        }
+
+        m_events = new Event[topics];
+        m_deliveries = new long[topics];
+        for (int i = 0; i < topics; i++) {
+            m_events[i] = new Event(HandlerActivator.getTopic(i), new HashMap<String, Object>());
+            long before = CountingHandler.getDelivered();
+            m_eventAdmin.sendEvent(m_events[i]);
+            m_deliveries[i] = CountingHandler.getDelivered() - before;
+        }
+        System.out.println("Deliveries per event (" + region + "): " + m_deliveries[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        m_platform.stop();
+    }
+
+    @Benchmark
+    public void sendEvent() {
+        m_eventAdmin.sendEvent(m_events[nextTopic()]);
+    }
+
+    @Benchmark
+    public void postEvent() {
+        int topic = nextTopic();
+        long target = CountingHandler.getDelivered() + m_deliveries[topic];
+        m_eventAdmin.postEvent(m_events[topic]);
+        CountingHandler.await(target, DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private int nextTopic() {
+        // the benchmarks are single threaded, the cursor needs no synchronization
+        int topic = m_next;
+        m_next = topic + 1 == m_events.length ? 0 : topic + 1;
+        return topic;
+    }
+}
@@ -0,0 +1,57 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Activator of the generated handler bundles. The bundles contain no classes, the
+ * activator is imported from the system bundle and configured by manifest headers.
+ */
+public class HandlerActivator implements BundleActivator {
+    public static final String HANDLERS_HEADER = "Benchmark-Handlers";
+    public static final String TOPICS_HEADER = "Benchmark-Topics";
+    public static final String TOPIC_PROPERTY_HEADER = "Benchmark-Topic-Property";
+    public static final String WILDCARD_HEADER = "Benchmark-Wildcard";
+
+    private static final String TOPIC_PREFIX = "benchmark/topic";
+
+    /**
+     * Registers the configured number of handlers, spread round robin over the topics.
+     * The handlers subscribe to the topics themselves or, if wildcards are configured, to
+     * all topics below them.
+     */
+    public void start(BundleContext bc) throws Exception {
+        Dictionary<String, String> headers = bc.getBundle().getHeaders();
+        int handlers = Integer.parseInt(headers.get(HANDLERS_HEADER).trim());
+        int topics = Integer.parseInt(headers.get(TOPICS_HEADER).trim());
+        String topicProperty = headers.get(TOPIC_PROPERTY_HEADER);
+        if (topicProperty == null) {
+            topicProperty = EventConstants.EVENT_TOPIC;
+        }
+        String suffix = Boolean.valueOf(headers.get(WILDCARD_HEADER)) ? "/*" : "";
+        for (int i = 0; i < handlers; i++) {
+            Hashtable<String, Object> props = new Hashtable<String, Object>();
+            props.put(topicProperty, getTopic(i % topics) + suffix);
+            bc.registerService(EventHandler.class, new CountingHandler(), props);
+        }
+    }
+
+    public void stop(BundleContext bc) throws Exception {
+    }
+
+    public static String getTopic(int index) {
+        return TOPIC_PREFIX + index;
+    }
+
+    /**
+     * Returns the filter of <code>Subsystem-ExportService</code> matching all handlers.
+     */
+    public static String getExportFilter() {
+        return "(" + EventConstants.EVENT_TOPIC + "=" + TOPIC_PREFIX + "*)";
+    }
+}
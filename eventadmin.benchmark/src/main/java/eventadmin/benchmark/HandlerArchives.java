@@ -0,0 +1,96 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the handler bundles and the composite subsystem archives around them in memory.
+ */
+public final class HandlerArchives {
+    private static final String VERSION = "1.0.0";
+
+    private static final String IMPORTS =
+            "org.osgi.framework,org.osgi.service.event," + HandlerActivator.class.getPackage().getName();
+
+    private HandlerArchives() {
+    }
+
+    /**
+     * Returns a bundle registering <code>handlers</code> {@link CountingHandler}s over
+     * <code>topics</code> topics.
+     */
+    public static byte[] createBundle(String symbolicName, int handlers, int topics) throws IOException {
+        return createBundle(symbolicName, handlers, topics, null, false);
+    }
+
+    /**
+     * Returns a bundle registering <code>handlers</code> {@link CountingHandler}s over
+     * <code>topics</code> topics, with the topics in a service property other than
+     * <code>event.topics</code> if <code>topicProperty</code> is set.
+     */
+    public static byte[] createBundle(String symbolicName, int handlers, int topics, String topicProperty,
+                                      boolean wildcard) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(Constants.BUNDLE_VERSION, VERSION);
+        attributes.putValue(Constants.BUNDLE_ACTIVATOR, HandlerActivator.class.getName());
+        attributes.putValue(Constants.IMPORT_PACKAGE, IMPORTS);
+        attributes.putValue(HandlerActivator.HANDLERS_HEADER, Integer.toString(handlers));
+        attributes.putValue(HandlerActivator.TOPICS_HEADER, Integer.toString(topics));
+        if (topicProperty != null) {
+            attributes.putValue(HandlerActivator.TOPIC_PROPERTY_HEADER, topicProperty);
+        }
+        attributes.putValue(HandlerActivator.WILDCARD_HEADER, Boolean.toString(wildcard));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream(bytes, manifest);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns a composite subsystem containing one bundle, exporting its event handlers
+     * to the parent region if <code>exportHandlers</code> is set.
+     */
+    public static byte[] createSubsystem(String symbolicName, String bundleSymbolicName, byte[] bundle,
+                                         boolean exportHandlers) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Subsystem-ManifestVersion", "1");
+        attributes.putValue("Subsystem-SymbolicName", symbolicName);
+        attributes.putValue("Subsystem-Version", VERSION);
+        attributes.putValue("Subsystem-Type", "osgi.subsystem.composite");
+        attributes.putValue("Subsystem-Content",
+                bundleSymbolicName + ";type=osgi.bundle;version=\"[" + VERSION + "," + VERSION + "]\"");
+        attributes.putValue(Constants.IMPORT_PACKAGE, IMPORTS);
+        if (exportHandlers) {
+            attributes.putValue("Subsystem-ExportService", "org.osgi.service.event.EventHandler;filter:=\""
+                    + HandlerActivator.getExportFilter() + "\"");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            out.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            manifest.write(out);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry(bundleSymbolicName + ".jar"));
+            out.write(bundle);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,36 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Activator of the generated scale test bundles. Like {@link HandlerActivator} it is
+ * imported from the system bundle and configured by manifest headers; it registers one
+ * {@link ScaleProbe} as event handler and as marker service.
+ */
+public class ScaleActivator implements BundleActivator {
+    public static final String SUBSYSTEM_HEADER = "Scale-Subsystem";
+    public static final String TOPIC_HEADER = "Scale-Topic";
+
+    public void start(BundleContext bc) throws Exception {
+        Dictionary<String, String> headers = bc.getBundle().getHeaders();
+        String subsystem = headers.get(SUBSYSTEM_HEADER);
+        String[] classes = {EventHandler.class.getName(), ScaleProbe.class.getName()};
+
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(EventConstants.EVENT_TOPIC, headers.get(TOPIC_HEADER));
+        props.put(ScaleProbe.SUBSYSTEM_PROPERTY, subsystem);
+        Hashtable<String, Object> matched = new Hashtable<String, Object>(props);
+        matched.put(Constants.OBJECTCLASS, classes);
+        bc.registerService(classes, new ScaleProbe(subsystem, matched), props);
+    }
+
+    public void stop(BundleContext bc) throws Exception {
+    }
+}
@@ -0,0 +1,255 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the composite subsystems of the scale test from a template
+ * <code>SUBSYSTEM.MF</code>, e.g. the one of <code>subsystem_2</code>.
+ * <p/>
+ * The headers of the template are kept, except for the symbolic name, the name and the
+ * content, which list the generated bundles. <code>Import-Package</code> and
+ * <code>Subsystem-ExportService</code> replace the headers of the template if they are
+ * given; the benchmark package the bundles need is always imported.
+ */
+public class ScaleArchives {
+    private static final String VERSION = "1.0.0";
+    private static final String PROBE_IMPORTS =
+            "org.osgi.framework,org.osgi.service.event," + ScaleActivator.class.getPackage().getName();
+
+    private final Map<String, String> m_headers;
+    private final String m_topic;
+    private final List<Filter> m_exports = new ArrayList<Filter>();
+
+    /**
+     * @param template      the template subsystem manifest
+     * @param importPackage <code>Import-Package</code> of the subsystems, <code>null</code>
+     *                      for the one of the template
+     * @param exportService <code>Subsystem-ExportService</code> of the subsystems,
+     *                      <code>null</code> for the one of the template, empty for none
+     * @param topic         <code>event.topics</code> of the generated handlers
+     */
+    public ScaleArchives(File template, String importPackage, String exportService, String topic)
+            throws IOException, InvalidSyntaxException {
+        m_headers = readHeaders(template);
+        m_topic = topic;
+        if (importPackage == null) {
+            importPackage = m_headers.get(Constants.IMPORT_PACKAGE);
+        }
+        m_headers.put(Constants.IMPORT_PACKAGE, importPackage == null || importPackage.length() == 0
+                ? PROBE_IMPORTS : importPackage + "," + ScaleActivator.class.getPackage().getName());
+        if (exportService == null) {
+            exportService = m_headers.get(SubsystemConstants.SUBSYSTEM_EXPORTSERVICE);
+        }
+        if (exportService == null || exportService.length() == 0) {
+            m_headers.remove(SubsystemConstants.SUBSYSTEM_EXPORTSERVICE);
+        } else {
+            m_headers.put(SubsystemConstants.SUBSYSTEM_EXPORTSERVICE, exportService);
+            for (String clause : split(exportService, ',')) {
+                m_exports.add(createFilter(clause));
+            }
+        }
+    }
+
+    /**
+     * Returns whether a service registered with the given properties is exported to the
+     * parent region by the <code>Subsystem-ExportService</code> header.
+     */
+    public boolean isExported(Dictionary<String, ?> properties) {
+        for (Filter filter : m_exports) {
+            if (filter.match(properties)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a registered service is exported to the parent region.
+     */
+    public boolean isExported(ServiceReference<?> reference) {
+        for (Filter filter : m_exports) {
+            if (filter.match(reference)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the subsystems import services of the parent region, which makes the
+     * services exported by their siblings visible to them.
+     */
+    public boolean isImportingServices() {
+        return m_headers.containsKey(SubsystemConstants.SUBSYSTEM_IMPORTSERVICE);
+    }
+
+    /**
+     * Returns a composite subsystem with <code>bundles</code> bundles, each registering a
+     * {@link ScaleProbe}.
+     */
+    public byte[] createSubsystem(String symbolicName, int bundles) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (Map.Entry<String, String> header : m_headers.entrySet()) {
+            attributes.putValue(header.getKey(), header.getValue());
+        }
+        attributes.putValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, symbolicName);
+        attributes.putValue(SubsystemConstants.SUBSYSTEM_NAME, symbolicName);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < bundles; i++) {
+            if (i > 0) {
+                content.append(',');
+            }
+            content.append(getBundleName(symbolicName, i))
+                    .append(";type=osgi.bundle;version=\"[").append(VERSION).append(',').append(VERSION).append("]\"");
+        }
+        attributes.putValue(SubsystemConstants.SUBSYSTEM_CONTENT, content.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            out.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            manifest.write(out);
+            out.closeEntry();
+            for (int i = 0; i < bundles; i++) {
+                String bundleName = getBundleName(symbolicName, i);
+                out.putNextEntry(new ZipEntry(bundleName + ".jar"));
+                out.write(createBundle(bundleName, symbolicName));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] createBundle(String symbolicName, String subsystem) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(Constants.BUNDLE_VERSION, VERSION);
+        attributes.putValue(Constants.BUNDLE_ACTIVATOR, ScaleActivator.class.getName());
+        attributes.putValue(Constants.IMPORT_PACKAGE, PROBE_IMPORTS);
+        attributes.putValue(ScaleActivator.SUBSYSTEM_HEADER, subsystem);
+        attributes.putValue(ScaleActivator.TOPIC_HEADER, m_topic);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream(bytes, manifest);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns a bundle without content, whose context looks at the services of the region it
+     * is installed in the way the bundles of that region do.
+     */
+    public static byte[] createObserver(String symbolicName) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(Constants.BUNDLE_VERSION, VERSION);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream(bytes, manifest);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String getBundleName(String subsystem, int index) {
+        return subsystem + ".bundle" + index;
+    }
+
+    /**
+     * Reads the headers of a manifest file, joining continuation lines. Unlike
+     * {@link Manifest} it accepts the indented continuation lines of the hand-written
+     * <code>SUBSYSTEM.MF</code> files of this repository.
+     */
+    static Map<String, String> readHeaders(File file) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String name = null;
+            StringBuilder value = new StringBuilder();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.length() > 0 && Character.isWhitespace(line.charAt(0))) {
+                    value.append(line.trim());
+                    continue;
+                }
+                if (name != null) {
+                    headers.put(name, value.toString());
+                }
+                name = null;
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    name = line.substring(0, colon).trim();
+                    value.setLength(0);
+                    value.append(line.substring(colon + 1).trim());
+                }
+            }
+            if (name != null) {
+                headers.put(name, value.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the filter of a <code>Subsystem-ExportService</code> clause, matching the
+     * object class and the <code>filter</code> directive.
+     */
+    private static Filter createFilter(String clause) throws InvalidSyntaxException {
+        List<String> parts = split(clause, ';');
+        String filter = "(" + Constants.OBJECTCLASS + "=" + parts.get(0).trim() + ")";
+        for (String part : parts.subList(1, parts.size())) {
+            part = part.trim();
+            if (part.startsWith("filter:=")) {
+                String value = part.substring("filter:=".length()).trim();
+                if (value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                filter = "(&" + filter + value + ")";
+            }
+        }
+        return FrameworkUtil.createFilter(filter);
+    }
+
+    /**
+     * Splits a header at a separator outside of quotes.
+     */
+    private static List<String> split(String header, char separator) {
+        List<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                parts.add(header.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(header.substring(start));
+        return parts;
+    }
+}
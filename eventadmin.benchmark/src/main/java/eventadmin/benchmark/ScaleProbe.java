@@ -0,0 +1,82 @@
+package eventadmin.benchmark;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event handler and marker service registered by every bundle of the scale test.
+ * <p/>
+ * The class is exported by the system bundle, so the driver sees all probes of all
+ * regions and compares the regions they were delivered events from or are visible in
+ * with what the <code>Subsystem-ExportService</code> header of their subsystem allows.
+ * Only events carrying {@link #SEQUENCE_PROPERTY} are counted.
+ */
+public class ScaleProbe implements EventHandler {
+    public static final String SEQUENCE_PROPERTY = "scale.sequence";
+    public static final String SUBSYSTEM_PROPERTY = "scale.subsystem";
+
+    private static final Collection<ScaleProbe> PROBES = new ConcurrentLinkedQueue<ScaleProbe>();
+    private static final AtomicLong DELIVERED = new AtomicLong();
+
+    private final String m_subsystem;
+    private final Dictionary<String, ?> m_properties;
+    private final AtomicLong m_delivered = new AtomicLong();
+
+    public ScaleProbe(String subsystem, Dictionary<String, ?> properties) {
+        m_subsystem = subsystem;
+        m_properties = properties;
+        PROBES.add(this);
+    }
+
+    public void handleEvent(Event event) {
+        if (event.getProperty(SEQUENCE_PROPERTY) != null) {
+            m_delivered.incrementAndGet();
+            DELIVERED.incrementAndGet();
+        }
+    }
+
+    public String getSubsystem() {
+        return m_subsystem;
+    }
+
+    /**
+     * Returns the properties the probe is registered with, including its object classes.
+     */
+    public Dictionary<String, ?> getProperties() {
+        return m_properties;
+    }
+
+    public long getDelivered() {
+        return m_delivered.get();
+    }
+
+    public static Collection<ScaleProbe> getProbes() {
+        return PROBES;
+    }
+
+    public static long getTotalDelivered() {
+        return DELIVERED.get();
+    }
+
+    /**
+     * Waits until the number of deliveries to all probes reaches a target.
+     *
+     * @return <code>false</code> if the target is not reached within the timeout
+     */
+    public static boolean await(long target, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (DELIVERED.get() < target) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+}
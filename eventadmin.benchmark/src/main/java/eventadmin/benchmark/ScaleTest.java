@@ -0,0 +1,228 @@
+package eventadmin.benchmark;
+
+import org.osgi.framework.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs growing numbers of generated composite subsystems into an embedded platform
+ * and reports, per step, the install, resolve and start time per subsystem, the latency
+ * of <code>postEvent</code> up to the last handler allowed to receive it, and the probes
+ * that are visible or receive events across a region boundary the subsystem manifest does
+ * not open.
+ * <p/>
+ * Configured by system properties:
+ * <ul>
+ * <li><code>scale.counts</code>: subsystem counts of the steps, <code>10,50,100,250,500</code>
+ * by default.</li>
+ * <li><code>scale.bundles</code>: bundles per subsystem, 2 by default.</li>
+ * <li><code>scale.template</code>: template manifest,
+ * <code>subsystem_2/src/main/custom/SUBSYSTEM.MF</code> by default.</li>
+ * <li><code>scale.importPackage</code>: <code>Import-Package</code> of the subsystems,
+ * <code>org.osgi.framework,org.osgi.service.event</code> by default.</li>
+ * <li><code>scale.exportService</code>: <code>Subsystem-ExportService</code> of the
+ * subsystems, the one of the template by default, empty for none.</li>
+ * <li><code>scale.topic</code>: <code>event.topics</code> of the handlers,
+ * <code>org/osgi/framework/ServiceEvent/*</code> (the topics exported by subsystem 2) by
+ * default.</li>
+ * <li><code>scale.events</code>: events posted per step, 100 by default.</li>
+ * </ul>
+ * Run from the root directory with
+ * <code>java -cp eventadmin.benchmark/target/eventadmin.benchmark-1.0.0-SNAPSHOT.jar eventadmin.benchmark.ScaleTest</code>.
+ */
+public class ScaleTest {
+    private static final long DELIVERY_TIMEOUT = 10;
+    private static final String NAME_PREFIX = "scale.subsystem";
+    private static final String OBSERVER = "scale.observer";
+
+    private final EmbeddedPlatform m_platform;
+    private final ScaleArchives m_archives;
+    private final int m_bundles;
+    private final int m_events;
+    private final Event m_event;
+    private final List<Subsystem> m_subsystems = new ArrayList<Subsystem>();
+    // the time each subsystem reached RESOLVED, by ID
+    private final ConcurrentMap<Long, Long> m_resolved = new ConcurrentHashMap<Long, Long>();
+    // a bundle of the root region; the system bundle is exempt from region filtering
+    private Bundle m_observer;
+
+    public ScaleTest(EmbeddedPlatform platform, ScaleArchives archives, int bundles, int events, String topic) {
+        m_platform = platform;
+        m_archives = archives;
+        m_bundles = bundles;
+        m_events = events;
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(ScaleProbe.SEQUENCE_PROPERTY, 0L);
+        m_event = new Event(topic.endsWith("/*") ? topic.substring(0, topic.length() - 1) + "SCALE" : topic, props);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String topic = System.getProperty("scale.topic", "org/osgi/framework/ServiceEvent/*");
+        ScaleArchives archives = new ScaleArchives(
+                new File(System.getProperty("scale.template", "subsystem_2/src/main/custom/SUBSYSTEM.MF")),
+                System.getProperty("scale.importPackage", "org.osgi.framework,org.osgi.service.event"),
+                System.getProperty("scale.exportService"),
+                topic);
+        int bundles = Integer.getInteger("scale.bundles", 2);
+        int events = Integer.getInteger("scale.events", 100);
+
+        File storage = File.createTempFile("scale-test", "");
+        storage.delete();
+        EmbeddedPlatform platform = new EmbeddedPlatform(storage);
+        platform.start();
+        try {
+            ScaleTest test = new ScaleTest(platform, archives, bundles, events, topic);
+            test.open();
+            System.out.printf("%10s %8s %12s %12s %12s %12s %12s %10s %10s %10s %10s%n",
+                    "subsystems", "bundles", "install(ms)", "resolve(ms)", "start(ms)", "latency(us)", "max(us)",
+                    "root-leak", "peer-leak", "event-leak", "missing");
+            for (String count : System.getProperty("scale.counts", "10,50,100,250,500").split(",")) {
+                test.step(Integer.parseInt(count.trim()));
+            }
+        } finally {
+            platform.stop();
+        }
+    }
+
+    private void open() throws Exception {
+        m_observer = m_platform.installBundle(OBSERVER, ScaleArchives.createObserver(OBSERVER));
+        m_platform.getBundleContext().addServiceListener(new ServiceListener() {
+            public void serviceChanged(ServiceEvent event) {
+                Object id = event.getServiceReference().getProperty(SubsystemConstants.SUBSYSTEM_ID_PROPERTY);
+                if (id instanceof Long) {
+                    m_resolved.putIfAbsent((Long) id, System.nanoTime());
+                }
+            }
+        }, "(&(" + Constants.OBJECTCLASS + "=" + Subsystem.class.getName() + ")("
+                + SubsystemConstants.SUBSYSTEM_STATE_PROPERTY + "=" + Subsystem.State.RESOLVED + "))");
+    }
+
+    /**
+     * Installs and starts subsystems up to <code>count</code>, then measures and prints
+     * one line of the report.
+     */
+    private void step(int count) throws Exception {
+        int first = m_subsystems.size();
+        if (count <= first) {
+            return;
+        }
+        Subsystem root = m_platform.getRootSubsystem();
+        long install = 0;
+        for (int i = first; i < count; i++) {
+            String name = NAME_PREFIX + i;
+            byte[] archive = m_archives.createSubsystem(name, m_bundles);
+            long start = System.nanoTime();
+            m_subsystems.add(root.install(name + ".esa", new ByteArrayInputStream(archive)));
+            install += System.nanoTime() - start;
+        }
+        long resolve = 0;
+        long started = 0;
+        for (Subsystem subsystem : m_subsystems.subList(first, count)) {
+            long start = System.nanoTime();
+            subsystem.start();
+            long end = System.nanoTime();
+            Long resolved = m_resolved.get(subsystem.getSubsystemId());
+            if (resolved != null && resolved >= start && resolved <= end) {
+                resolve += resolved - start;
+                started += end - resolved;
+            } else {
+                started += end - start;
+            }
+        }
+        int added = count - first;
+
+        long[] latency = postEvents();
+        int[] leaks = checkServices();
+        System.out.printf("%10d %8d %12.2f %12.2f %12.2f %12.1f %12.1f %10d %10d %10d %10d%n",
+                count, count * m_bundles,
+                install / 1e6 / added, resolve / 1e6 / added, started / 1e6 / added,
+                latency[0] / 1e3, latency[1] / 1e3, leaks[0], leaks[1], latency[2], latency[3]);
+    }
+
+    /**
+     * Posts the events of a step one by one, each up to its delivery to all exported
+     * probes.
+     *
+     * @return the mean and maximum latency in nanoseconds, the deliveries to probes that
+     *         are not exported and the exported probes that missed an event
+     */
+    private long[] postEvents() throws InterruptedException {
+        EventAdmin eventAdmin = m_platform.getEventAdmin();
+        long expected = 0;
+        for (ScaleProbe probe : ScaleProbe.getProbes()) {
+            if (m_archives.isExported(probe.getProperties())) {
+                expected++;
+            }
+        }
+        Map<ScaleProbe, Long> before = new HashMap<ScaleProbe, Long>();
+        for (ScaleProbe probe : ScaleProbe.getProbes()) {
+            before.put(probe, probe.getDelivered());
+        }
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < m_events; i++) {
+            long target = ScaleProbe.getTotalDelivered() + expected;
+            long start = System.nanoTime();
+            eventAdmin.postEvent(m_event);
+            if (!ScaleProbe.await(target, DELIVERY_TIMEOUT, TimeUnit.SECONDS)) {
+                System.err.println("Events not delivered within " + DELIVERY_TIMEOUT + "s");
+            }
+            long latency = System.nanoTime() - start;
+            total += latency;
+            max = Math.max(max, latency);
+        }
+
+        long leaked = 0;
+        long missing = 0;
+        for (Map.Entry<ScaleProbe, Long> entry : before.entrySet()) {
+            long delivered = entry.getKey().getDelivered() - entry.getValue();
+            if (!m_archives.isExported(entry.getKey().getProperties())) {
+                leaked += delivered;
+            } else if (delivered < m_events) {
+                missing++;
+            }
+        }
+        return new long[]{m_events > 0 ? total / m_events : 0, max, leaked, missing};
+    }
+
+    /**
+     * Counts the probes visible in the root region although their subsystem does not
+     * export them, and the probes of other subsystems visible in the first generated
+     * subsystem although it imports no services.
+     */
+    private int[] checkServices() throws InvalidSyntaxException {
+        int rootLeaks = 0;
+        ServiceReference<?>[] references = m_observer.getBundleContext().getServiceReferences(
+                ScaleProbe.class.getName(), null);
+        if (references != null) {
+            for (ServiceReference<?> reference : references) {
+                if (!m_archives.isExported(reference)) {
+                    rootLeaks++;
+                }
+            }
+        }
+
+        int peerLeaks = 0;
+        if (!m_archives.isImportingServices()) {
+            Subsystem own = m_subsystems.get(0);
+            references = own.getBundleContext().getServiceReferences(ScaleProbe.class.getName(), null);
+            if (references != null) {
+                for (ServiceReference<?> reference : references) {
+                    if (!own.getSymbolicName().equals(reference.getProperty(ScaleProbe.SUBSYSTEM_PROPERTY))) {
+                        peerLeaks++;
+                    }
+                }
+            }
+        }
+        return new int[]{rootLeaks, peerLeaks};
+    }
+}
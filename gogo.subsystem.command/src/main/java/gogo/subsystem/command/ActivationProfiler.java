@@ -0,0 +1,317 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Resource;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records when the bundles of a subsystem are resolved, activated and register services
+ * while the subsystem starts.
+ * <p/>
+ * The listeners are registered on the region context of the subsystem and are
+ * synchronous, so a timestamp is taken on the thread that resolves or starts the bundle,
+ * before the framework carries on. Only the bundles that are constituents of the
+ * subsystem when profiling ends are reported.
+ */
+public class ActivationProfiler implements SynchronousBundleListener, ServiceListener {
+    public enum Kind {
+        RESOLVED, STARTING, LAZY_ACTIVATION, STARTED, SERVICE
+    }
+
+    private final Subsystem m_subsystem;
+    private final BundleContext m_context;
+    private final Queue<Entry> m_entries = new ConcurrentLinkedQueue<Entry>();
+    private long m_origin;
+    private long m_end;
+
+    public ActivationProfiler(Subsystem subsystem) {
+        m_subsystem = subsystem;
+        m_context = subsystem.getBundleContext();
+    }
+
+    public void open() {
+        m_origin = System.nanoTime();
+        m_context.addBundleListener(this);
+        m_context.addServiceListener(this);
+    }
+
+    public void close() {
+        m_end = System.nanoTime();
+        try {
+            m_context.removeBundleListener(this);
+            m_context.removeServiceListener(this);
+        } catch (IllegalStateException e) {
+            // the region context is no longer valid
+        }
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        Kind kind;
+        switch (event.getType()) {
+            case BundleEvent.RESOLVED:
+                kind = Kind.RESOLVED;
+                break;
+            case BundleEvent.STARTING:
+                kind = Kind.STARTING;
+                break;
+            case BundleEvent.LAZY_ACTIVATION:
+                kind = Kind.LAZY_ACTIVATION;
+                break;
+            case BundleEvent.STARTED:
+                kind = Kind.STARTED;
+                break;
+            default:
+                return;
+        }
+        m_entries.add(new Entry(System.nanoTime(), event.getBundle(), kind, null));
+    }
+
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.REGISTERED) {
+            ServiceReference<?> reference = event.getServiceReference();
+            Object classes = reference.getProperty(Constants.OBJECTCLASS);
+            m_entries.add(new Entry(System.nanoTime(), reference.getBundle(), Kind.SERVICE,
+                    classes instanceof String[] ? Arrays.toString((String[]) classes) : String.valueOf(classes)));
+        }
+    }
+
+    /**
+     * Returns the recorded entries of the constituent bundles, ordered by time.
+     */
+    public List<Entry> getTimeline() {
+        Set<Long> constituents = new HashSet<Long>();
+        Collection<Resource> resources = m_subsystem.getConstituents();
+        if (resources != null) {
+            for (Resource resource : resources) {
+                if (resource instanceof BundleRevision) {
+                    constituents.add(((BundleRevision) resource).getBundle().getBundleId());
+                }
+            }
+        }
+        List<Entry> timeline = new ArrayList<Entry>();
+        for (Entry entry : m_entries) {
+            if (constituents.contains(entry.m_bundleId)) {
+                timeline.add(entry);
+            }
+        }
+        Collections.sort(timeline);
+        return timeline;
+    }
+
+    /**
+     * Returns the activations (<code>STARTING</code> to <code>STARTED</code>) per bundle.
+     */
+    public List<Activation> getActivations(List<Entry> timeline) {
+        Map<Long, Activation> activations = new LinkedHashMap<Long, Activation>();
+        for (Entry entry : timeline) {
+            Activation activation = activations.get(entry.m_bundleId);
+            if (activation == null) {
+                activation = new Activation(entry.m_bundleId, entry.m_bundleName);
+                activations.put(entry.m_bundleId, activation);
+            }
+            switch (entry.m_kind) {
+                case RESOLVED:
+                    activation.m_resolved = entry.m_nanos;
+                    break;
+                case STARTING:
+                    activation.m_starting = entry.m_nanos;
+                    activation.m_threadId = entry.m_threadId;
+                    break;
+                case STARTED:
+                    activation.m_started = entry.m_nanos;
+                    break;
+                case SERVICE:
+                    activation.m_services++;
+                    break;
+                default:
+            }
+        }
+        return new ArrayList<Activation>(activations.values());
+    }
+
+    /**
+     * Returns the chain of activations that determined when the subsystem was started:
+     * starting from the activation that ended last, the activation that ended last before
+     * the current one began, and so on. Gaps between them are spent outside activators.
+     */
+    public List<Activation> getCriticalPath(List<Activation> activations) {
+        LinkedList<Activation> path = new LinkedList<Activation>();
+        long before = Long.MAX_VALUE;
+        while (true) {
+            Activation last = null;
+            for (Activation activation : activations) {
+                if (activation.isComplete() && activation.m_started <= before
+                        && (last == null || activation.m_started > last.m_started)) {
+                    last = activation;
+                }
+            }
+            if (last == null || path.contains(last)) {
+                return path;
+            }
+            path.addFirst(last);
+            before = last.m_starting;
+        }
+    }
+
+    public long getOrigin() {
+        return m_origin;
+    }
+
+    public long getDurationNanos() {
+        return m_end - m_origin;
+    }
+
+    /**
+     * Writes the timeline in the Chrome trace event format, for <code>chrome://tracing</code>
+     * or Perfetto: activations as complete events on the thread that ran them, resolve and
+     * service registrations as instant events.
+     */
+    public void writeTrace(OutputSink out, List<Entry> timeline, List<Activation> activations) {
+        out.println("{\"traceEvents\":[");
+        out.print("{\"name\":").print(quote("start subsystem " + m_subsystem.getSubsystemId()))
+                .print(",\"cat\":\"subsystem\",\"ph\":\"X\",\"ts\":0,\"dur\":")
+                .print(String.valueOf(toMicros(getDurationNanos())))
+                .print(",\"pid\":1,\"tid\":0}");
+        for (Activation activation : activations) {
+            if (activation.isComplete()) {
+                out.println(",");
+                out.print("{\"name\":").print(quote(activation.getBundleName()))
+                        .print(",\"cat\":\"activation\",\"ph\":\"X\",\"ts\":")
+                        .print(String.valueOf(toMicros(activation.m_starting - m_origin)))
+                        .print(",\"dur\":").print(String.valueOf(toMicros(activation.getActivationNanos())))
+                        .print(",\"pid\":1,\"tid\":").print(String.valueOf(activation.m_threadId))
+                        .print(",\"args\":{\"bundle\":").print(String.valueOf(activation.getBundleId()))
+                        .print(",\"services\":").print(String.valueOf(activation.getServices())).print("}}");
+            }
+        }
+        for (Entry entry : timeline) {
+            if (entry.m_kind == Kind.RESOLVED || entry.m_kind == Kind.SERVICE
+                    || entry.m_kind == Kind.LAZY_ACTIVATION) {
+                out.println(",");
+                out.print("{\"name\":").print(quote(entry.m_kind + " " + entry.m_bundleName))
+                        .print(",\"cat\":").print(quote(entry.m_kind.name().toLowerCase()))
+                        .print(",\"ph\":\"i\",\"s\":\"t\",\"ts\":")
+                        .print(String.valueOf(toMicros(entry.m_nanos - m_origin)))
+                        .print(",\"pid\":1,\"tid\":").print(String.valueOf(entry.m_threadId));
+                if (entry.m_detail != null) {
+                    out.print(",\"args\":{\"objectClass\":").print(quote(entry.m_detail)).print("}");
+                }
+                out.print("}");
+            }
+        }
+        out.println();
+        out.println("],\"displayTimeUnit\":\"ms\"}");
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static class Entry implements Comparable<Entry> {
+        private final long m_nanos;
+        private final long m_threadId = Thread.currentThread().getId();
+        private final long m_bundleId;
+        private final String m_bundleName;
+        private final Kind m_kind;
+        private final String m_detail;
+
+        Entry(long nanos, Bundle bundle, Kind kind, String detail) {
+            m_nanos = nanos;
+            m_bundleId = bundle != null ? bundle.getBundleId() : -1;
+            m_bundleName = bundle != null ? String.valueOf(bundle.getSymbolicName()) : "?";
+            m_kind = kind;
+            m_detail = detail;
+        }
+
+        public long getNanos() {
+            return m_nanos;
+        }
+
+        public long getBundleId() {
+            return m_bundleId;
+        }
+
+        public String getBundleName() {
+            return m_bundleName;
+        }
+
+        public Kind getKind() {
+            return m_kind;
+        }
+
+        public String getDetail() {
+            return m_detail;
+        }
+
+        public int compareTo(Entry other) {
+            return m_nanos < other.m_nanos ? -1 : m_nanos == other.m_nanos ? 0 : 1;
+        }
+    }
+
+    public static class Activation {
+        private final long m_bundleId;
+        private final String m_bundleName;
+        private long m_resolved = -1;
+        private long m_starting = -1;
+        private long m_started = -1;
+        private long m_threadId;
+        private int m_services;
+
+        Activation(long bundleId, String bundleName) {
+            m_bundleId = bundleId;
+            m_bundleName = bundleName;
+        }
+
+        public long getBundleId() {
+            return m_bundleId;
+        }
+
+        public String getBundleName() {
+            return m_bundleName;
+        }
+
+        public boolean isComplete() {
+            return m_starting >= 0 && m_started >= m_starting;
+        }
+
+        public long getActivationNanos() {
+            return isComplete() ? m_started - m_starting : -1;
+        }
+
+        /**
+         * Returns the time from resolution to the start of activation, or -1 if the
+         * bundle was resolved before profiling.
+         */
+        public long getWaitNanos() {
+            return m_resolved >= 0 && m_starting >= m_resolved ? m_starting - m_resolved : -1;
+        }
+
+        public long getStarting() {
+            return m_starting;
+        }
+
+        public int getServices() {
+            return m_services;
+        }
+    }
+}
@@ -3,25 +3,81 @@ package gogo.subsystem.command;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
+import java.io.File;
 import java.util.Hashtable;
 
 public class Activator implements BundleActivator {
+    private SubsystemIndex m_index;
+    private WiringGraphCache m_graphs;
+    private MetricsCollector m_collector;
+    private HeaderCache m_headers;
+    private BundleNameIndex m_bundleNames;
+    private ServiceRegistryIndex m_services;
+    private CapabilityIndex m_capabilities;
+
     public void start(BundleContext bc) throws Exception {
+        m_index = new SubsystemIndex(bc);
+        m_index.open();
+        m_graphs = new WiringGraphCache();
+        m_graphs.open(bc);
+        Metrics metrics = new Metrics();
+        m_collector = new MetricsCollector(bc, metrics);
+        m_collector.open();
+        m_headers = new HeaderCache(bc);
+        m_headers.open();
+        m_bundleNames = new BundleNameIndex();
+        m_bundleNames.open(bc);
+        m_services = new ServiceRegistryIndex();
+        m_services.open(bc);
+        m_capabilities = new CapabilityIndex();
+        EsaCache cache = new EsaCache(getCacheDir(bc), getCacheSize(bc));
+
         Hashtable props = new Hashtable();
         props.put("osgi.command.scope", "sub");
         props.put("osgi.command.function", new String[]{
-                "install", "headers", "ls", "lb", "start", "stop", "uninstall"});
+                "install", "headers", "ls", "lb", "start", "stop", "uninstall", "cache", "index", "stats", "profile"});
         bc.registerService(
-                SubsystemCommands.class.getName(), new SubsystemCommands(bc), props);
+                SubsystemCommands.class.getName(), new SubsystemCommands(bc, m_index, cache, metrics, m_headers, m_bundleNames, m_capabilities), props);
 
         props = new Hashtable();
         props.put("osgi.command.scope", "sub");
         props.put("osgi.command.function", new String[]{
-                "inspect"});
+                "inspect", "users"});
         bc.registerService(
-                InspectCommands.class.getName(), new InspectCommands(bc), props);
+                InspectCommands.class.getName(), new InspectCommands(bc, m_index, m_graphs, m_services), props);
+
+        props = new Hashtable();
+        props.put("osgi.command.scope", "sub");
+        props.put("osgi.command.function", new String[]{
+                "events"});
+        bc.registerService(
+                EventCommands.class.getName(), new EventCommands(bc), props);
     }
 
     public void stop(BundleContext bc) throws Exception {
+        m_capabilities.close();
+        m_services.close();
+        m_bundleNames.close();
+        m_headers.close();
+        m_collector.close();
+        m_graphs.close();
+        m_index.close();
+    }
+
+    private static File getCacheDir(BundleContext bc) {
+        File dir = bc.getDataFile("cache");
+        return dir != null ? dir : new File(System.getProperty("java.io.tmpdir"), "gogo.subsystem.cache");
+    }
+
+    private static long getCacheSize(BundleContext bc) {
+        String size = bc.getProperty(EsaCache.MAX_SIZE_PROPERTY);
+        if (size != null) {
+            try {
+                return Long.parseLong(size.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring " + EsaCache.MAX_SIZE_PROPERTY + "=" + size);
+            }
+        }
+        return EsaCache.DEFAULT_MAX_SIZE;
     }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package gogo.subsystem.command;
+
+import org.osgi.service.subsystem.Subsystem;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Installs a batch of subsystem archives. All archives are fetched concurrently
+ * into the archive cache and pre-scanned by {@link EsaScanner} on a bounded pool, then
+ * installed one after another in the order the locations were given. Every archive stays
+ * pinned in the cache until it is installed or the batch ends.
+ */
+public class BatchInstaller {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final EsaCache m_cache;
+    private final int m_parallel;
+
+    public BatchInstaller(EsaCache cache, int parallel) {
+        m_cache = cache;
+        m_parallel = Math.max(1, parallel);
+    }
+
+    public List<Result> install(Subsystem parent, String[] urls) {
+        List<Result> results = new ArrayList<Result>(urls.length);
+        if (urls.length == 0) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(m_parallel, urls.length), new FetchThreadFactory());
+        List<Future<File>> staged = new ArrayList<Future<File>>(urls.length);
+        try {
+            for (String url : urls) {
+                final Result result = new Result(url.trim());
+                results.add(result);
+                staged.add(executor.submit(new Callable<File>() {
+                    public File call() throws Exception {
+                        long start = System.nanoTime();
+                        File file;
+                        try {
+                            file = m_cache.fetch(result.getLocation());
+                        } finally {
+                            result.m_fetchNanos = System.nanoTime() - start;
+                        }
+                        stage(result, file);
+                        result.m_scanNanos = EsaScanner.scan(file, EsaCache.getDigest(file)).getNanos();
+                        return file;
+                    }
+                }));
+            }
+
+            // Install strictly in the given order, waiting for each archive to be staged.
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                File file;
+                try {
+                    file = staged.get(i).get();
+                } catch (ExecutionException ex) {
+                    result.m_error = ex.getCause();
+                    unstage(result);
+                    continue;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    result.m_error = ex;
+                    break;
+                }
+                try {
+                    result.m_subsystem = installStaged(parent, result, file);
+                } catch (Exception ex) {
+                    result.m_error = ex;
+                } finally {
+                    unstage(result);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // fetches still running release their archive themselves
+            for (Result result : results) {
+                unstage(result);
+            }
+        }
+        return results;
+    }
+
+    private void stage(Result result, File file) {
+        synchronized (result) {
+            if (result.m_done) {
+                m_cache.release(file);
+            } else {
+                result.m_file = file;
+            }
+        }
+    }
+
+    private void unstage(Result result) {
+        synchronized (result) {
+            result.m_done = true;
+            if (result.m_file != null) {
+                m_cache.release(result.m_file);
+                result.m_file = null;
+            }
+        }
+    }
+
+    private Subsystem installStaged(Subsystem parent, Result result, File file) throws IOException {
+        long start = System.nanoTime();
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            return parent.install(result.getLocation(), in);
+        } finally {
+            result.m_installNanos = System.nanoTime() - start;
+            in.close();
+        }
+    }
+
+    public static class Result {
+        private final String m_location;
+        private volatile long m_fetchNanos;
+        private volatile long m_scanNanos;
+        private long m_installNanos;
+        private Subsystem m_subsystem;
+        private Throwable m_error;
+        // the pinned cache file, guarded by the result
+        private File m_file;
+        private boolean m_done;
+
+        Result(String location) {
+            m_location = location;
+        }
+
+        public String getLocation() {
+            return m_location;
+        }
+
+        public long getFetchMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_fetchNanos);
+        }
+
+        public long getScanMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_scanNanos);
+        }
+
+        public long getInstallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_installNanos);
+        }
+
+        public long getInstallNanos() {
+            return m_installNanos;
+        }
+
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_fetchNanos + m_scanNanos + m_installNanos);
+        }
+
+        public Subsystem getSubsystem() {
+            return m_subsystem;
+        }
+
+        public Throwable getError() {
+            return m_error;
+        }
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sub-install-fetch-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+
+import java.util.*;
+
+/**
+ * Trigram index of the names and symbolic names of the bundles of all regions, for case
+ * insensitive substring searches.
+ * <p/>
+ * Every trigram of the lower cased names maps to the IDs of the bundles containing it. A
+ * search takes the smallest posting list among the trigrams of the substring and checks
+ * only those bundles; substrings shorter than three characters check every bundle. The
+ * index listens to the bundle events of the system bundle context, which sees the bundles
+ * of every region, and indexes the unlocalized <code>Bundle-Name</code> unless it has to
+ * be localized.
+ */
+public class BundleNameIndex implements SynchronousBundleListener {
+    private static final long[] NONE = new long[0];
+
+    private final Map<Long, String[]> m_names = new HashMap<Long, String[]>();
+    private final Map<Long, Set<Long>> m_trigrams = new HashMap<Long, Set<Long>>();
+    private BundleContext m_context;
+
+    public void open(BundleContext bc) {
+        m_context = bc.getBundle(0).getBundleContext();
+        m_context.addBundleListener(this);
+        for (Bundle bundle : m_context.getBundles()) {
+            put(bundle);
+        }
+    }
+
+    public void close() {
+        try {
+            m_context.removeBundleListener(this);
+        } catch (IllegalStateException e) {
+            // the framework is stopping
+        }
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+                put(event.getBundle());
+                break;
+            case BundleEvent.UNINSTALLED:
+                remove(event.getBundle().getBundleId());
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Returns the bundles of all regions whose name or symbolic name contains a substring,
+     * ignoring case, ordered by bundle ID. Bundles uninstalled since are skipped.
+     */
+    public List<Bundle> findBundles(String substring) {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (long id : find(substring)) {
+            Bundle bundle = m_context.getBundle(id);
+            if (bundle != null) {
+                bundles.add(bundle);
+            }
+        }
+        return bundles;
+    }
+
+    /**
+     * Returns the IDs of the bundles whose name or symbolic name contains a substring,
+     * ignoring case, in ascending order.
+     */
+    public synchronized long[] find(String substring) {
+        String lowerCase = substring.toLowerCase(Locale.ENGLISH);
+        Collection<Long> candidates = m_names.keySet();
+        for (int i = 0; i + 3 <= lowerCase.length(); i++) {
+            Set<Long> posting = m_trigrams.get(trigram(lowerCase, i));
+            if (posting == null) {
+                return NONE;
+            }
+            if (posting.size() < candidates.size()) {
+                candidates = posting;
+            }
+        }
+        long[] ids = new long[candidates.size()];
+        int count = 0;
+        for (Long id : candidates) {
+            for (String name : m_names.get(id)) {
+                if (name != null && name.contains(lowerCase)) {
+                    ids[count++] = id;
+                    break;
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    public synchronized int size() {
+        return m_names.size();
+    }
+
+    public synchronized void put(long id, String symbolicName, String name) {
+        remove(id);
+        String[] names = {lowerCase(symbolicName), lowerCase(name)};
+        m_names.put(id, names);
+        for (String s : names) {
+            for (int i = 0; s != null && i + 3 <= s.length(); i++) {
+                Long trigram = trigram(s, i);
+                Set<Long> posting = m_trigrams.get(trigram);
+                if (posting == null) {
+                    posting = new HashSet<Long>();
+                    m_trigrams.put(trigram, posting);
+                }
+                posting.add(id);
+            }
+        }
+    }
+
+    public synchronized void remove(long id) {
+        String[] names = m_names.remove(id);
+        if (names == null) {
+            return;
+        }
+        for (String s : names) {
+            for (int i = 0; s != null && i + 3 <= s.length(); i++) {
+                Long trigram = trigram(s, i);
+                Set<Long> posting = m_trigrams.get(trigram);
+                if (posting != null && posting.remove(id) && posting.isEmpty()) {
+                    m_trigrams.remove(trigram);
+                }
+            }
+        }
+    }
+
+    private void put(Bundle bundle) {
+        String name;
+        try {
+            name = bundle.getHeaders("").get(Constants.BUNDLE_NAME);
+            if (name != null && name.startsWith("%")) {
+                name = bundle.getHeaders().get(Constants.BUNDLE_NAME);
+            }
+        } catch (IllegalStateException e) {
+            // uninstalled meanwhile
+            return;
+        }
+        put(bundle.getBundleId(), bundle.getSymbolicName(), name);
+    }
+
+    private static String lowerCase(String s) {
+        return s != null ? s.toLowerCase(Locale.ENGLISH) : null;
+    }
+
+    private static Long trigram(String s, int index) {
+        return ((long) s.charAt(index) << 32) | ((long) s.charAt(index + 1) << 16) | s.charAt(index + 2);
+    }
+}
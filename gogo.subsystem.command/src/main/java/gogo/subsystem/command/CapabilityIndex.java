@@ -0,0 +1,189 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps, per subsystem region, the exported packages and bundle symbolic names of the
+ * bundles visible in the region, for checking requirements without resolving.
+ * <p/>
+ * A region is indexed on first use from the declared capabilities of its bundles, after
+ * that every installed, updated or uninstalled bundle adds or removes only its own
+ * capabilities. Packages a composite imports from its parent are not visible as bundles
+ * of its region and are not indexed.
+ */
+public class CapabilityIndex {
+    private final ConcurrentMap<Long, Region> m_regions = new ConcurrentHashMap<Long, Region>();
+
+    /**
+     * Returns the capability index of the region of a subsystem, or <code>null</code> if the
+     * subsystem has no region context.
+     */
+    public Region get(Subsystem subsystem) {
+        long id = subsystem.getSubsystemId();
+        Region region = m_regions.get(id);
+        if (region == null) {
+            BundleContext context = subsystem.getBundleContext();
+            if (context == null) {
+                return null;
+            }
+            Region created = new Region(id, context);
+            region = m_regions.putIfAbsent(id, created);
+            if (region == null) {
+                region = created;
+                region.open();
+            }
+        }
+        return region;
+    }
+
+    public void close() {
+        for (Region region : m_regions.values()) {
+            region.close();
+        }
+        m_regions.clear();
+    }
+
+    public class Region implements SynchronousBundleListener {
+        private final long m_id;
+        private final BundleContext m_context;
+        private final long m_contextBundleId;
+        private final Map<String, List<Export>> m_packages = new HashMap<String, List<Export>>();
+        private final Map<String, List<Export>> m_bundles = new HashMap<String, List<Export>>();
+        // the exports of every bundle, for removal
+        private final Map<Long, Export[]> m_byBundle = new HashMap<Long, Export[]>();
+
+        Region(long id, BundleContext context) {
+            m_id = id;
+            m_context = context;
+            m_contextBundleId = context.getBundle().getBundleId();
+        }
+
+        void open() {
+            m_context.addBundleListener(this);
+            for (Bundle bundle : m_context.getBundles()) {
+                put(bundle);
+            }
+        }
+
+        void close() {
+            try {
+                m_context.removeBundleListener(this);
+            } catch (IllegalStateException e) {
+                // the region context is no longer valid
+            }
+        }
+
+        /**
+         * Returns whether a package is exported in a version within a range by a bundle of
+         * the region.
+         */
+        public synchronized boolean hasPackage(String name, VersionRange range) {
+            return contains(m_packages.get(name), range);
+        }
+
+        /**
+         * Returns whether a bundle with a symbolic name and a version within a range is
+         * installed in the region.
+         */
+        public synchronized boolean hasBundle(String symbolicName, VersionRange range) {
+            return contains(m_bundles.get(symbolicName), range);
+        }
+
+        public synchronized int getPackageCount() {
+            return m_packages.size();
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            switch (event.getType()) {
+                case BundleEvent.INSTALLED:
+                case BundleEvent.UPDATED:
+                    put(event.getBundle());
+                    break;
+                case BundleEvent.UNINSTALLED:
+                    if (event.getBundle().getBundleId() == m_contextBundleId) {
+                        // the subsystem is gone together with its region
+                        m_regions.remove(m_id, this);
+                        close();
+                        return;
+                    }
+                    remove(event.getBundle().getBundleId());
+                    break;
+                default:
+            }
+        }
+
+        private void put(Bundle bundle) {
+            BundleRevision revision = bundle.adapt(BundleRevision.class);
+            if (revision == null) {
+                return;
+            }
+            List<Export> exports = new ArrayList<Export>();
+            for (BundleCapability capability : revision.getDeclaredCapabilities(BundleRevision.PACKAGE_NAMESPACE)) {
+                Map<String, Object> attributes = capability.getAttributes();
+                exports.add(new Export(true, (String) attributes.get(BundleRevision.PACKAGE_NAMESPACE),
+                        (Version) attributes.get(Constants.VERSION_ATTRIBUTE)));
+            }
+            if (revision.getSymbolicName() != null) {
+                exports.add(new Export(false, revision.getSymbolicName(), revision.getVersion()));
+            }
+            synchronized (this) {
+                remove(bundle.getBundleId());
+                for (Export export : exports) {
+                    Map<String, List<Export>> index = export.m_package ? m_packages : m_bundles;
+                    List<Export> list = index.get(export.m_name);
+                    if (list == null) {
+                        list = new ArrayList<Export>(1);
+                        index.put(export.m_name, list);
+                    }
+                    list.add(export);
+                }
+                m_byBundle.put(bundle.getBundleId(), exports.toArray(new Export[exports.size()]));
+            }
+        }
+
+        private synchronized void remove(long bundleId) {
+            Export[] exports = m_byBundle.remove(bundleId);
+            if (exports == null) {
+                return;
+            }
+            for (Export export : exports) {
+                Map<String, List<Export>> index = export.m_package ? m_packages : m_bundles;
+                List<Export> list = index.get(export.m_name);
+                if (list != null && list.remove(export) && list.isEmpty()) {
+                    index.remove(export.m_name);
+                }
+            }
+        }
+
+        private boolean contains(List<Export> exports, VersionRange range) {
+            if (exports == null) {
+                return false;
+            }
+            for (Export export : exports) {
+                if (range == null || range.includes(export.m_version)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Export {
+        private final boolean m_package;
+        private final String m_name;
+        private final Version m_version;
+
+        Export(boolean isPackage, String name, Version version) {
+            m_package = isPackage;
+            m_name = name;
+            m_version = version != null ? version : Version.emptyVersion;
+        }
+    }
+}
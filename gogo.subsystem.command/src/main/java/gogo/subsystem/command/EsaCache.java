@@ -0,0 +1,461 @@
+package gogo.subsystem.command;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Content addressed disk cache for subsystem archives.
+ * <p/>
+ * Archives are stored once per SHA-1 digest of their content, a location index maps install
+ * locations to digests. The cache is bounded by size and evicts the least recently used
+ * archives first. Locations using the <code>file:</code> protocol are re-fetched when the
+ * source file changes, other locations when the <code>Last-Modified</code> time of their URL
+ * changes. Snapshot locations without one are fetched again every time, other locations are
+ * served from the cache until purged.
+ * <p/>
+ * A fetched archive stays pinned until it is released, pinned archives are neither evicted
+ * nor purged.
+ */
+public class EsaCache {
+    public static final String MAX_SIZE_PROPERTY = "gogo.subsystem.cache.size";
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index.properties";
+    private static final String ARCHIVE_SUFFIX = ".esa";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ALWAYS_FETCH = -2;
+
+    private final File m_dir;
+    private final long m_maxSize;
+
+    // digest -> archive, in access order
+    private final LinkedHashMap<String, Archive> m_archives = new LinkedHashMap<String, Archive>(16, 0.75f, true);
+    // location -> source
+    private final Map<String, Source> m_sources = new HashMap<String, Source>();
+    private long m_size;
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+
+    public EsaCache(File dir, long maxSize) {
+        m_dir = dir;
+        m_maxSize = maxSize;
+        m_dir.mkdirs();
+        loadIndex();
+    }
+
+    /**
+     * Opens the cached content of a location, fetching it first if it is not cached yet. The
+     * archive is released when the stream is closed.
+     */
+    public InputStream openStream(String location) throws IOException {
+        final File file = fetch(location);
+        InputStream in;
+        try {
+            in = Channels.newInputStream(new FileInputStream(file).getChannel());
+        } catch (IOException ex) {
+            release(file);
+            throw ex;
+        }
+        return new FilterInputStream(in) {
+            private boolean m_closed;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!m_closed) {
+                        m_closed = true;
+                        release(file);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the cache file holding the content of a location, fetching it first if it is
+     * not cached yet. The file is pinned until {@link #release(File)} is called for it.
+     */
+    public File fetch(String location) throws IOException {
+        long stamp = getSourceStamp(location);
+        synchronized (this) {
+            Source source = m_sources.get(location);
+            if (source != null && stamp != ALWAYS_FETCH && source.m_stamp == stamp) {
+                Archive archive = m_archives.get(source.m_digest);
+                if (archive != null && archive.m_file.exists()) {
+                    m_hits++;
+                    archive.m_pins++;
+                    archive.m_file.setLastModified(System.currentTimeMillis());
+                    return archive.m_file;
+                }
+            }
+            m_misses++;
+        }
+
+        File temp = File.createTempFile("fetch", ".tmp", m_dir);
+        String digest;
+        try {
+            digest = download(location, temp);
+        } catch (IOException ex) {
+            temp.delete();
+            throw ex;
+        }
+
+        synchronized (this) {
+            Archive archive = m_archives.get(digest);
+            if (archive != null && archive.m_file.exists()) {
+                // same content under another location
+                temp.delete();
+            } else {
+                if (archive != null) {
+                    // the file was removed behind the cache's back
+                    m_size -= archive.m_size;
+                }
+                File file = new File(m_dir, digest + ARCHIVE_SUFFIX);
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    m_archives.remove(digest);
+                    removeSources(digest);
+                    temp.delete();
+                    throw new IOException("Unable to store " + location + " in " + m_dir);
+                }
+                archive = new Archive(file);
+                m_archives.put(digest, archive);
+                m_size += archive.m_size;
+            }
+            archive.m_pins++;
+            m_sources.put(location, new Source(digest, stamp));
+            evict();
+            saveIndex();
+            return archive.m_file;
+        }
+    }
+
+    /**
+     * Releases a file returned by {@link #fetch(String)} once it is no longer read, making it
+     * eligible for eviction again.
+     */
+    public synchronized void release(File file) {
+        Archive archive = m_archives.get(getDigest(file));
+        if (archive == null || !archive.m_file.equals(file) || archive.m_pins == 0) {
+            return;
+        }
+        archive.m_pins--;
+        if (archive.m_pins == 0 && evict()) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Deletes all archives that are not pinned by an install in progress.
+     */
+    public synchronized void purge() {
+        Iterator<Map.Entry<String, Archive>> it = m_archives.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Archive> entry = it.next();
+            if (entry.getValue().m_pins == 0) {
+                remove(entry, it);
+            }
+        }
+        saveIndex();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(m_sources.size(), m_archives.size(), m_size, m_maxSize, m_hits, m_misses, m_evictions);
+    }
+
+    public File getDirectory() {
+        return m_dir;
+    }
+
+    /**
+     * Returns the SHA-1 digest of the content of a cache file, which the file is named by,
+     * or <code>null</code> if the file is not a cache file.
+     */
+    public static String getDigest(File archive) {
+        String name = archive.getName();
+        return name.endsWith(ARCHIVE_SUFFIX) ? name.substring(0, name.length() - ARCHIVE_SUFFIX.length()) : null;
+    }
+
+    /**
+     * Evicts the least recently used archives that are not pinned until the cache fits its
+     * size, returns whether any archive was evicted.
+     */
+    private boolean evict() {
+        boolean evicted = false;
+        Iterator<Map.Entry<String, Archive>> it = m_archives.entrySet().iterator();
+        while (m_size > m_maxSize && it.hasNext()) {
+            Map.Entry<String, Archive> entry = it.next();
+            if (entry.getValue().m_pins > 0) {
+                continue;
+            }
+            remove(entry, it);
+            m_evictions++;
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private void remove(Map.Entry<String, Archive> entry, Iterator<Map.Entry<String, Archive>> it) {
+        entry.getValue().m_file.delete();
+        m_size -= entry.getValue().m_size;
+        it.remove();
+        removeSources(entry.getKey());
+    }
+
+    private void removeSources(String digest) {
+        Iterator<Source> it = m_sources.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().m_digest.equals(digest)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String download(String location, File target) throws IOException {
+        MessageDigest md = newDigest();
+        ReadableByteChannel in = Channels.newChannel(new URL(location).openStream());
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    md.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Returns a stamp of the current content of a location, the cached archive is used as long
+     * as the stamp is unchanged. HTTP locations are asked with a <code>HEAD</code> request.
+     */
+    private static long getSourceStamp(String location) {
+        try {
+            URL url = new URL(location);
+            if ("file".equals(url.getProtocol())) {
+                File file;
+                try {
+                    file = new File(url.toURI());
+                } catch (URISyntaxException ex) {
+                    file = new File(url.getPath());
+                } catch (IllegalArgumentException ex) {
+                    file = new File(url.getPath());
+                }
+                return file.lastModified() ^ (file.length() << 32);
+            }
+            URLConnection connection = url.openConnection();
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).setRequestMethod("HEAD");
+            }
+            try {
+                long modified = connection.getLastModified();
+                if (modified > 0) {
+                    return modified;
+                }
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        } catch (IOException ex) {
+            // unreachable, served from the cache if possible
+        }
+        return location.contains("SNAPSHOT") ? ALWAYS_FETCH : -1;
+    }
+
+    private void loadIndex() {
+        File[] files = m_dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // restore access order from the file timestamps
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified();
+                long l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ARCHIVE_SUFFIX)) {
+                Archive archive = new Archive(file);
+                m_archives.put(name.substring(0, name.length() - ARCHIVE_SUFFIX.length()), archive);
+                m_size += archive.m_size;
+            } else if (!name.equals(INDEX_FILE)) {
+                // leftover of an interrupted fetch
+                file.delete();
+            }
+        }
+
+        Properties index = new Properties();
+        File indexFile = new File(m_dir, INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                InputStream in = new FileInputStream(indexFile);
+                try {
+                    index.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            } catch (IllegalArgumentException ex) {
+                // malformed escape, the entries read so far are kept
+                System.err.println("Invalid cache index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        for (String location : index.stringPropertyNames()) {
+            String value = index.getProperty(location);
+            int sep = value.indexOf(',');
+            if (sep < 0) {
+                System.err.println("Ignoring cache index entry " + location + "=" + value);
+                continue;
+            }
+            String digest = value.substring(0, sep);
+            long stamp;
+            try {
+                stamp = Long.parseLong(value.substring(sep + 1).trim());
+            } catch (NumberFormatException ex) {
+                System.err.println("Ignoring cache index entry " + location + "=" + value);
+                continue;
+            }
+            if (m_archives.containsKey(digest)) {
+                m_sources.put(location, new Source(digest, stamp));
+            }
+        }
+    }
+
+    private void saveIndex() {
+        Properties index = new Properties();
+        for (Map.Entry<String, Source> entry : m_sources.entrySet()) {
+            index.setProperty(entry.getKey(), entry.getValue().m_digest + "," + entry.getValue().m_stamp);
+        }
+        // written aside and renamed, so a crash never leaves a truncated index
+        File indexFile = new File(m_dir, INDEX_FILE);
+        File tmp = new File(m_dir, INDEX_FILE + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                index.store(out, "subsystem archive cache index");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile) && !(indexFile.delete() && tmp.renameTo(indexFile))) {
+                throw new IOException("Cannot rename " + tmp + " to " + indexFile);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    private static class Archive {
+        private final File m_file;
+        private final long m_size;
+        // fetches not released yet
+        private int m_pins;
+
+        Archive(File file) {
+            m_file = file;
+            m_size = file.length();
+        }
+    }
+
+    private static class Source {
+        private final String m_digest;
+        private final long m_stamp;
+
+        Source(String digest, long stamp) {
+            m_digest = digest;
+            m_stamp = stamp;
+        }
+    }
+
+    public static class Stats {
+        private final int m_locations;
+        private final int m_archives;
+        private final long m_size;
+        private final long m_maxSize;
+        private final long m_hits;
+        private final long m_misses;
+        private final long m_evictions;
+
+        Stats(int locations, int archives, long size, long maxSize, long hits, long misses, long evictions) {
+            m_locations = locations;
+            m_archives = archives;
+            m_size = size;
+            m_maxSize = maxSize;
+            m_hits = hits;
+            m_misses = misses;
+            m_evictions = evictions;
+        }
+
+        public int getLocations() {
+            return m_locations;
+        }
+
+        public int getArchives() {
+            return m_archives;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        public long getMaxSize() {
+            return m_maxSize;
+        }
+
+        public long getHits() {
+            return m_hits;
+        }
+
+        public long getMisses() {
+            return m_misses;
+        }
+
+        public long getEvictions() {
+            return m_evictions;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Validates a staged subsystem archive before it is passed to the subsystem service, which
+ * would extract it completely before finding most problems.
+ * <p/>
+ * The archive is mapped and read in a single pass: its SHA-1 digest is compared with the
+ * digest the {@link EsaCache} named it by, the ZIP central directory is walked and every
+ * entry checked against its local header, and only <code>SUBSYSTEM.MF</code> and the
+ * manifests of the embedded bundles are inflated. Bundles stored without compression are
+ * read in place, their own central directory included, and have their CRC verified;
+ * deflated bundles are inflated only up to their manifest. Finally the
+ * <code>Subsystem-Content</code> version ranges are parsed and checked against the
+ * embedded bundles. ZIP64 archives and archives over 2 GB are rejected.
+ */
+public class EsaScanner {
+    public static final String SUBSYSTEM_MANIFEST = "OSGI-INF/SUBSYSTEM.MF";
+
+    private static final String BUNDLE_MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String TYPE_BUNDLE = "osgi.bundle";
+    private static final String TYPE_FRAGMENT = "osgi.fragment";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private EsaScanner() {
+    }
+
+    /**
+     * Scans an archive.
+     *
+     * @param expectedDigest the hex SHA-1 digest of the archive, or <code>null</code> to
+     *                       skip the comparison
+     * @throws InvalidArchiveException if the archive must not be installed
+     */
+    public static Archive scan(File file, String expectedDigest) throws IOException {
+        long start = System.nanoTime();
+        MappedByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new InvalidArchiveException(file + " is too large to be scanned");
+            }
+            // the mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] chunk = new byte[CHUNK_SIZE];
+
+        Archive archive = new Archive();
+        archive.m_digest = digest(buffer, chunk);
+        if (expectedDigest != null && !expectedDigest.equals(archive.m_digest)) {
+            throw new InvalidArchiveException("SHA-1 " + archive.m_digest + " does not match " + expectedDigest);
+        }
+
+        List<Entry> entries = readDirectory(buffer, "");
+        archive.m_entries = entries.size();
+        for (Entry entry : entries) {
+            if (isUnsafe(entry.m_name)) {
+                throw new InvalidArchiveException("Entry " + entry.m_name + " has an unsafe name");
+            }
+            if (SUBSYSTEM_MANIFEST.equals(entry.m_name)) {
+                archive.m_subsystemManifest = readManifest(buffer, entry, "");
+            } else if (entry.m_name.endsWith(".jar")) {
+                archive.m_bundles.add(readBundle(buffer, entry, chunk));
+            } else if (entry.m_method == STORED) {
+                verifyCrc(buffer, entry, chunk, "");
+            }
+            if (entry.m_method == STORED || SUBSYSTEM_MANIFEST.equals(entry.m_name)) {
+                archive.m_verified++;
+            }
+        }
+        checkContent(archive);
+        archive.m_nanos = System.nanoTime() - start;
+        return archive;
+    }
+
+    /**
+     * Scans the archives given as arguments and fails on the first invalid one, for checking
+     * the archives of this repository from the build.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            Archive archive = scan(new File(arg), null);
+            System.out.println(arg + ": " + archive.getEntries() + " entries, " + archive.getBundles().size()
+                    + " bundles, " + archive.getVerified() + " verified in " + archive.getNanos() / 1000000 + " ms");
+        }
+    }
+
+    private static boolean isUnsafe(String name) {
+        return name.startsWith("/") || name.indexOf('\\') >= 0 || name.equals("..")
+                || name.startsWith("../") || name.contains("/../") || name.endsWith("/..");
+    }
+
+    private static Bundle readBundle(ByteBuffer archive, Entry entry, byte[] chunk) throws IOException {
+        Attributes manifest;
+        if (entry.m_method == STORED) {
+            verifyCrc(archive, entry, chunk, "");
+            ByteBuffer jar = slice(archive, entry.m_offset, (int) entry.m_compressedSize);
+            String context = entry.m_name + "!/";
+            Entry manifestEntry = null;
+            for (Entry nested : readDirectory(jar, context)) {
+                if (BUNDLE_MANIFEST.equals(nested.m_name)) {
+                    manifestEntry = nested;
+                    break;
+                }
+            }
+            manifest = manifestEntry != null ? readManifest(jar, manifestEntry, context) : null;
+        } else {
+            manifest = readDeflatedBundleManifest(archive, entry);
+        }
+        String symbolicName = manifest != null
+                ? InstallDryRun.getName(manifest.getValue(Constants.BUNDLE_SYMBOLICNAME)) : null;
+        if (symbolicName == null) {
+            throw new InvalidArchiveException(entry.m_name + " is not a bundle, it has no "
+                    + Constants.BUNDLE_SYMBOLICNAME);
+        }
+        Version version;
+        try {
+            version = Version.parseVersion(manifest.getValue(Constants.BUNDLE_VERSION));
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidArchiveException(entry.m_name + " has an invalid "
+                    + Constants.BUNDLE_VERSION + ": " + ex.getMessage());
+        }
+        return new Bundle(entry.m_name, symbolicName, version, manifest, entry.m_method == STORED);
+    }
+
+    /**
+     * Inflates a deflated bundle entry up to its manifest, which is usually the first or
+     * second entry of a jar.
+     */
+    private static Attributes readDeflatedBundleManifest(ByteBuffer archive, Entry entry) throws IOException {
+        // an inflater passed in is not ended when the stream is closed
+        Inflater inflater = new Inflater(true);
+        ZipInputStream in = new ZipInputStream(
+                new InflaterInputStream(new ByteBufferInputStream(
+                        slice(archive, entry.m_offset, (int) entry.m_compressedSize)), inflater));
+        try {
+            for (ZipEntry nested = in.getNextEntry(); nested != null; nested = in.getNextEntry()) {
+                if (BUNDLE_MANIFEST.equalsIgnoreCase(nested.getName())) {
+                    return readHeaders(in, entry.m_name + "!/" + nested.getName());
+                }
+            }
+            return null;
+        } catch (InvalidArchiveException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new InvalidArchiveException(entry.m_name + " is not a valid jar: " + ex.getMessage());
+        } finally {
+            in.close();
+            inflater.end();
+        }
+    }
+
+    private static void checkContent(Archive archive) throws InvalidArchiveException {
+        String content = archive.m_subsystemManifest.getValue(SubsystemConstants.SUBSYSTEM_CONTENT);
+        for (InstallDryRun.Clause clause : InstallDryRun.parseHeader(content)) {
+            VersionRange range;
+            try {
+                range = clause.getRange(SubsystemConstants.VERSION_ATTRIBUTE);
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidArchiveException(SubsystemConstants.SUBSYSTEM_CONTENT + " of " + clause.getNames()
+                        + " has an invalid version range: " + ex.getMessage());
+            }
+            String type = clause.getAttribute(SubsystemConstants.TYPE_ATTRIBUTE);
+            if (type != null && !TYPE_BUNDLE.equals(type) && !TYPE_FRAGMENT.equals(type)) {
+                continue;
+            }
+            for (String name : clause.getNames()) {
+                List<Version> embedded = new ArrayList<Version>();
+                for (Bundle bundle : archive.m_bundles) {
+                    if (bundle.m_symbolicName.equals(name)) {
+                        embedded.add(bundle.m_version);
+                    }
+                }
+                boolean matches = embedded.isEmpty();
+                for (Version version : embedded) {
+                    matches |= range == null || range.includes(version);
+                }
+                if (!matches) {
+                    throw new InvalidArchiveException(SubsystemConstants.SUBSYSTEM_CONTENT + " requires " + name
+                            + " " + range + " but the archive contains " + embedded);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the central directory of a ZIP file held in a buffer and checks every entry
+     * against its local header.
+     */
+    private static List<Entry> readDirectory(ByteBuffer zip, String context) throws InvalidArchiveException {
+        int eocd = findEndOfDirectory(zip);
+        if (eocd < 0) {
+            throw new InvalidArchiveException(context + "no ZIP end of central directory record");
+        }
+        int count = zip.getShort(eocd + 10) & 0xffff;
+        long directorySize = zip.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = zip.getInt(eocd + 16) & 0xffffffffL;
+        if ((zip.getShort(eocd + 4) & 0xffff) != 0 || count == 0xffff || directoryOffset == 0xffffffffL) {
+            throw new InvalidArchiveException(context + "multi-volume and ZIP64 archives are not supported");
+        }
+        if (directoryOffset + directorySize > eocd) {
+            throw new InvalidArchiveException(context + "central directory exceeds the archive");
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (position + CEN_SIZE > eocd || zip.getInt(position) != CEN_SIGNATURE) {
+                throw new InvalidArchiveException(context + "invalid central directory header " + i);
+            }
+            int flags = zip.getShort(position + 8) & 0xffff;
+            int method = zip.getShort(position + 10) & 0xffff;
+            long crc = zip.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = zip.getInt(position + 20) & 0xffffffffL;
+            long size = zip.getInt(position + 24) & 0xffffffffL;
+            int nameLength = zip.getShort(position + 28) & 0xffff;
+            int extraLength = zip.getShort(position + 30) & 0xffff;
+            int commentLength = zip.getShort(position + 32) & 0xffff;
+            long localOffset = zip.getInt(position + 42) & 0xffffffffL;
+            String name = readName(zip, position + CEN_SIZE, nameLength, (flags & 0x800) != 0);
+            position += CEN_SIZE + nameLength + extraLength + commentLength;
+
+            if ((flags & 0x1) != 0) {
+                throw new InvalidArchiveException(context + name + " is encrypted");
+            }
+            if (method != STORED && method != DEFLATED) {
+                throw new InvalidArchiveException(context + name + " uses unsupported compression method " + method);
+            }
+            if (localOffset + LOC_SIZE > directoryOffset || zip.getInt((int) localOffset) != LOC_SIGNATURE) {
+                throw new InvalidArchiveException(context + name + " has no valid local header");
+            }
+            int local = (int) localOffset;
+            long dataOffset = localOffset + LOC_SIZE
+                    + (zip.getShort(local + 26) & 0xffff) + (zip.getShort(local + 28) & 0xffff);
+            if (dataOffset + compressedSize > directoryOffset
+                    || (method == STORED && compressedSize != size)) {
+                throw new InvalidArchiveException(context + name + " has invalid sizes");
+            }
+            if (name.endsWith("/")) {
+                continue;
+            }
+            entries.add(new Entry(name, method, crc, compressedSize, size, (int) dataOffset));
+        }
+        return entries;
+    }
+
+    private static int findEndOfDirectory(ByteBuffer zip) {
+        int last = zip.limit() - EOCD_SIZE;
+        int first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (int i = last; i >= first; i--) {
+            if (zip.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (zip.getShort(i + 20) & 0xffff) == zip.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String readName(ByteBuffer zip, int offset, int length, boolean utf8) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = zip.get(offset + i);
+        }
+        try {
+            // entries without the UTF-8 flag are CP437, the same as ASCII for sane names
+            return new String(bytes, utf8 ? "UTF-8" : "ISO-8859-1");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Attributes readManifest(ByteBuffer zip, Entry entry, String context) throws IOException {
+        if (entry.m_size > CHUNK_SIZE * 16) {
+            throw new InvalidArchiveException(context + entry.m_name + " is too large for a manifest");
+        }
+        InputStream in = new ByteBufferInputStream(slice(zip, entry.m_offset, (int) entry.m_compressedSize));
+        Inflater inflater = null;
+        if (entry.m_method == DEFLATED) {
+            inflater = new Inflater(true);
+            in = new InflaterInputStream(in, inflater);
+        }
+        byte[] bytes = new byte[(int) entry.m_size];
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+        } catch (IOException ex) {
+            throw new InvalidArchiveException(context + entry.m_name + " cannot be read: " + ex.getMessage());
+        } finally {
+            in.close();
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if (crc.getValue() != entry.m_crc) {
+            throw new InvalidArchiveException(context + entry.m_name + " fails its CRC check");
+        }
+        return readHeaders(new ByteArrayInputStream(bytes), context + entry.m_name);
+    }
+
+    /**
+     * Reads the main section of a manifest. Unlike {@link java.util.jar.Manifest} it accepts
+     * headers without a value on their first line and continuation lines indented by more
+     * than one space, as in the hand-written <code>SUBSYSTEM.MF</code> files of this
+     * repository.
+     *
+     * @param name the name of the manifest in error messages
+     * @throws InvalidArchiveException if a line is neither a header nor a continuation
+     */
+    static Attributes readHeaders(InputStream in, String name) throws InvalidArchiveException {
+        Attributes attributes = new Attributes();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        String header = null;
+        StringBuilder value = new StringBuilder();
+        int number = 0;
+        try {
+            for (String line = reader.readLine(); line != null && line.length() > 0; line = reader.readLine()) {
+                number++;
+                if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+                    if (header == null) {
+                        throw new InvalidArchiveException(name + " line " + number + " continues no header");
+                    }
+                    // a wrapped line continues after one space, an indented one after its indent
+                    String continuation = line.substring(1);
+                    value.append(continuation.length() > 0 && Character.isWhitespace(continuation.charAt(0))
+                            ? continuation.trim() : continuation);
+                    continue;
+                }
+                putHeader(attributes, header, value, name);
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new InvalidArchiveException(name + " line " + number + " is not a header");
+                }
+                header = line.substring(0, colon);
+                value.setLength(0);
+                value.append(line.substring(colon + 1).trim());
+            }
+            putHeader(attributes, header, value, name);
+        } catch (InvalidArchiveException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new InvalidArchiveException(name + " cannot be read: " + ex.getMessage());
+        }
+        return attributes;
+    }
+
+    private static void putHeader(Attributes attributes, String header, StringBuilder value, String name)
+            throws InvalidArchiveException {
+        if (header == null) {
+            return;
+        }
+        try {
+            attributes.putValue(header, value.toString().trim());
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidArchiveException(name + " has an invalid header name " + header);
+        }
+    }
+
+    private static void verifyCrc(ByteBuffer zip, Entry entry, byte[] chunk, String context) throws InvalidArchiveException {
+        ByteBuffer data = slice(zip, entry.m_offset, (int) entry.m_size);
+        CRC32 crc = new CRC32();
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if (crc.getValue() != entry.m_crc) {
+            throw new InvalidArchiveException(context + entry.m_name + " fails its CRC check");
+        }
+    }
+
+    private static String digest(ByteBuffer buffer, byte[] chunk) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.clear();
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            md.update(chunk, 0, n);
+        }
+        byte[] bytes = md.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Thrown when an archive is malformed or its content does not match its manifest.
+     */
+    public static class InvalidArchiveException extends IOException {
+        public InvalidArchiveException(String message) {
+            super(message);
+        }
+    }
+
+    public static class Archive {
+        private String m_digest;
+        private int m_entries;
+        private int m_verified;
+        private long m_nanos;
+        private Attributes m_subsystemManifest = new Attributes();
+        private final List<Bundle> m_bundles = new ArrayList<Bundle>();
+
+        public String getDigest() {
+            return m_digest;
+        }
+
+        public int getEntries() {
+            return m_entries;
+        }
+
+        /**
+         * Returns the number of entries whose CRC was verified: the stored entries and
+         * <code>SUBSYSTEM.MF</code>.
+         */
+        public int getVerified() {
+            return m_verified;
+        }
+
+        public long getNanos() {
+            return m_nanos;
+        }
+
+        /**
+         * Returns the main attributes of <code>SUBSYSTEM.MF</code>, empty if the archive has none.
+         */
+        public Attributes getSubsystemManifest() {
+            return m_subsystemManifest;
+        }
+
+        public List<Bundle> getBundles() {
+            return Collections.unmodifiableList(m_bundles);
+        }
+    }
+
+    public static class Bundle {
+        private final String m_path;
+        private final String m_symbolicName;
+        private final Version m_version;
+        private final Attributes m_manifest;
+        private final boolean m_stored;
+
+        Bundle(String path, String symbolicName, Version version, Attributes manifest, boolean stored) {
+            m_path = path;
+            m_symbolicName = symbolicName;
+            m_version = version;
+            m_manifest = manifest;
+            m_stored = stored;
+        }
+
+        public String getPath() {
+            return m_path;
+        }
+
+        public String getSymbolicName() {
+            return m_symbolicName;
+        }
+
+        public Version getVersion() {
+            return m_version;
+        }
+
+        public Attributes getManifest() {
+            return m_manifest;
+        }
+
+        /**
+         * Returns whether the bundle is stored without compression and was read in place.
+         */
+        public boolean isStored() {
+            return m_stored;
+        }
+    }
+
+    private static class Entry {
+        private final String m_name;
+        private final int m_method;
+        private final long m_crc;
+        private final long m_compressedSize;
+        private final long m_size;
+        private final int m_offset;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, int offset) {
+            m_name = name;
+            m_method = method;
+            m_crc = crc;
+            m_compressedSize = compressedSize;
+            m_size = size;
+            m_offset = offset;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer m_buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return m_buffer.hasRemaining() ? m_buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!m_buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return m_buffer.remaining();
+        }
+    }
+}
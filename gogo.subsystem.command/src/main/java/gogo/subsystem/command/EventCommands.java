@@ -0,0 +1,104 @@
+package gogo.subsystem.command;
+
+import event.journal.EventJournal;
+import event.journal.JournalQuery;
+import event.journal.JournalReader;
+import event.journal.JournalRecord;
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
+import org.osgi.framework.BundleContext;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Queries the event journal written by the event handlers of the subsystems.
+ */
+public class EventCommands {
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final BundleContext m_bc;
+
+    public EventCommands(BundleContext bc) {
+        m_bc = bc;
+    }
+
+    @Descriptor("lists journaled events")
+    public void events(
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("topic pattern, e.g. org/osgi/framework/ServiceEvent/*") @Parameter(names = {"-t", "--topic"}, absentValue = "*") String topic,
+            @Descriptor("first time (yyyy-MM-dd'T'HH:mm:ss, milliseconds or age like 15m, 2h, 1d)") @Parameter(names = {"--from"}, absentValue = "") String from,
+            @Descriptor("last time (yyyy-MM-dd'T'HH:mm:ss, milliseconds or age like 15m, 2h, 1d)") @Parameter(names = {"--to"}, absentValue = "") String to,
+            @Descriptor("originating bundle ID") @Parameter(names = {"-b", "--bundle"}, absentValue = "-1") long bundleId,
+            @Descriptor("maximum number of events") @Parameter(names = {"-n", "--limit"}, absentValue = "100") final int limit)
+            throws IOException {
+        if (limit < 1) {
+            System.err.println("Invalid limit: " + limit);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        JournalQuery query;
+        try {
+            query = new JournalQuery(topic, parseTime(from, 0, now), parseTime(to, Long.MAX_VALUE, now), bundleId);
+        } catch (ParseException ex) {
+            System.err.println("Invalid time: " + ex.getMessage());
+            return;
+        }
+        final OutputSink out = OutputSink.open(output);
+        try {
+            final RecordEncoder encoder = RecordEncoder.create(format, out);
+            final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT + ".SSS");
+            final StringBuilder text = new StringBuilder();
+            int count = new JournalReader(EventJournal.getDirectory(m_bc)).scan(query, new JournalReader.Visitor() {
+                private int m_count;
+
+                public boolean visit(JournalRecord record) {
+                    if (encoder != null) {
+                        encoder.begin("event")
+                                .field("time", record.getTimestamp())
+                                .field("bundle", record.getBundleId())
+                                .field("topic", record.getTopic())
+                                .field("properties", record.getProperties())
+                                .end();
+                    } else {
+                        text.setLength(0);
+                        text.append(timeFormat.format(new Date(record.getTimestamp())))
+                                .append("  bundle ").append(record.getBundleId())
+                                .append("  ").append(record.getTopic()).append(LINE_SEPARATOR);
+                        record.render(text, LINE_SEPARATOR);
+                        out.println(text.toString());
+                    }
+                    return ++m_count < limit;
+                }
+            });
+            if (encoder == null && count == 0) {
+                out.println("No events found");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Parses an absolute time or an age relative to now.
+     */
+    private static long parseTime(String value, long defaultValue, long now) throws ParseException {
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        char unit = value.charAt(value.length() - 1);
+        long factor = unit == 's' ? 1000L : unit == 'm' ? 60000L : unit == 'h' ? 3600000L : unit == 'd' ? 86400000L : 0;
+        try {
+            if (factor > 0) {
+                return now - Long.parseLong(value.substring(0, value.length() - 1)) * factor;
+            }
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return new SimpleDateFormat(TIME_FORMAT).parse(value).getTime();
+        }
+    }
+}
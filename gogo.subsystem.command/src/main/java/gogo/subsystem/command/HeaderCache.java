@@ -0,0 +1,137 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the localized headers of every subsystem per locale, so that they are not
+ * localized again on every <code>sub:headers</code>.
+ * <p/>
+ * The headers of a subsystem are dropped on every change of its state property, which
+ * includes the update of its content, and when its service is unregistered.
+ */
+public class HeaderCache extends ServiceTracker<Subsystem, HeaderCache.Entry> {
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+
+    public HeaderCache(BundleContext bc) {
+        super(bc, Subsystem.class, null);
+    }
+
+    /**
+     * Returns the headers of a subsystem localized for a locale, or for the default
+     * locale if <code>locale</code> is <code>null</code>.
+     */
+    public Headers get(ServiceReference<Subsystem> reference, Subsystem subsystem, Locale locale) {
+        Entry entry = getService(reference);
+        if (entry == null) {
+            // not tracked (yet), nothing to invalidate a cached copy
+            m_misses.incrementAndGet();
+            return new Headers(subsystem.getSubsystemHeaders(locale));
+        }
+        long generation;
+        synchronized (entry) {
+            Headers headers = entry.m_headers.get(locale);
+            if (headers != null) {
+                m_hits.incrementAndGet();
+                return headers;
+            }
+            generation = entry.m_generation;
+        }
+        m_misses.incrementAndGet();
+        Headers headers = new Headers(subsystem.getSubsystemHeaders(locale));
+        synchronized (entry) {
+            if (generation == entry.m_generation) {
+                entry.m_headers.put(locale, headers);
+            }
+        }
+        return headers;
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    @Override
+    public Entry addingService(ServiceReference<Subsystem> reference) {
+        return new Entry();
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<Subsystem> reference, Entry entry) {
+        entry.invalidate();
+    }
+
+    @Override
+    public void removedService(ServiceReference<Subsystem> reference, Entry entry) {
+        entry.invalidate();
+    }
+
+    static class Entry {
+        // incremented on every invalidation so that headers read concurrently are not kept
+        private long m_generation;
+        // keyed by locale, null for the default locale
+        private final Map<Locale, Headers> m_headers = new HashMap<Locale, Headers>();
+
+        synchronized void invalidate() {
+            m_generation++;
+            m_headers.clear();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the headers of a subsystem, in the order of the map returned by
+     * {@link Subsystem#getSubsystemHeaders(Locale)}.
+     * <p/>
+     * Header names are matched case insensitively, as manifest header names are.
+     */
+    public static class Headers {
+        private final String[] m_names;
+        private final String[] m_lowerCaseNames;
+        private final String[] m_values;
+
+        Headers(Map<String, String> headers) {
+            m_names = new String[headers.size()];
+            m_lowerCaseNames = new String[m_names.length];
+            m_values = new String[m_names.length];
+            int i = 0;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                m_names[i] = header.getKey();
+                m_lowerCaseNames[i] = header.getKey().toLowerCase(Locale.ENGLISH);
+                m_values[i] = header.getValue();
+                i++;
+            }
+        }
+
+        public int size() {
+            return m_names.length;
+        }
+
+        public String getName(int index) {
+            return m_names[index];
+        }
+
+        public String getValue(int index) {
+            return m_values[index];
+        }
+
+        /**
+         * Returns whether the name of a header matches a pattern compiled from a lower case
+         * string.
+         */
+        public boolean matches(int index, NamespacePattern lowerCasePattern) {
+            return lowerCasePattern.matches(m_lowerCaseNames[index]);
+        }
+    }
+}
@@ -19,15 +19,15 @@
 package gogo.subsystem.command;
 
 import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
 import org.osgi.framework.*;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleWire;
-import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.subsystem.Subsystem;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -42,9 +42,16 @@ public class InspectCommands {
     private static final String UNRESOLVED_MESSAGE = "[UNRESOLVED]";
 
     private final BundleContext m_bc;
+    private final SubsystemIndex m_index;
+    private final WiringGraphCache m_graphs;
+    private final ServiceRegistryIndex m_services;
 
-    public InspectCommands(BundleContext bc) {
+    public InspectCommands(BundleContext bc, SubsystemIndex index, WiringGraphCache graphs,
+                           ServiceRegistryIndex services) {
         m_bc = bc;
+        m_index = index;
+        m_graphs = graphs;
+        m_services = services;
     }
 
     @Descriptor("inspects bundle capabilities and requirements")
@@ -52,73 +59,142 @@ public class InspectCommands {
             @Descriptor("subscription identifier") long id,
             @Descriptor("('capability' | 'requirement')") String direction,
             @Descriptor("(<namespace> | 'service')") String namespace,
-            @Descriptor("target bundles") long[] bundles) throws InvalidSyntaxException {
-        ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("target bundles") long[] bundles) throws InvalidSyntaxException, IOException {
+        ServiceReference<Subsystem> serviceReference = m_index.find(id);
         if (serviceReference == null) {
             System.out.println("Unknown Subsystem ID");
             return;
         }
-        inspect(m_bc.getService(serviceReference).getBundleContext(), direction, namespace, bundles);
+        OutputSink out = OutputSink.open(output);
+        try {
+            RecordEncoder encoder = RecordEncoder.create(format, out);
+            Subsystem subsystem = m_bc.getService(serviceReference);
+            inspect(out, encoder, subsystem.getBundleContext(), m_graphs.get(subsystem), m_services,
+                    direction, namespace, bundles);
+        } finally {
+            out.close();
+        }
         m_bc.ungetService(serviceReference);
     }
 
-    private static void inspect(
-            BundleContext bc, String direction, String namespace, long[] bundleIds) {
+    @Descriptor("lists the services of all subsystems with an object class and the bundles using them")
+    public void users(
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("object class, '*' matches any characters") String objectClass) throws IOException {
+        OutputSink out = OutputSink.open(output);
+        try {
+            RecordEncoder encoder = RecordEncoder.create(format, out);
+            List<ServiceRegistryIndex.Service> services = m_services.find(NamespacePattern.compile(objectClass));
+            if (encoder != null) {
+                for (ServiceRegistryIndex.Service service : services) {
+                    encoder.begin(NONSTANDARD_SERVICE_NAMESPACE)
+                            .field("id", service.getId())
+                            .field("objectClass", service.getObjectClass())
+                            .field("providedBy", service.getProviderId())
+                            .field("usedBy", getUsers(service))
+                            .end();
+                }
+            } else if (services.isEmpty()) {
+                out.println(objectClass + " " + EMPTY_MESSAGE);
+            } else {
+                for (ServiceRegistryIndex.Service service : services) {
+                    out.println(NONSTANDARD_SERVICE_NAMESPACE
+                            + "; "
+                            + Util.getValueString(service.getObjectClass())
+                            + " "
+                            + Constants.SERVICE_ID + "="
+                            + service.getId()
+                            + " provided by:");
+                    out.println("   " + service.getProvider());
+                    Bundle[] users = service.getUsingBundles();
+                    if (users.length > 0) {
+                        out.println("   Used by:");
+                        for (Bundle user : users) {
+                            out.println("      " + user);
+                        }
+                    } else {
+                        out.println("   " + UNUSED_MESSAGE);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void inspect(OutputSink out, RecordEncoder encoder, BundleContext bc, WiringGraph graph,
+                                ServiceRegistryIndex services, String direction, String namespace,
+                                long[] bundleIds) {
         // Verify arguments.
         if (isValidDirection(direction)) {
-            Bundle[] bundles;
+            List<WiringGraph.Node> nodes = new ArrayList<WiringGraph.Node>();
             if ((bundleIds == null) || (bundleIds.length == 0)) {
-                bundles = bc.getBundles();
+                for (Bundle b : bc.getBundles()) {
+                    addNode(out, graph, nodes, b.getBundleId());
+                }
             } else {
-                bundles = new Bundle[bundleIds.length];
-                for (int i = 0; i < bundleIds.length; i++) {
-                    bundles[i] = bc.getBundle(bundleIds[i]);
+                for (long bundleId : bundleIds) {
+                    addNode(out, graph, nodes, bundleId);
                 }
             }
 
-            if (CAPABILITY.startsWith(direction)) {
-                printCapabilities(Util.parseSubstring(namespace), bundles);
+            if (encoder != null) {
+                encode(encoder, services, CAPABILITY.startsWith(direction), NamespacePattern.compile(namespace), nodes);
+            } else if (CAPABILITY.startsWith(direction)) {
+                printCapabilities(out, services, NamespacePattern.compile(namespace), nodes);
             } else {
-                printRequirements(Util.parseSubstring(namespace), bundles);
+                printRequirements(out, services, NamespacePattern.compile(namespace), nodes);
             }
         } else {
             if (!isValidDirection(direction)) {
-                System.out.println("Invalid argument: " + direction);
+                out.println("Invalid argument: " + direction);
             }
         }
     }
 
+    private static void addNode(OutputSink out, WiringGraph graph, List<WiringGraph.Node> nodes, long bundleId) {
+        WiringGraph.Node node = graph.get(bundleId);
+        if (node != null) {
+            nodes.add(node);
+        } else {
+            out.println("Bundle " + bundleId + " is not installed.");
+        }
+    }
+
     public static void printCapabilities(
-            List<String> namespace, Bundle[] bundles) {
+            OutputSink out, ServiceRegistryIndex services, NamespacePattern namespace, List<WiringGraph.Node> nodes) {
         boolean separatorNeeded = false;
-        for (Bundle b : bundles) {
+        for (WiringGraph.Node node : nodes) {
             if (separatorNeeded) {
-                System.out.println("");
+                out.println("");
             }
 
             // Print out any matching generic capabilities.
-            BundleWiring wiring = b.adapt(BundleWiring.class);
-            if (wiring != null) {
+            Bundle b = node.getBundle();
+            if (node.isResolved()) {
                 String title = b + " provides:";
-                System.out.println(title);
-                System.out.println(Util.getUnderlineString(title.length()));
+                out.println(title);
+                out.println(Util.getUnderlineString(title.length()));
 
                 // Print generic capabilities for matching namespaces.
-                boolean matches = printMatchingCapabilities(wiring, namespace);
+                boolean matches = printMatchingCapabilities(out, node, namespace);
 
                 // Handle service capabilities separately, since they aren't part
                 // of the generic model in OSGi.
                 if (matchNamespace(namespace, NONSTANDARD_SERVICE_NAMESPACE)) {
-                    matches |= printServiceCapabilities(b);
+                    matches |= printServiceCapabilities(out, services, b);
                 }
 
                 // If there were no capabilities for the specified namespace,
                 // then say so.
                 if (!matches) {
-                    System.out.println(Util.unparseSubstring(namespace) + " " + EMPTY_MESSAGE);
+                    out.println(namespace + " " + EMPTY_MESSAGE);
                 }
             } else {
-                System.out.println("Bundle "
+                out.println("Bundle "
                         + b.getBundleId()
                         + " is not resolved.");
             }
@@ -126,100 +202,55 @@ public class InspectCommands {
         }
     }
 
-    private static boolean printMatchingCapabilities(BundleWiring wiring, List<String> namespace) {
-        List<BundleWire> wires = wiring.getProvidedWires(null);
-        Map<BundleCapability, List<BundleWire>> aggregateCaps =
-                aggregateCapabilities(namespace, wires);
-        List<BundleCapability> allCaps = wiring.getCapabilities(null);
-        boolean matches = false;
-        for (BundleCapability cap : allCaps) {
-            if (matchNamespace(namespace, cap.getNamespace())) {
-                matches = true;
-                List<BundleWire> dependents = aggregateCaps.get(cap);
-                Object keyAttr =
-                        cap.getAttributes().get(cap.getNamespace());
-                if (dependents != null) {
-                    String msg;
-                    if (keyAttr != null) {
-                        msg = cap.getNamespace()
-                                + "; "
-                                + keyAttr
-                                + " "
-                                + getVersionFromCapability(cap);
-                    } else {
-                        msg = cap.toString();
-                    }
-                    msg = msg + " required by:";
-                    System.out.println(msg);
-                    for (BundleWire wire : dependents) {
-                        System.out.println("   " + wire.getRequirerWiring().getBundle());
-                    }
-                } else if (keyAttr != null) {
-                    System.out.println(cap.getNamespace()
+    private static boolean printMatchingCapabilities(OutputSink out, WiringGraph.Node node, NamespacePattern namespace) {
+        List<WiringGraph.Entry<BundleCapability>> caps = node.getCapabilities(namespace);
+        for (WiringGraph.Entry<BundleCapability> entry : caps) {
+            BundleCapability cap = entry.get();
+            List<BundleWire> dependents = entry.getWires();
+            Object keyAttr =
+                    cap.getAttributes().get(cap.getNamespace());
+            if (dependents != null) {
+                String msg;
+                if (keyAttr != null) {
+                    msg = cap.getNamespace()
                             + "; "
-                            + cap.getAttributes().get(cap.getNamespace())
-                            + " "
-                            + getVersionFromCapability(cap)
+                            + keyAttr
                             + " "
-                            + UNUSED_MESSAGE);
+                            + getVersionFromCapability(cap);
                 } else {
-                    System.out.println(cap + " " + UNUSED_MESSAGE);
+                    msg = cap.toString();
                 }
-            }
-        }
-        return matches;
-    }
-
-    private static Map<BundleCapability, List<BundleWire>> aggregateCapabilities(
-            List<String> namespace, List<BundleWire> wires) {
-        // Aggregate matching capabilities.
-        Map<BundleCapability, List<BundleWire>> map =
-                new HashMap<BundleCapability, List<BundleWire>>();
-        for (BundleWire wire : wires) {
-            if (matchNamespace(namespace, wire.getCapability().getNamespace())) {
-                List<BundleWire> dependents = map.get(wire.getCapability());
-                if (dependents == null) {
-                    dependents = new ArrayList<BundleWire>();
-                    map.put(wire.getCapability(), dependents);
+                msg = msg + " required by:";
+                out.println(msg);
+                for (BundleWire wire : dependents) {
+                    out.println("   " + wire.getRequirerWiring().getBundle());
                 }
-                dependents.add(wire);
+            } else if (keyAttr != null) {
+                out.println(cap.getNamespace()
+                        + "; "
+                        + cap.getAttributes().get(cap.getNamespace())
+                        + " "
+                        + getVersionFromCapability(cap)
+                        + " "
+                        + UNUSED_MESSAGE);
+            } else {
+                out.println(cap + " " + UNUSED_MESSAGE);
             }
         }
-        return map;
+        return !caps.isEmpty();
     }
 
-    static boolean printServiceCapabilities(Bundle b) {
+    static boolean printServiceCapabilities(OutputSink out, ServiceRegistryIndex services, Bundle b) {
         boolean matches = false;
 
         try {
-            ServiceReference[] refs = b.getRegisteredServices();
+            List<ServiceRegistryIndex.Service> registered = services.getProvidedBy(b.getBundleId());
 
-            if ((refs != null) && (refs.length > 0)) {
+            if (!registered.isEmpty()) {
                 matches = true;
                 // Print properties for each service.
-                for (ServiceReference ref : refs) {
-                    // Print object class with "namespace".
-                    System.out.println(
-                            NONSTANDARD_SERVICE_NAMESPACE
-                                    + "; "
-                                    + Util.getValueString(ref.getProperty("objectClass"))
-                                    + " with properties:");
-                    // Print service properties.
-                    String[] keys = ref.getPropertyKeys();
-                    for (String key : keys) {
-                        if (!key.equalsIgnoreCase(Constants.OBJECTCLASS)) {
-                            Object v = ref.getProperty(key);
-                            System.out.println("   "
-                                    + key + " = " + Util.getValueString(v));
-                        }
-                    }
-                    Bundle[] users = ref.getUsingBundles();
-                    if ((users != null) && (users.length > 0)) {
-                        System.out.println("   Used by:");
-                        for (Bundle user : users) {
-                            System.out.println("      " + user);
-                        }
-                    }
+                for (ServiceRegistryIndex.Service service : registered) {
+                    printService(out, service);
                 }
             }
         } catch (Exception ex) {
@@ -229,35 +260,56 @@ public class InspectCommands {
         return matches;
     }
 
+    private static void printService(OutputSink out, ServiceRegistryIndex.Service service) {
+        // Print object class with "namespace".
+        out.println(
+                NONSTANDARD_SERVICE_NAMESPACE
+                        + "; "
+                        + Util.getValueString(service.getObjectClass())
+                        + " with properties:");
+        // Print service properties.
+        for (Map.Entry<String, Object> property : service.getProperties().entrySet()) {
+            out.println("   "
+                    + property.getKey() + " = " + Util.getValueString(property.getValue()));
+        }
+        Bundle[] users = service.getUsingBundles();
+        if (users.length > 0) {
+            out.println("   Used by:");
+            for (Bundle user : users) {
+                out.println("      " + user);
+            }
+        }
+    }
+
     public static void printRequirements(
-            List<String> namespace, Bundle[] bundles) {
+            OutputSink out, ServiceRegistryIndex services, NamespacePattern namespace, List<WiringGraph.Node> nodes) {
         boolean separatorNeeded = false;
-        for (Bundle b : bundles) {
+        for (WiringGraph.Node node : nodes) {
             if (separatorNeeded) {
-                System.out.println("");
+                out.println("");
             }
 
             // Print out any matching generic requirements.
-            BundleWiring wiring = b.adapt(BundleWiring.class);
-            if (wiring != null) {
+            Bundle b = node.getBundle();
+            if (node.isResolved()) {
                 String title = b + " requires:";
-                System.out.println(title);
-                System.out.println(Util.getUnderlineString(title.length()));
-                boolean matches = printMatchingRequirements(wiring, namespace);
+                out.println(title);
+                out.println(Util.getUnderlineString(title.length()));
+                boolean matches = printMatchingRequirements(out, node, namespace);
 
                 // Handle service requirements separately, since they aren't part
                 // of the generic model in OSGi.
                 if (matchNamespace(namespace, NONSTANDARD_SERVICE_NAMESPACE)) {
-                    matches |= printServiceRequirements(b);
+                    matches |= printServiceRequirements(out, services, b);
                 }
 
                 // If there were no requirements for the specified namespace,
                 // then say so.
                 if (!matches) {
-                    System.out.println(Util.unparseSubstring(namespace) + " " + EMPTY_MESSAGE);
+                    out.println(namespace + " " + EMPTY_MESSAGE);
                 }
             } else {
-                System.out.println("Bundle "
+                out.println("Bundle "
                         + b.getBundleId()
                         + " is not resolved.");
             }
@@ -266,88 +318,64 @@ public class InspectCommands {
         }
     }
 
-    private static boolean printMatchingRequirements(BundleWiring wiring, List<String> namespace) {
-        List<BundleWire> wires = wiring.getRequiredWires(null);
-        Map<BundleRequirement, List<BundleWire>> aggregateReqs =
-                aggregateRequirements(namespace, wires);
-        List<BundleRequirement> allReqs = wiring.getRequirements(null);
-        boolean matches = false;
-        for (BundleRequirement req : allReqs) {
-            if (matchNamespace(namespace, req.getNamespace())) {
-                matches = true;
-                List<BundleWire> providers = aggregateReqs.get(req);
-                if (providers != null) {
-                    System.out.println(
-                            req.getNamespace()
-                                    + "; "
-                                    + req.getDirectives().get(Constants.FILTER_DIRECTIVE)
-                                    + " resolved by:");
-                    for (BundleWire wire : providers) {
-                        String msg;
-                        Object keyAttr =
-                                wire.getCapability().getAttributes()
-                                        .get(wire.getCapability().getNamespace());
-                        if (keyAttr != null) {
-                            msg = wire.getCapability().getNamespace()
-                                    + "; "
-                                    + keyAttr
-                                    + " "
-                                    + getVersionFromCapability(wire.getCapability());
-                        } else {
-                            msg = wire.getCapability().toString();
-                        }
-                        msg = "   " + msg + " from "
-                                + wire.getProviderWiring().getBundle();
-                        System.out.println(msg);
+    private static boolean printMatchingRequirements(OutputSink out, WiringGraph.Node node, NamespacePattern namespace) {
+        List<WiringGraph.Entry<BundleRequirement>> reqs = node.getRequirements(namespace);
+        for (WiringGraph.Entry<BundleRequirement> entry : reqs) {
+            BundleRequirement req = entry.get();
+            List<BundleWire> providers = entry.getWires();
+            if (providers != null) {
+                out.println(
+                        req.getNamespace()
+                                + "; "
+                                + req.getDirectives().get(Constants.FILTER_DIRECTIVE)
+                                + " resolved by:");
+                for (BundleWire wire : providers) {
+                    String msg;
+                    Object keyAttr =
+                            wire.getCapability().getAttributes()
+                                    .get(wire.getCapability().getNamespace());
+                    if (keyAttr != null) {
+                        msg = wire.getCapability().getNamespace()
+                                + "; "
+                                + keyAttr
+                                + " "
+                                + getVersionFromCapability(wire.getCapability());
+                    } else {
+                        msg = wire.getCapability().toString();
                     }
-                } else {
-                    System.out.println(
-                            req.getNamespace()
-                                    + "; "
-                                    + req.getDirectives().get(Constants.FILTER_DIRECTIVE)
-                                    + " "
-                                    + UNRESOLVED_MESSAGE);
-                }
-            }
-        }
-        return matches;
-    }
-
-    private static Map<BundleRequirement, List<BundleWire>> aggregateRequirements(
-            List<String> namespace, List<BundleWire> wires) {
-        // Aggregate matching capabilities.
-        Map<BundleRequirement, List<BundleWire>> map =
-                new HashMap<BundleRequirement, List<BundleWire>>();
-        for (BundleWire wire : wires) {
-            if (matchNamespace(namespace, wire.getRequirement().getNamespace())) {
-                List<BundleWire> providers = map.get(wire.getRequirement());
-                if (providers == null) {
-                    providers = new ArrayList<BundleWire>();
-                    map.put(wire.getRequirement(), providers);
+                    msg = "   " + msg + " from "
+                            + wire.getProviderWiring().getBundle();
+                    out.println(msg);
                 }
-                providers.add(wire);
+            } else {
+                out.println(
+                        req.getNamespace()
+                                + "; "
+                                + req.getDirectives().get(Constants.FILTER_DIRECTIVE)
+                                + " "
+                                + UNRESOLVED_MESSAGE);
             }
         }
-        return map;
+        return !reqs.isEmpty();
     }
 
-    static boolean printServiceRequirements(Bundle b) {
+    static boolean printServiceRequirements(OutputSink out, ServiceRegistryIndex services, Bundle b) {
         boolean matches = false;
 
         try {
-            ServiceReference[] refs = b.getServicesInUse();
+            List<ServiceRegistryIndex.Service> used = services.getUsedBy(b);
 
-            if ((refs != null) && (refs.length > 0)) {
+            if (!used.isEmpty()) {
                 matches = true;
                 // Print properties for each service.
-                for (ServiceReference ref : refs) {
+                for (ServiceRegistryIndex.Service service : used) {
                     // Print object class with "namespace".
-                    System.out.println(
+                    out.println(
                             NONSTANDARD_SERVICE_NAMESPACE
                                     + "; "
-                                    + Util.getValueString(ref.getProperty("objectClass"))
+                                    + Util.getValueString(service.getObjectClass())
                                     + " provided by:");
-                    System.out.println("   " + ref.getBundle());
+                    out.println("   " + service.getProvider());
                 }
             }
         } catch (Exception ex) {
@@ -357,6 +385,95 @@ public class InspectCommands {
         return matches;
     }
 
+    /**
+     * Streams matching capabilities or requirements as records, one record per capability,
+     * requirement or service.
+     */
+    public static void encode(
+            RecordEncoder encoder, ServiceRegistryIndex services, boolean capabilities, NamespacePattern namespace,
+            List<WiringGraph.Node> nodes) {
+        for (WiringGraph.Node node : nodes) {
+            Bundle b = node.getBundle();
+            if (!node.isResolved()) {
+                encoder.begin("unresolved").field("bundle", b.getBundleId()).end();
+                continue;
+            }
+            if (capabilities) {
+                encodeMatchingCapabilities(encoder, node, namespace);
+            } else {
+                encodeMatchingRequirements(encoder, node, namespace);
+            }
+            if (matchNamespace(namespace, NONSTANDARD_SERVICE_NAMESPACE)) {
+                encodeServices(encoder, services, b, capabilities);
+            }
+        }
+    }
+
+    private static void encodeMatchingCapabilities(
+            RecordEncoder encoder, WiringGraph.Node node, NamespacePattern namespace) {
+        for (WiringGraph.Entry<BundleCapability> entry : node.getCapabilities(namespace)) {
+            BundleCapability cap = entry.get();
+            List<Long> requirers = new ArrayList<Long>();
+            if (entry.getWires() != null) {
+                for (BundleWire wire : entry.getWires()) {
+                    requirers.add(wire.getRequirerWiring().getBundle().getBundleId());
+                }
+            }
+            encoder.begin(CAPABILITY)
+                    .field("bundle", node.getBundle().getBundleId())
+                    .field("namespace", cap.getNamespace())
+                    .field("value", cap.getAttributes().get(cap.getNamespace()))
+                    .field("version", getVersionFromCapability(cap))
+                    .field("attributes", cap.getAttributes())
+                    .field("requiredBy", requirers)
+                    .end();
+        }
+    }
+
+    private static void encodeMatchingRequirements(
+            RecordEncoder encoder, WiringGraph.Node node, NamespacePattern namespace) {
+        for (WiringGraph.Entry<BundleRequirement> entry : node.getRequirements(namespace)) {
+            BundleRequirement req = entry.get();
+            List<Long> providers = new ArrayList<Long>();
+            if (entry.getWires() != null) {
+                for (BundleWire wire : entry.getWires()) {
+                    providers.add(wire.getProviderWiring().getBundle().getBundleId());
+                }
+            }
+            encoder.begin(REQUIREMENT)
+                    .field("bundle", node.getBundle().getBundleId())
+                    .field("namespace", req.getNamespace())
+                    .field("filter", req.getDirectives().get(Constants.FILTER_DIRECTIVE))
+                    .field("resolvedBy", providers)
+                    .end();
+        }
+    }
+
+    private static void encodeServices(RecordEncoder encoder, ServiceRegistryIndex services, Bundle b,
+                                       boolean registered) {
+        List<ServiceRegistryIndex.Service> refs = registered
+                ? services.getProvidedBy(b.getBundleId()) : services.getUsedBy(b);
+        for (ServiceRegistryIndex.Service service : refs) {
+            encoder.begin(NONSTANDARD_SERVICE_NAMESPACE)
+                    .field("bundle", b.getBundleId())
+                    .field("objectClass", service.getObjectClass());
+            if (registered) {
+                encoder.field("properties", service.getProperties()).field("usedBy", getUsers(service));
+            } else {
+                encoder.field("providedBy", service.getProviderId() >= 0 ? service.getProviderId() : null);
+            }
+            encoder.end();
+        }
+    }
+
+    private static List<Long> getUsers(ServiceRegistryIndex.Service service) {
+        List<Long> users = new ArrayList<Long>();
+        for (Bundle user : service.getUsingBundles()) {
+            users.add(user.getBundleId());
+        }
+        return users;
+    }
+
     private static String getVersionFromCapability(BundleCapability c) {
         Object o = c.getAttributes().get(Constants.VERSION_ATTRIBUTE);
         if (o == null) {
@@ -365,8 +482,8 @@ public class InspectCommands {
         return (o == null) ? "" : o.toString();
     }
 
-    private static boolean matchNamespace(List<String> namespace, String actual) {
-        return Util.compareSubstring(namespace, actual);
+    private static boolean matchNamespace(NamespacePattern namespace, String actual) {
+        return namespace.matches(actual);
     }
 
     private static boolean isValidDirection(String direction) {
@@ -0,0 +1,329 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.util.*;
+import java.util.jar.Attributes;
+
+/**
+ * Checks the requirements of a subsystem archive against the capabilities of the region it
+ * would be installed in, without installing it.
+ * <p/>
+ * The <code>SUBSYSTEM.MF</code> and the manifests of the embedded bundles are taken from
+ * the {@link EsaScanner} pre-scan of the archive. <code>Import-Package</code> and
+ * <code>Require-Bundle</code> of a composite are checked against the
+ * {@link CapabilityIndex} of the target region, the embedded bundles against each other
+ * and against what the composite imports in an overlapping version range. Bundles of applications and
+ * features are checked against each other and the target region. Optional and
+ * <code>java.*</code> imports are skipped, content that is not embedded is provisioned from
+ * repositories at install time and only reported.
+ */
+public class InstallDryRun {
+    private static final String TYPE_BUNDLE = "osgi.bundle";
+    private static final String TYPE_FRAGMENT = "osgi.fragment";
+
+    private InstallDryRun() {
+    }
+
+    public static Report check(EsaScanner.Archive archive, CapabilityIndex.Region region) {
+        long start = System.nanoTime();
+        Report report = new Report();
+        Attributes subsystem = archive.getSubsystemManifest();
+        List<BundleManifest> bundles = new ArrayList<BundleManifest>();
+        for (EsaScanner.Bundle bundle : archive.getBundles()) {
+            bundles.add(new BundleManifest(bundle));
+        }
+
+        report.m_symbolicName = getName(subsystem.getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME));
+        report.m_version = subsystem.getValue(SubsystemConstants.SUBSYSTEM_VERSION);
+        String type = getName(subsystem.getValue(SubsystemConstants.SUBSYSTEM_TYPE));
+        report.m_type = type != null ? type : SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION;
+        report.m_bundles = bundles.size();
+        checkContent(report, subsystem.getValue(SubsystemConstants.SUBSYSTEM_CONTENT), bundles);
+
+        boolean composite = SubsystemConstants.SUBSYSTEM_TYPE_COMPOSITE.equals(report.m_type);
+        List<Clause> sharedPackages = Collections.emptyList();
+        List<Clause> sharedBundles = Collections.emptyList();
+        if (composite) {
+            sharedPackages = parseHeader(subsystem.getValue(Constants.IMPORT_PACKAGE));
+            sharedBundles = parseHeader(subsystem.getValue(Constants.REQUIRE_BUNDLE));
+            for (Clause clause : sharedPackages) {
+                for (String name : clause.m_names) {
+                    if (!clause.isOptional() && !region.hasPackage(name, clause.getRange(Constants.VERSION_ATTRIBUTE))) {
+                        report.m_unsatisfied.add(EsaScanner.SUBSYSTEM_MANIFEST + ": " + Constants.IMPORT_PACKAGE + ": " + clause.toString(name));
+                    }
+                }
+            }
+            for (Clause clause : sharedBundles) {
+                for (String name : clause.m_names) {
+                    if (!clause.isOptional() && !region.hasBundle(name, clause.getRange(Constants.BUNDLE_VERSION_ATTRIBUTE))) {
+                        report.m_unsatisfied.add(EsaScanner.SUBSYSTEM_MANIFEST + ": " + Constants.REQUIRE_BUNDLE + ": " + clause.toString(name));
+                    }
+                }
+            }
+        }
+
+        for (BundleManifest bundle : bundles) {
+            for (Clause clause : bundle.m_imports) {
+                for (String name : clause.m_names) {
+                    VersionRange range = clause.getRange(Constants.VERSION_ATTRIBUTE);
+                    if (clause.isOptional() || name.startsWith("java.") || exports(bundles, name, range)) {
+                        continue;
+                    }
+                    if (composite ? !shares(sharedPackages, name, range, Constants.VERSION_ATTRIBUTE) : !region.hasPackage(name, range)) {
+                        report.m_unsatisfied.add(bundle.m_symbolicName + ": " + Constants.IMPORT_PACKAGE + ": " + clause.toString(name));
+                    }
+                }
+            }
+            for (Clause clause : bundle.m_requiredBundles) {
+                for (String name : clause.m_names) {
+                    VersionRange range = clause.getRange(Constants.BUNDLE_VERSION_ATTRIBUTE);
+                    if (clause.isOptional() || contains(bundles, name, range)) {
+                        continue;
+                    }
+                    if (composite ? !shares(sharedBundles, name, range, Constants.BUNDLE_VERSION_ATTRIBUTE) : !region.hasBundle(name, range)) {
+                        report.m_unsatisfied.add(bundle.m_symbolicName + ": " + Constants.REQUIRE_BUNDLE + ": " + clause.toString(name));
+                    }
+                }
+            }
+        }
+        report.m_packages = region.getPackageCount();
+        report.m_nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static void checkContent(Report report, String content, List<BundleManifest> bundles) {
+        for (Clause clause : parseHeader(content)) {
+            String type = clause.m_attributes.get(SubsystemConstants.TYPE_ATTRIBUTE);
+            for (String name : clause.m_names) {
+                if (type != null && !TYPE_BUNDLE.equals(type) && !TYPE_FRAGMENT.equals(type)) {
+                    report.m_notes.add(name + " (" + type + ") is not checked");
+                } else if (!contains(bundles, name, clause.getRange(SubsystemConstants.VERSION_ATTRIBUTE))) {
+                    report.m_notes.add(name + " " + clause.getRange(SubsystemConstants.VERSION_ATTRIBUTE)
+                            + " is not embedded, it is provisioned from a repository and not checked");
+                }
+            }
+        }
+    }
+
+    private static boolean exports(List<BundleManifest> bundles, String name, VersionRange range) {
+        for (BundleManifest bundle : bundles) {
+            List<Version> versions = bundle.m_exports.get(name);
+            if (versions != null) {
+                for (Version version : versions) {
+                    if (range == null || range.includes(version)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(List<BundleManifest> bundles, String symbolicName, VersionRange range) {
+        for (BundleManifest bundle : bundles) {
+            if (bundle.m_symbolicName.equals(symbolicName) && (range == null || range.includes(bundle.m_version))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a composite shares a name in a version range overlapping the required one.
+     */
+    private static boolean shares(List<Clause> clauses, String name, VersionRange range, String attribute) {
+        for (Clause clause : clauses) {
+            if (clause.m_names.contains(name)) {
+                VersionRange shared = clause.getRange(attribute);
+                if (range == null || shared == null || !shared.intersection(range).isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first name of a header without its parameters.
+     */
+    static String getName(String header) {
+        List<Clause> clauses = parseHeader(header);
+        return clauses.isEmpty() || clauses.get(0).m_names.isEmpty() ? null : clauses.get(0).m_names.get(0);
+    }
+
+    /**
+     * Parses a manifest header into clauses of names, attributes and directives. Quoted
+     * values may contain the separators, types of typed attributes are dropped.
+     */
+    static List<Clause> parseHeader(String header) {
+        List<Clause> clauses = new ArrayList<Clause>();
+        if (header == null) {
+            return clauses;
+        }
+        for (String clauseString : split(header, ',')) {
+            Clause clause = new Clause();
+            for (String parameter : split(clauseString, ';')) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    if (parameter.length() > 0) {
+                        clause.m_names.add(parameter);
+                    }
+                } else if (equals > 0 && parameter.charAt(equals - 1) == ':') {
+                    clause.m_directives.put(parameter.substring(0, equals - 1).trim(),
+                            unquote(parameter.substring(equals + 1)));
+                } else {
+                    String key = parameter.substring(0, equals).trim();
+                    int colon = key.indexOf(':');
+                    clause.m_attributes.put(colon > 0 ? key.substring(0, colon).trim() : key,
+                            unquote(parameter.substring(equals + 1)));
+                }
+            }
+            if (!clause.m_names.isEmpty()) {
+                clauses.add(clause);
+            }
+        }
+        return clauses;
+    }
+
+    private static List<String> split(String s, char separator) {
+        List<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int begin = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                parts.add(s.substring(begin, i).trim());
+                begin = i + 1;
+            }
+        }
+        parts.add(s.substring(begin).trim());
+        return parts;
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"'
+                ? value.substring(1, value.length() - 1) : value;
+    }
+
+    static class Clause {
+        private final List<String> m_names = new ArrayList<String>(1);
+        private final Map<String, String> m_attributes = new LinkedHashMap<String, String>();
+        private final Map<String, String> m_directives = new LinkedHashMap<String, String>();
+
+        List<String> getNames() {
+            return m_names;
+        }
+
+        String getAttribute(String name) {
+            return m_attributes.get(name);
+        }
+
+        boolean isOptional() {
+            return Constants.RESOLUTION_OPTIONAL.equals(m_directives.get(Constants.RESOLUTION_DIRECTIVE));
+        }
+
+        /**
+         * Returns the version range of an attribute, or <code>null</code> for any version.
+         *
+         * @throws IllegalArgumentException if the range is invalid
+         */
+        VersionRange getRange(String attribute) {
+            String range = m_attributes.get(attribute);
+            return range != null ? new VersionRange(range) : null;
+        }
+
+        String toString(String name) {
+            StringBuilder sb = new StringBuilder(name);
+            for (Map.Entry<String, String> attribute : m_attributes.entrySet()) {
+                sb.append("; ").append(attribute.getKey()).append("=\"").append(attribute.getValue()).append('"');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class BundleManifest {
+        private final String m_symbolicName;
+        private final Version m_version;
+        private final Map<String, List<Version>> m_exports = new HashMap<String, List<Version>>();
+        private final List<Clause> m_imports = new ArrayList<Clause>();
+        private final List<Clause> m_requiredBundles = new ArrayList<Clause>();
+
+        BundleManifest(EsaScanner.Bundle bundle) {
+            m_symbolicName = bundle.getSymbolicName();
+            m_version = bundle.getVersion();
+            Attributes manifest = bundle.getManifest();
+            for (Clause clause : parseHeader(manifest.getValue(Constants.EXPORT_PACKAGE))) {
+                String version = clause.m_attributes.get(Constants.VERSION_ATTRIBUTE);
+                for (String name : clause.m_names) {
+                    List<Version> versions = m_exports.get(name);
+                    if (versions == null) {
+                        versions = new ArrayList<Version>(1);
+                        m_exports.put(name, versions);
+                    }
+                    versions.add(Version.parseVersion(version));
+                }
+            }
+            m_imports.addAll(parseHeader(manifest.getValue(Constants.IMPORT_PACKAGE)));
+            m_requiredBundles.addAll(parseHeader(manifest.getValue(Constants.REQUIRE_BUNDLE)));
+        }
+    }
+
+    public static class Report {
+        private String m_symbolicName;
+        private String m_version;
+        private String m_type;
+        private int m_bundles;
+        private int m_packages;
+        private long m_nanos;
+        private final List<String> m_unsatisfied = new ArrayList<String>();
+        private final List<String> m_notes = new ArrayList<String>();
+
+        public String getSymbolicName() {
+            return m_symbolicName;
+        }
+
+        public String getVersion() {
+            return m_version;
+        }
+
+        public String getType() {
+            return m_type;
+        }
+
+        /**
+         * Returns the number of embedded bundles checked.
+         */
+        public int getBundles() {
+            return m_bundles;
+        }
+
+        /**
+         * Returns the number of distinct packages exported in the target region.
+         */
+        public int getPackages() {
+            return m_packages;
+        }
+
+        public long getNanos() {
+            return m_nanos;
+        }
+
+        /**
+         * Returns the requirements that cannot be satisfied, one line per requirement.
+         */
+        public List<String> getUnsatisfied() {
+            return m_unsatisfied;
+        }
+
+        public List<String> getNotes() {
+            return m_notes;
+        }
+    }
+}
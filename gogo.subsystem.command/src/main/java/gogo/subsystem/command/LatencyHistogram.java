@@ -0,0 +1,110 @@
+package gogo.subsystem.command;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets.
+ * <p/>
+ * Every power of two of nanoseconds is split into {@link #SUB_BUCKETS} buckets, so a
+ * percentile is reported with an error below 25% over the whole range without any
+ * configuration. Recording is a bucket computation and two atomic increments; readers
+ * see a consistent enough view without stopping writers.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_sum = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        m_counts.incrementAndGet(getBucket(nanos));
+        m_count.incrementAndGet();
+        m_sum.addAndGet(nanos);
+        long max = m_max.get();
+        while (nanos > max && !m_max.compareAndSet(max, nanos)) {
+            max = m_max.get();
+        }
+    }
+
+    public long getCount() {
+        return m_count.get();
+    }
+
+    public long getMean() {
+        long count = m_count.get();
+        return count > 0 ? m_sum.get() / count : 0;
+    }
+
+    public long getMax() {
+        return m_max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the percentile, capped at the maximum.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), m_max.get());
+            }
+        }
+        return m_max.get();
+    }
+
+    /**
+     * Adds the recordings of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.m_counts.get(i);
+            if (count > 0) {
+                m_counts.addAndGet(i, count);
+            }
+        }
+        m_count.addAndGet(other.m_count.get());
+        m_sum.addAndGet(other.m_sum.get());
+        long max = m_max.get();
+        long otherMax = other.m_max.get();
+        while (otherMax > max && !m_max.compareAndSet(max, otherMax)) {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} have a bucket each, larger values are bucketed by
+     * their highest bit and the {@link #SUB_BUCKET_BITS} bits below it.
+     */
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long base = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,273 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Resource;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a lifecycle operation on a set of subsystems, in parallel where the subsystem
+ * tree allows it.
+ * <p/>
+ * A subsystem is started only after all of its ancestors in the set have been started,
+ * and stopped or uninstalled only after all of its descendants in the set. Subsystems
+ * without such a dependency run concurrently on a bounded pool.
+ */
+public class LifecycleExecutor {
+    public enum Operation {
+        START, LAZY_START, STOP, UNINSTALL;
+
+        void apply(Subsystem subsystem) throws BundleException {
+            switch (this) {
+                case START:
+                    subsystem.start();
+                    activate(subsystem);
+                    break;
+                case LAZY_START:
+                    // the subsystem service starts the content with its activation policy
+                    subsystem.start();
+                    break;
+                case STOP:
+                    subsystem.stop();
+                    break;
+                default:
+                    subsystem.uninstall();
+            }
+        }
+
+        boolean parentsFirst() {
+            return this == START || this == LAZY_START;
+        }
+
+        Metrics.Operation getMetric() {
+            switch (this) {
+                case START:
+                case LAZY_START:
+                    return Metrics.Operation.START;
+                case STOP:
+                    return Metrics.Operation.STOP;
+                default:
+                    return Metrics.Operation.UNINSTALL;
+            }
+        }
+    }
+
+    /**
+     * Activates the bundles of a started subsystem that wait for lazy activation, as their
+     * first class load would. The bundles are started transiently, so their persistent
+     * state stays under the control of the subsystem.
+     */
+    static void activate(Subsystem subsystem) throws BundleException {
+        for (Bundle bundle : getContentBundles(subsystem)) {
+            if (bundle.getState() == Bundle.STARTING) {
+                bundle.start(Bundle.START_TRANSIENT);
+            }
+        }
+    }
+
+    /**
+     * Returns the bundles among the constituents of a subsystem, without fragments.
+     */
+    static List<Bundle> getContentBundles(Subsystem subsystem) {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        Collection<Resource> constituents = subsystem.getConstituents();
+        if (constituents != null) {
+            for (Resource resource : constituents) {
+                if (resource instanceof BundleRevision) {
+                    BundleRevision revision = (BundleRevision) resource;
+                    if ((revision.getTypes() & BundleRevision.TYPE_FRAGMENT) == 0) {
+                        bundles.add(revision.getBundle());
+                    }
+                }
+            }
+        }
+        return bundles;
+    }
+
+    private final int m_parallel;
+
+    public LifecycleExecutor(int parallel) {
+        m_parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * Applies the operation to all subsystems and waits for completion.
+     *
+     * @return one result per subsystem, in the given order
+     */
+    public List<Result> execute(final Operation operation, List<Subsystem> subsystems) throws InterruptedException {
+        final Map<Subsystem, Result> results = new LinkedHashMap<Subsystem, Result>();
+        for (Subsystem subsystem : subsystems) {
+            if (!results.containsKey(subsystem)) {
+                results.put(subsystem, new Result(subsystem));
+            }
+        }
+        if (results.isEmpty()) {
+            return new ArrayList<Result>();
+        }
+        for (Result result : results.values()) {
+            for (Subsystem ancestor : getAncestors(result.m_subsystem)) {
+                Result other = results.get(ancestor);
+                if (other != null) {
+                    if (operation.parentsFirst()) {
+                        result.dependsOn(other);
+                    } else {
+                        other.dependsOn(result);
+                    }
+                }
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(m_parallel, results.size()), new LifecycleThreadFactory());
+        final CountDownLatch done = new CountDownLatch(results.size());
+        final long origin = System.nanoTime();
+        try {
+            for (Result result : results.values()) {
+                if (result.m_pending.get() == 0) {
+                    submit(executor, operation, result, origin, done);
+                }
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        return new ArrayList<Result>(results.values());
+    }
+
+    private void submit(final ExecutorService executor, final Operation operation, final Result result,
+                        final long origin, final CountDownLatch done) {
+        executor.execute(new Runnable() {
+            public void run() {
+                result.m_startNanos = System.nanoTime() - origin;
+                try {
+                    if (result.m_skipped == null) {
+                        operation.apply(result.m_subsystem);
+                    }
+                } catch (Throwable t) {
+                    result.m_error = t;
+                } finally {
+                    result.m_endNanos = System.nanoTime() - origin;
+                }
+                for (Result dependent : result.m_dependents) {
+                    if (!result.isSuccessful() && dependent.m_skipped == null) {
+                        dependent.m_skipped = result;
+                    }
+                    if (dependent.resolved(result)) {
+                        submit(executor, operation, dependent, origin, done);
+                    }
+                }
+                done.countDown();
+            }
+        });
+    }
+
+    private static Set<Subsystem> getAncestors(Subsystem subsystem) {
+        Set<Subsystem> ancestors = new HashSet<Subsystem>();
+        Deque<Subsystem> queue = new ArrayDeque<Subsystem>();
+        queue.add(subsystem);
+        while (!queue.isEmpty()) {
+            Collection<Subsystem> parents = queue.poll().getParents();
+            if (parents != null) {
+                for (Subsystem parent : parents) {
+                    if (ancestors.add(parent)) {
+                        queue.add(parent);
+                    }
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    public static class Result {
+        private final Subsystem m_subsystem;
+        private final List<Result> m_dependents = new ArrayList<Result>();
+        private final AtomicInteger m_pending = new AtomicInteger();
+        // the dependency that finished last, i.e. the previous step on the critical path
+        private volatile Result m_critical;
+        private volatile Result m_skipped;
+        private volatile long m_startNanos;
+        private volatile long m_endNanos;
+        private volatile Throwable m_error;
+
+        Result(Subsystem subsystem) {
+            m_subsystem = subsystem;
+        }
+
+        void dependsOn(Result other) {
+            other.m_dependents.add(this);
+            m_pending.incrementAndGet();
+        }
+
+        boolean resolved(Result dependency) {
+            synchronized (this) {
+                if (m_critical == null || dependency.m_endNanos > m_critical.m_endNanos) {
+                    m_critical = dependency;
+                }
+            }
+            return m_pending.decrementAndGet() == 0;
+        }
+
+        public Subsystem getSubsystem() {
+            return m_subsystem;
+        }
+
+        public boolean isSuccessful() {
+            return m_error == null && m_skipped == null;
+        }
+
+        public Throwable getError() {
+            return m_error;
+        }
+
+        /**
+         * Returns the subsystem whose failure prevented this one from being processed.
+         */
+        public Subsystem getSkippedFor() {
+            return m_skipped != null ? m_skipped.m_subsystem : null;
+        }
+
+        public long getStartMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_startNanos);
+        }
+
+        public long getEndMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(m_endNanos);
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(getDurationNanos());
+        }
+
+        public long getDurationNanos() {
+            return m_endNanos - m_startNanos;
+        }
+
+        /**
+         * Returns the chain of subsystems that determined when this one was finished,
+         * ending with this subsystem.
+         */
+        public List<Subsystem> getCriticalPath() {
+            LinkedList<Subsystem> path = new LinkedList<Subsystem>();
+            for (Result r = this; r != null; r = r.m_critical) {
+                path.addFirst(r.m_subsystem);
+            }
+            return path;
+        }
+    }
+
+    private static class LifecycleThreadFactory implements ThreadFactory {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sub-lifecycle-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package gogo.subsystem.command;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lifecycle latencies and event counts per subsystem.
+ * <p/>
+ * Commands record the operations they perform, a {@link MetricsCollector} records the
+ * subsystem state transitions and the events received by the region of every subsystem.
+ * Recording takes no lock: the metrics of a subsystem and its histograms are created on
+ * first use with a compare-and-set, after that it is a map lookup and a few atomic
+ * increments. {@link #reset()} swaps the map, recordings racing with it may land in the
+ * discarded one.
+ */
+public class Metrics {
+    public enum Operation {
+        INSTALL, RESOLVE, START, STOP, UNINSTALL
+    }
+
+    public enum Counter {
+        BUNDLE_EVENTS, SERVICE_EVENTS, STATE_CHANGES
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private volatile ConcurrentMap<Long, SubsystemMetrics> m_subsystems = new ConcurrentHashMap<Long, SubsystemMetrics>();
+
+    public void record(long subsystemId, Operation operation, long nanos) {
+        get(subsystemId).getOrCreate(operation).record(nanos);
+    }
+
+    public void increment(long subsystemId, Counter counter) {
+        get(subsystemId).m_counters.incrementAndGet(counter.ordinal());
+    }
+
+    public void reset() {
+        m_subsystems = new ConcurrentHashMap<Long, SubsystemMetrics>();
+    }
+
+    /**
+     * Returns the metrics of all subsystems with recordings, by subsystem ID.
+     */
+    public SortedMap<Long, SubsystemMetrics> getSubsystems() {
+        return new TreeMap<Long, SubsystemMetrics>(m_subsystems);
+    }
+
+    /**
+     * Returns the histograms of all subsystems merged per operation.
+     */
+    public Map<Operation, LatencyHistogram> getTotals() {
+        Map<Operation, LatencyHistogram> totals = new TreeMap<Operation, LatencyHistogram>();
+        for (SubsystemMetrics subsystem : m_subsystems.values()) {
+            for (Operation operation : OPERATIONS) {
+                LatencyHistogram histogram = subsystem.get(operation);
+                if (histogram != null) {
+                    LatencyHistogram total = totals.get(operation);
+                    if (total == null) {
+                        total = new LatencyHistogram();
+                        totals.put(operation, total);
+                    }
+                    total.add(histogram);
+                }
+            }
+        }
+        return totals;
+    }
+
+    private SubsystemMetrics get(long subsystemId) {
+        ConcurrentMap<Long, SubsystemMetrics> subsystems = m_subsystems;
+        SubsystemMetrics subsystem = subsystems.get(subsystemId);
+        if (subsystem == null) {
+            SubsystemMetrics created = new SubsystemMetrics();
+            subsystem = subsystems.putIfAbsent(subsystemId, created);
+            if (subsystem == null) {
+                subsystem = created;
+            }
+        }
+        return subsystem;
+    }
+
+    public static class SubsystemMetrics {
+        private final AtomicReferenceArray<LatencyHistogram> m_histograms =
+                new AtomicReferenceArray<LatencyHistogram>(OPERATIONS.length);
+        private final AtomicLongArray m_counters = new AtomicLongArray(Counter.values().length);
+
+        /**
+         * Returns the histogram of an operation, or <code>null</code> if it was never recorded.
+         */
+        public LatencyHistogram get(Operation operation) {
+            return m_histograms.get(operation.ordinal());
+        }
+
+        public long getCount(Counter counter) {
+            return m_counters.get(counter.ordinal());
+        }
+
+        private LatencyHistogram getOrCreate(Operation operation) {
+            LatencyHistogram histogram = m_histograms.get(operation.ordinal());
+            if (histogram == null) {
+                m_histograms.compareAndSet(operation.ordinal(), null, new LatencyHistogram());
+                histogram = m_histograms.get(operation.ordinal());
+            }
+            return histogram;
+        }
+    }
+}
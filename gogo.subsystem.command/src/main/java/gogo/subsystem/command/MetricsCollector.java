@@ -0,0 +1,132 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Feeds {@link Metrics} from subsystem and bundle events.
+ * <p/>
+ * State changes of the subsystem services are counted, and the time from
+ * <code>RESOLVING</code> to <code>RESOLVED</code> is recorded as the resolve latency. The
+ * bundle and service events of every region are counted for the subsystem owning the
+ * region, features share the region of their parent.
+ */
+public class MetricsCollector extends ServiceTracker<Subsystem, MetricsCollector.Tracked> {
+    private final Metrics m_metrics;
+    private final ConcurrentMap<Long, RegionListener> m_regions = new ConcurrentHashMap<Long, RegionListener>();
+
+    public MetricsCollector(BundleContext bc, Metrics metrics) {
+        super(bc, Subsystem.class, null);
+        m_metrics = metrics;
+    }
+
+    @Override
+    public Tracked addingService(ServiceReference<Subsystem> reference) {
+        Tracked tracked = new Tracked(getId(reference), getState(reference));
+        Subsystem subsystem = context.getService(reference);
+        if (subsystem != null) {
+            try {
+                BundleContext regionContext = subsystem.getBundleContext();
+                if (regionContext != null) {
+                    RegionListener listener = new RegionListener(tracked.m_id, regionContext);
+                    if (m_regions.putIfAbsent(listener.m_contextBundleId, listener) == null) {
+                        listener.open();
+                        tracked.m_region = listener;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // uninstalled meanwhile
+            } finally {
+                context.ungetService(reference);
+            }
+        }
+        return tracked;
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<Subsystem> reference, Tracked tracked) {
+        String state = getState(reference);
+        long now = System.nanoTime();
+        synchronized (tracked) {
+            if (state == null || state.equals(tracked.m_state)) {
+                return;
+            }
+            if (Subsystem.State.RESOLVING.name().equals(tracked.m_state)
+                    && Subsystem.State.RESOLVED.name().equals(state)) {
+                m_metrics.record(tracked.m_id, Metrics.Operation.RESOLVE, now - tracked.m_since);
+            }
+            tracked.m_state = state;
+            tracked.m_since = now;
+        }
+        m_metrics.increment(tracked.m_id, Metrics.Counter.STATE_CHANGES);
+    }
+
+    @Override
+    public void removedService(ServiceReference<Subsystem> reference, Tracked tracked) {
+        if (tracked.m_region != null) {
+            m_regions.remove(tracked.m_region.m_contextBundleId, tracked.m_region);
+            tracked.m_region.close();
+        }
+    }
+
+    private static long getId(ServiceReference<Subsystem> reference) {
+        Object id = reference.getProperty(SubsystemConstants.SUBSYSTEM_ID_PROPERTY);
+        return id instanceof Number ? ((Number) id).longValue() : -1;
+    }
+
+    private static String getState(ServiceReference<Subsystem> reference) {
+        Object state = reference.getProperty(SubsystemConstants.SUBSYSTEM_STATE_PROPERTY);
+        return state != null ? state.toString() : null;
+    }
+
+    static class Tracked {
+        private final long m_id;
+        private String m_state;
+        private long m_since = System.nanoTime();
+        private RegionListener m_region;
+
+        Tracked(long id, String state) {
+            m_id = id;
+            m_state = state;
+        }
+    }
+
+    private class RegionListener implements SynchronousBundleListener, ServiceListener {
+        private final long m_id;
+        private final BundleContext m_context;
+        private final long m_contextBundleId;
+
+        RegionListener(long id, BundleContext context) {
+            m_id = id;
+            m_context = context;
+            m_contextBundleId = context.getBundle().getBundleId();
+        }
+
+        void open() {
+            m_context.addBundleListener(this);
+            m_context.addServiceListener(this);
+        }
+
+        void close() {
+            try {
+                m_context.removeBundleListener(this);
+                m_context.removeServiceListener(this);
+            } catch (IllegalStateException e) {
+                // the region context is no longer valid
+            }
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            m_metrics.increment(m_id, Metrics.Counter.BUNDLE_EVENTS);
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            m_metrics.increment(m_id, Metrics.Counter.SERVICE_EVENTS);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package gogo.subsystem.command;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, precompiled form of a namespace substring pattern as parsed by
+ * {@link Util#parseSubstring(String)}.
+ * <p/>
+ * Matching gives the same results as {@link Util#compareSubstring(List, String)} but walks
+ * precompiled character arrays without allocating, and exact, prefix, suffix and
+ * match-all patterns take a fast path.
+ */
+public final class NamespacePattern {
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, NamespacePattern> CACHE =
+            new LinkedHashMap<String, NamespacePattern>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, NamespacePattern> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private enum Kind {EXACT, ANY, PREFIX, SUFFIX, PREFIX_SUFFIX, GENERAL}
+
+    private final String m_value;
+    private final Kind m_kind;
+    private final char[][] m_pieces;
+    private final char[] m_first;
+    private final char[] m_last;
+    private final String m_exact;
+
+    private NamespacePattern(String value, List<String> pieces) {
+        m_value = value;
+        m_pieces = new char[pieces.size()][];
+        for (int i = 0; i < m_pieces.length; i++) {
+            m_pieces[i] = pieces.get(i).toCharArray();
+        }
+        m_first = m_pieces[0];
+        m_last = m_pieces[m_pieces.length - 1];
+
+        m_exact = m_pieces.length == 1 ? pieces.get(0) : null;
+        if (m_pieces.length == 1) {
+            m_kind = Kind.EXACT;
+        } else if (m_pieces.length == 2) {
+            if (m_first.length == 0 && m_last.length == 0) {
+                m_kind = Kind.ANY;
+            } else if (m_last.length == 0) {
+                m_kind = Kind.PREFIX;
+            } else if (m_first.length == 0) {
+                m_kind = Kind.SUFFIX;
+            } else {
+                m_kind = Kind.PREFIX_SUFFIX;
+            }
+        } else {
+            m_kind = Kind.GENERAL;
+        }
+    }
+
+    /**
+     * Returns the compiled form of a pattern, reusing recently compiled patterns.
+     *
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static NamespacePattern compile(String value) {
+        synchronized (CACHE) {
+            NamespacePattern pattern = CACHE.get(value);
+            if (pattern != null) {
+                return pattern;
+            }
+        }
+        NamespacePattern pattern = new NamespacePattern(value, Util.parseSubstring(value));
+        synchronized (CACHE) {
+            CACHE.put(value, pattern);
+        }
+        return pattern;
+    }
+
+    public boolean matches(String s) {
+        switch (m_kind) {
+            case EXACT:
+                return s.length() == m_first.length && regionMatches(s, 0, m_first);
+            case ANY:
+                return true;
+            case PREFIX:
+                return startsWith(s, m_first);
+            case SUFFIX:
+                return endsWith(s, m_last);
+            case PREFIX_SUFFIX:
+                return startsWith(s, m_first) && endsWith(s, m_last);
+            default:
+                return matchesGeneral(s);
+        }
+    }
+
+    private boolean matchesGeneral(String s) {
+        if (!startsWith(s, m_first)) {
+            return false;
+        }
+        int index = m_first.length;
+        for (int i = 1; i < m_pieces.length - 1; i++) {
+            index = indexOf(s, m_pieces[i], index);
+            if (index < 0) {
+                return false;
+            }
+            index += m_pieces[i].length;
+        }
+        // As with Util.compareSubstring the last piece is only anchored to the end.
+        return endsWith(s, m_last);
+    }
+
+    private static boolean startsWith(String s, char[] piece) {
+        return s.length() >= piece.length && regionMatches(s, 0, piece);
+    }
+
+    private static boolean endsWith(String s, char[] piece) {
+        int offset = s.length() - piece.length;
+        return offset >= 0 && regionMatches(s, offset, piece);
+    }
+
+    private static int indexOf(String s, char[] piece, int from) {
+        int max = s.length() - piece.length;
+        for (int i = from; i <= max; i++) {
+            if (regionMatches(s, i, piece)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(String s, int offset, char[] piece) {
+        for (int i = 0; i < piece.length; i++) {
+            if (s.charAt(offset + i) != piece[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getValue() {
+        return m_value;
+    }
+
+    /**
+     * Returns the only string matched by an exact pattern, or <code>null</code> if the
+     * pattern contains wildcards.
+     */
+    public String getExactValue() {
+        return m_exact;
+    }
+
+    /**
+     * Returns the pattern in the form of {@link Util#unparseSubstring(List)}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m_pieces.length; i++) {
+            if (i > 0) {
+                sb.append('*');
+            }
+            sb.append(m_pieces[i]);
+        }
+        return sb.toString();
+    }
+}
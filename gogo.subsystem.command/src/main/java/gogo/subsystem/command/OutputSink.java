@@ -0,0 +1,158 @@
+package gogo.subsystem.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.util.Formatter;
+
+/**
+ * Command output batched in a reusable buffer.
+ * <p/>
+ * Lines are collected until the buffer exceeds its flush threshold or the command closes
+ * the sink, and are then written with a single call either to the console stream of the
+ * command or, for large dumps, straight to a file through a {@link FileChannel}.
+ */
+public class OutputSink {
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final StringBuilder m_buffer = new StringBuilder(FLUSH_THRESHOLD + 1024);
+    private final Formatter m_formatter = new Formatter(m_buffer);
+    private final PrintStream m_out;
+    private final FileChannel m_channel;
+    private final CharsetEncoder m_encoder;
+    private final ByteBuffer m_bytes;
+    private IOException m_error;
+
+    private OutputSink(PrintStream out) {
+        m_out = out;
+        m_channel = null;
+        m_encoder = null;
+        m_bytes = null;
+    }
+
+    private OutputSink(FileChannel channel) {
+        m_out = null;
+        m_channel = channel;
+        m_encoder = Charset.forName("UTF-8").newEncoder();
+        m_bytes = ByteBuffer.allocateDirect(FLUSH_THRESHOLD * 2);
+    }
+
+    /**
+     * Returns a sink writing to the console of the calling command.
+     */
+    public static OutputSink console() {
+        return new OutputSink(System.out);
+    }
+
+    /**
+     * Returns a sink writing to the given file, replacing its content.
+     */
+    public static OutputSink file(File file) throws IOException {
+        return new OutputSink(new FileOutputStream(file).getChannel());
+    }
+
+    /**
+     * Returns a file sink if a file name is given, a console sink otherwise.
+     */
+    public static OutputSink open(String file) throws IOException {
+        if (file == null || file.length() == 0) {
+            return console();
+        }
+        return file(new File(file));
+    }
+
+    public OutputSink print(String s) {
+        m_buffer.append(s);
+        flushIfFull();
+        return this;
+    }
+
+    public OutputSink println(String s) {
+        m_buffer.append(s).append(LINE_SEPARATOR);
+        flushIfFull();
+        return this;
+    }
+
+    public OutputSink println() {
+        m_buffer.append(LINE_SEPARATOR);
+        flushIfFull();
+        return this;
+    }
+
+    public OutputSink printf(String format, Object... args) {
+        m_formatter.format(format, args);
+        flushIfFull();
+        return this;
+    }
+
+    public void flush() {
+        if (m_buffer.length() == 0) {
+            return;
+        }
+        if (m_out != null) {
+            m_out.append(m_buffer);
+            m_out.flush();
+        } else if (m_error == null) {
+            try {
+                write();
+            } catch (IOException ex) {
+                m_error = ex;
+            }
+        }
+        m_buffer.setLength(0);
+    }
+
+    /**
+     * Flushes the remaining output and releases the file, if any.
+     *
+     * @throws IOException if writing to the file failed
+     */
+    public void close() throws IOException {
+        flush();
+        if (m_channel != null) {
+            m_channel.close();
+        }
+        if (m_error != null) {
+            throw m_error;
+        }
+    }
+
+    private void flushIfFull() {
+        if (m_buffer.length() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    private void write() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(m_buffer);
+        m_encoder.reset();
+        CoderResult result;
+        do {
+            result = m_encoder.encode(chars, m_bytes, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            drain();
+        } while (result.isOverflow());
+        while (m_encoder.flush(m_bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+
+    private void drain() throws IOException {
+        m_bytes.flip();
+        while (m_bytes.hasRemaining()) {
+            m_channel.write(m_bytes);
+        }
+        m_bytes.clear();
+    }
+}
@@ -0,0 +1,260 @@
+package gogo.subsystem.command;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * Streaming encoder for machine readable command output.
+ * <p/>
+ * Commands emit flat records while they walk subsystems and wiring, each record is written
+ * to the {@link OutputSink} as soon as it ends, so no document is built in memory.
+ * <ul>
+ * <li><code>json</code> writes one JSON object per line, the record type is held by the
+ * <code>record</code> member.</li>
+ * <li><code>csv</code> writes one line per record, the record type in the first column. A
+ * header line precedes the first record of every type.</li>
+ * </ul>
+ * Collection and array values are written as JSON arrays or as <code>;</code> separated
+ * CSV cells, maps as JSON objects or <code>key=value</code> pairs. JSON has no literals for
+ * NaN and infinite numbers, they are written as the strings <code>"NaN"</code>,
+ * <code>"Infinity"</code> and <code>"-Infinity"</code>.
+ */
+public abstract class RecordEncoder {
+    public static final String TEXT = "text";
+    public static final String JSON = "json";
+    public static final String CSV = "csv";
+
+    protected final OutputSink m_out;
+
+    protected RecordEncoder(OutputSink out) {
+        m_out = out;
+    }
+
+    /**
+     * Returns an encoder for the format, or <code>null</code> for the text format.
+     *
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static RecordEncoder create(String format, OutputSink out) {
+        if (format == null || TEXT.equals(format)) {
+            return null;
+        } else if (JSON.equals(format)) {
+            return new JsonEncoder(out);
+        } else if (CSV.equals(format)) {
+            return new CsvEncoder(out);
+        }
+        throw new IllegalArgumentException("Invalid format: " + format);
+    }
+
+    public abstract RecordEncoder begin(String type);
+
+    public abstract RecordEncoder field(String name, Object value);
+
+    public abstract void end();
+
+    private static class JsonEncoder extends RecordEncoder {
+        private final StringBuilder m_record = new StringBuilder(256);
+
+        JsonEncoder(OutputSink out) {
+            super(out);
+        }
+
+        public RecordEncoder begin(String type) {
+            m_record.setLength(0);
+            m_record.append("{\"record\":");
+            appendString(type);
+            return this;
+        }
+
+        public RecordEncoder field(String name, Object value) {
+            m_record.append(',');
+            appendString(name);
+            m_record.append(':');
+            appendValue(value);
+            return this;
+        }
+
+        public void end() {
+            m_record.append('}');
+            m_out.println(m_record.toString());
+        }
+
+        private void appendValue(Object value) {
+            if (value == null) {
+                m_record.append("null");
+            } else if (value instanceof Double && !isFinite((Double) value)
+                    || value instanceof Float && !isFinite((Float) value)) {
+                // JSON has no NaN or Infinity literals
+                appendString(value.toString());
+            } else if (value instanceof Number || value instanceof Boolean) {
+                m_record.append(value);
+            } else if (value instanceof Map) {
+                m_record.append('{');
+                boolean first = true;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) {
+                        m_record.append(',');
+                    }
+                    first = false;
+                    appendString(String.valueOf(entry.getKey()));
+                    m_record.append(':');
+                    appendValue(entry.getValue());
+                }
+                m_record.append('}');
+            } else if (value instanceof Collection) {
+                m_record.append('[');
+                boolean first = true;
+                for (Object element : (Collection<?>) value) {
+                    if (!first) {
+                        m_record.append(',');
+                    }
+                    first = false;
+                    appendValue(element);
+                }
+                m_record.append(']');
+            } else if (value.getClass().isArray()) {
+                m_record.append('[');
+                int length = Array.getLength(value);
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        m_record.append(',');
+                    }
+                    appendValue(Array.get(value, i));
+                }
+                m_record.append(']');
+            } else {
+                appendString(value.toString());
+            }
+        }
+
+        private static boolean isFinite(double d) {
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+
+        private void appendString(String s) {
+            m_record.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"':
+                        m_record.append("\\\"");
+                        break;
+                    case '\\':
+                        m_record.append("\\\\");
+                        break;
+                    case '\n':
+                        m_record.append("\\n");
+                        break;
+                    case '\r':
+                        m_record.append("\\r");
+                        break;
+                    case '\t':
+                        m_record.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            m_record.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            m_record.append(c);
+                        }
+                }
+            }
+            m_record.append('"');
+        }
+    }
+
+    private static class CsvEncoder extends RecordEncoder {
+        private final StringBuilder m_header = new StringBuilder(128);
+        private final StringBuilder m_record = new StringBuilder(256);
+        private final StringBuilder m_cell = new StringBuilder(64);
+        private final Set<String> m_types = new HashSet<String>();
+        private String m_type;
+
+        CsvEncoder(OutputSink out) {
+            super(out);
+        }
+
+        public RecordEncoder begin(String type) {
+            m_type = type;
+            m_header.setLength(0);
+            m_header.append("record");
+            m_record.setLength(0);
+            appendCell(m_record, type);
+            return this;
+        }
+
+        public RecordEncoder field(String name, Object value) {
+            if (!m_types.contains(m_type)) {
+                m_header.append(',');
+                appendCell(m_header, name);
+            }
+            m_cell.setLength(0);
+            appendValue(value);
+            m_record.append(',');
+            appendCell(m_record, m_cell);
+            return this;
+        }
+
+        public void end() {
+            if (m_types.add(m_type)) {
+                m_out.println(m_header.toString());
+            }
+            m_out.println(m_record.toString());
+        }
+
+        private void appendValue(Object value) {
+            if (value == null) {
+                return;
+            } else if (value instanceof Map) {
+                boolean first = true;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) {
+                        m_cell.append(';');
+                    }
+                    first = false;
+                    m_cell.append(entry.getKey()).append('=').append(Util.getValueString(entry.getValue()));
+                }
+            } else if (value instanceof Collection) {
+                boolean first = true;
+                for (Object element : (Collection<?>) value) {
+                    if (!first) {
+                        m_cell.append(';');
+                    }
+                    first = false;
+                    m_cell.append(Util.getValueString(element));
+                }
+            } else if (value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        m_cell.append(';');
+                    }
+                    m_cell.append(Util.getValueString(Array.get(value, i)));
+                }
+            } else {
+                m_cell.append(value);
+            }
+        }
+
+        private static void appendCell(StringBuilder sb, CharSequence value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                sb.append(value);
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+
+import java.util.*;
+
+/**
+ * Snapshot of the services of all regions, indexed by service ID, <code>objectClass</code>
+ * and provider bundle.
+ * <p/>
+ * The snapshot is maintained by a service listener on the system bundle context, which
+ * sees the services of every region, and keeps the properties of every service as they
+ * were at registration or at the last modification, so inspecting them does not go
+ * through the registry again. Using a service does not cause an event: the consumers of a
+ * service and the services used by a bundle are taken from the usage the framework keeps
+ * per service and per bundle when asked for, in time proportional to the result.
+ */
+public class ServiceRegistryIndex implements ServiceListener {
+    private final Map<Long, Service> m_byId = new HashMap<Long, Service>();
+    private final Map<String, Set<Service>> m_byObjectClass = new HashMap<String, Set<Service>>();
+    private final Map<Long, Set<Service>> m_byProvider = new HashMap<Long, Set<Service>>();
+    private BundleContext m_context;
+
+    public void open(BundleContext bc) throws InvalidSyntaxException {
+        m_context = bc.getBundle(0).getBundleContext();
+        m_context.addServiceListener(this);
+        ServiceReference<?>[] references = m_context.getAllServiceReferences(null, null);
+        if (references != null) {
+            for (ServiceReference<?> reference : references) {
+                // skip services unregistered since the listener was added
+                if (reference.getBundle() != null) {
+                    put(reference);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            m_context.removeServiceListener(this);
+        } catch (IllegalStateException e) {
+            // the framework is stopping
+        }
+    }
+
+    public void serviceChanged(ServiceEvent event) {
+        switch (event.getType()) {
+            case ServiceEvent.REGISTERED:
+            case ServiceEvent.MODIFIED:
+                put(event.getServiceReference());
+                break;
+            case ServiceEvent.UNREGISTERING:
+                remove(getId(event.getServiceReference()));
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Returns the services registered by a bundle, ordered by service ID.
+     */
+    public synchronized List<Service> getProvidedBy(long bundleId) {
+        return sort(m_byProvider.get(bundleId));
+    }
+
+    /**
+     * Returns the services used by a bundle, ordered by service ID.
+     */
+    public List<Service> getUsedBy(Bundle bundle) {
+        ServiceReference<?>[] references;
+        try {
+            references = bundle.getServicesInUse();
+        } catch (IllegalStateException e) {
+            // uninstalled meanwhile
+            return Collections.emptyList();
+        }
+        List<Service> services = new ArrayList<Service>();
+        if (references != null) {
+            synchronized (this) {
+                for (ServiceReference<?> reference : references) {
+                    Service service = m_byId.get(getId(reference));
+                    if (service != null) {
+                        services.add(service);
+                    }
+                }
+            }
+        }
+        Collections.sort(services);
+        return services;
+    }
+
+    /**
+     * Returns the services with an <code>objectClass</code> matching a pattern, ordered by
+     * service ID. Exact patterns are a single lookup, others are matched against the
+     * distinct class names only.
+     */
+    public synchronized List<Service> find(NamespacePattern objectClass) {
+        String exact = objectClass.getExactValue();
+        if (exact != null) {
+            return sort(m_byObjectClass.get(exact));
+        }
+        Set<Service> services = new HashSet<Service>();
+        for (Map.Entry<String, Set<Service>> entry : m_byObjectClass.entrySet()) {
+            if (objectClass.matches(entry.getKey())) {
+                services.addAll(entry.getValue());
+            }
+        }
+        return sort(services);
+    }
+
+    public synchronized int size() {
+        return m_byId.size();
+    }
+
+    private void put(ServiceReference<?> reference) {
+        Service service = new Service(reference);
+        synchronized (this) {
+            remove(service.m_id);
+            m_byId.put(service.m_id, service);
+            for (String objectClass : service.m_objectClass) {
+                Set<Service> services = m_byObjectClass.get(objectClass);
+                if (services == null) {
+                    services = new HashSet<Service>();
+                    m_byObjectClass.put(objectClass, services);
+                }
+                services.add(service);
+            }
+            Set<Service> services = m_byProvider.get(service.m_providerId);
+            if (services == null) {
+                services = new HashSet<Service>();
+                m_byProvider.put(service.m_providerId, services);
+            }
+            services.add(service);
+        }
+    }
+
+    private synchronized void remove(long id) {
+        Service service = m_byId.remove(id);
+        if (service == null) {
+            return;
+        }
+        for (String objectClass : service.m_objectClass) {
+            removeFrom(m_byObjectClass, objectClass, service);
+        }
+        removeFrom(m_byProvider, service.m_providerId, service);
+    }
+
+    private static <K> void removeFrom(Map<K, Set<Service>> index, K key, Service service) {
+        Set<Service> services = index.get(key);
+        if (services != null && services.remove(service) && services.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static List<Service> sort(Collection<Service> services) {
+        if (services == null) {
+            return Collections.emptyList();
+        }
+        List<Service> sorted = new ArrayList<Service>(services);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static long getId(ServiceReference<?> reference) {
+        return ((Number) reference.getProperty(Constants.SERVICE_ID)).longValue();
+    }
+
+    /**
+     * A registered service with its properties at the time of the snapshot.
+     */
+    public static class Service implements Comparable<Service> {
+        private final ServiceReference<?> m_reference;
+        private final long m_id;
+        private final String[] m_objectClass;
+        private final long m_providerId;
+        private final String m_provider;
+        private final SortedMap<String, Object> m_properties;
+
+        Service(ServiceReference<?> reference) {
+            m_reference = reference;
+            m_id = ServiceRegistryIndex.getId(reference);
+            m_objectClass = (String[]) reference.getProperty(Constants.OBJECTCLASS);
+            Bundle provider = reference.getBundle();
+            m_providerId = provider != null ? provider.getBundleId() : -1;
+            m_provider = String.valueOf(provider);
+            SortedMap<String, Object> properties = new TreeMap<String, Object>();
+            for (String key : reference.getPropertyKeys()) {
+                if (!key.equalsIgnoreCase(Constants.OBJECTCLASS)) {
+                    properties.put(key, reference.getProperty(key));
+                }
+            }
+            m_properties = Collections.unmodifiableSortedMap(properties);
+        }
+
+        public long getId() {
+            return m_id;
+        }
+
+        public String[] getObjectClass() {
+            return m_objectClass.clone();
+        }
+
+        public long getProviderId() {
+            return m_providerId;
+        }
+
+        /**
+         * Returns the provider bundle as printed by <code>Bundle.toString()</code>.
+         */
+        public String getProvider() {
+            return m_provider;
+        }
+
+        /**
+         * Returns the properties other than <code>objectClass</code>, ordered by key.
+         */
+        public SortedMap<String, Object> getProperties() {
+            return m_properties;
+        }
+
+        /**
+         * Returns the bundles currently using the service.
+         */
+        public Bundle[] getUsingBundles() {
+            Bundle[] users = m_reference.getUsingBundles();
+            return users != null ? users : new Bundle[0];
+        }
+
+        public int compareTo(Service other) {
+            return m_id < other.m_id ? -1 : m_id == other.m_id ? 0 : 1;
+        }
+    }
+}
@@ -3,68 +3,131 @@ package gogo.subsystem.command;
 import org.apache.felix.service.command.Descriptor;
 import org.apache.felix.service.command.Parameter;
 import org.osgi.framework.*;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Resource;
 import org.osgi.service.subsystem.Subsystem;
-import org.osgi.service.subsystem.SubsystemConstants;
 import org.osgi.service.subsystem.SubsystemException;
 
-import java.net.URL;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class SubsystemCommands {
     private final BundleContext m_bc;
-
-    public SubsystemCommands(BundleContext bc) {
+    private final SubsystemIndex m_index;
+    private final EsaCache m_cache;
+    private final Metrics m_metrics;
+    private final HeaderCache m_headers;
+    private final BundleNameIndex m_bundleNames;
+    private final CapabilityIndex m_capabilities;
+
+    public SubsystemCommands(BundleContext bc, SubsystemIndex index, EsaCache cache, Metrics metrics,
+                             HeaderCache headers, BundleNameIndex bundleNames, CapabilityIndex capabilities) {
         m_bc = bc;
+        m_index = index;
+        m_cache = cache;
+        m_metrics = metrics;
+        m_headers = headers;
+        m_bundleNames = bundleNames;
+        m_capabilities = capabilities;
     }
 
     @Descriptor("display subsystem headers")
-    public void headers(@Descriptor("target subsystem identifiers") long[] ids) {
+    public void headers(
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("header name pattern, '*' matches any characters, case insensitive") @Parameter(names = {"-n", "--name"}, absentValue = "*") String name,
+            @Descriptor("locale of the header values, e.g. 'en_US' (default locale if absent)") @Parameter(names = {"-l", "--locale"}, absentValue = "") String locale,
+            @Descriptor("target subsystem identifiers") long[] ids) throws IOException {
         if ((ids != null) && (ids.length >= 1)) {
-            List<ServiceReference> refs = new ArrayList<ServiceReference>();
-            for (long id : ids) {
-                try {
-                    ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
-
-                    if (serviceReference != null) {
-                        refs.add(serviceReference);
-                        printHeaders(m_bc.getService(serviceReference));
-                    } else {
-                        System.err.println("Subsystem ID " + id + " is invalid.");
+            NamespacePattern pattern;
+            try {
+                pattern = NamespacePattern.compile(name.toLowerCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Invalid header name pattern '" + name + "': " + ex.getMessage());
+                return;
+            }
+            Locale headerLocale = parseLocale(locale);
+            OutputSink out = OutputSink.open(output);
+            try {
+                RecordEncoder encoder = RecordEncoder.create(format, out);
+                List<ServiceReference> refs = new ArrayList<ServiceReference>();
+                for (long id : ids) {
+                    try {
+                        ServiceReference<Subsystem> serviceReference = m_index.find(id);
+
+                        if (serviceReference != null) {
+                            refs.add(serviceReference);
+                            Subsystem subsystem = m_bc.getService(serviceReference);
+                            printHeaders(out, encoder, subsystem.getSubsystemId(),
+                                    m_headers.get(serviceReference, subsystem, headerLocale), pattern);
+                        } else {
+                            System.err.println("Subsystem ID " + id + " is invalid.");
+                        }
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Unable to parse id '" + id + "'.");
+                    } catch (SubsystemException ex) {
+                        ex.printStackTrace(System.err);
+                    } catch (Exception ex) {
+                        ex.printStackTrace(System.err);
                     }
-                } catch (NumberFormatException ex) {
-                    System.err.println("Unable to parse id '" + id + "'.");
-                } catch (SubsystemException ex) {
-                    ex.printStackTrace(System.err);
-                } catch (Exception ex) {
-                    ex.printStackTrace(System.err);
                 }
+                Util.ungetServices(m_bc, refs);
+            } finally {
+                out.close();
             }
-            Util.ungetServices(m_bc, refs);
         } else {
             System.err.println("Incorrect number of arguments");
         }
     }
 
-    private void printHeaders(Subsystem subsystem) {
-        Map<String, String> subsystemHeaders = subsystem.getSubsystemHeaders(null);
-        for (String key : subsystemHeaders.keySet()) {
-            System.out.println(String.format("%s=%s", key, subsystemHeaders.get(key)));
+    private static void printHeaders(OutputSink out, RecordEncoder encoder, long id,
+                                     HeaderCache.Headers headers, NamespacePattern pattern) {
+        for (int i = 0; i < headers.size(); i++) {
+            if (!headers.matches(i, pattern)) {
+                continue;
+            }
+            if (encoder != null) {
+                encoder.begin("header")
+                        .field("subsystem", id)
+                        .field("name", headers.getName(i))
+                        .field("value", headers.getValue(i))
+                        .end();
+            } else {
+                out.printf("%s=%s", headers.getName(i), headers.getValue(i)).println();
+            }
+        }
+    }
+
+    private static Locale parseLocale(String locale) {
+        if (locale.length() == 0) {
+            return null;
         }
+        String[] parts = locale.split("_", 3);
+        return new Locale(parts[0], parts.length > 1 ? parts[1] : "", parts.length > 2 ? parts[2] : "");
     }
 
     @Descriptor("install subsystem using URLs")
-    public void install(@Descriptor("target URLs") String[] urls)
-            throws InvalidSyntaxException {
-        install(getRootSubsystem().getSubsystemId(), urls);
+    public void install(
+            @Descriptor("fetch and stage all archives before installing them in order") @Parameter(names = {"-b", "--batch"}, presentValue = "true", absentValue = "false") boolean batch,
+            @Descriptor("number of archives fetched concurrently in batch mode") @Parameter(names = {"-p", "--parallel"}, absentValue = "4") int parallel,
+            @Descriptor("only check the requirements of the archives against the target region") @Parameter(names = {"-d", "--dry-run"}, presentValue = "true", absentValue = "false") boolean dryRun,
+            @Descriptor("target URLs") String[] urls)
+            throws InvalidSyntaxException, IOException {
+        install(batch, parallel, dryRun, getRootSubsystem().getSubsystemId(), urls);
     }
 
 
     @Descriptor("install subsystem using URLs")
-    public void install(@Descriptor("Parent subsystem ID") long id,
-                        @Descriptor("target URLs") String[] urls)
-            throws InvalidSyntaxException {
+    public void install(
+            @Descriptor("fetch and stage all archives before installing them in order") @Parameter(names = {"-b", "--batch"}, presentValue = "true", absentValue = "false") boolean batch,
+            @Descriptor("number of archives fetched concurrently in batch mode") @Parameter(names = {"-p", "--parallel"}, absentValue = "4") int parallel,
+            @Descriptor("only check the requirements of the archives against the target region") @Parameter(names = {"-d", "--dry-run"}, presentValue = "true", absentValue = "false") boolean dryRun,
+            @Descriptor("Parent subsystem ID") long id,
+            @Descriptor("target URLs") String[] urls)
+            throws InvalidSyntaxException, IOException {
 
-        ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
+        ServiceReference<Subsystem> serviceReference = m_index.find(id);
 
         if (serviceReference == null) {
             System.out.println("No Subsystems are installed");
@@ -73,174 +136,628 @@ public class SubsystemCommands {
 
         Subsystem root = m_bc.getService(serviceReference);
 
-        StringBuilder sb = new StringBuilder();
+        OutputSink out = OutputSink.console();
+        try {
+            if (dryRun) {
+                dryRun(out, root, urls);
+                return;
+            }
+            if (batch) {
+                List<BatchInstaller.Result> results = new BatchInstaller(m_cache, parallel).install(root, urls);
+                for (BatchInstaller.Result result : results) {
+                    if (result.getSubsystem() != null) {
+                        m_metrics.record(result.getSubsystem().getSubsystemId(), Metrics.Operation.INSTALL,
+                                result.getInstallNanos());
+                    }
+                }
+                printInstallSummary(out, results);
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (String url : urls) {
+                String location = url.trim();
+                Subsystem subsystem = null;
+                try {
+                    File file = m_cache.fetch(location);
+                    try {
+                        EsaScanner.scan(file, EsaCache.getDigest(file));
+                        InputStream content = new BufferedInputStream(new FileInputStream(file));
+                        try {
+                            long start = System.nanoTime();
+                            subsystem = root.install(location, content);
+                            m_metrics.record(subsystem.getSubsystemId(), Metrics.Operation.INSTALL, System.nanoTime() - start);
+                        } finally {
+                            content.close();
+                        }
+                    } finally {
+                        m_cache.release(file);
+                    }
+                } catch (EsaScanner.InvalidArchiveException ex) {
+                    System.err.println("Rejected " + location + ": " + ex.getMessage());
+                } catch (IllegalStateException ex) {
+                    ex.printStackTrace(System.err);
+                } catch (SubsystemException ex) {
+                    ex.printStackTrace(System.err);
+                } catch (Exception ex) {
+                    ex.printStackTrace(System.err);
+                }
+                if (subsystem != null) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(subsystem.getSubsystemId());
+                }
+            }
+            if (sb.toString().indexOf(',') > 0) {
+                out.println("Subsystem IDs: " + sb.toString());
+            } else if (sb.length() > 0) {
+                out.println("Subsystem ID: " + sb.toString());
+            }
+        } finally {
+            out.close();
+            m_bc.ungetService(serviceReference);
+        }
+    }
+
+    private void dryRun(OutputSink out, Subsystem target, String[] urls) {
+        CapabilityIndex.Region region = m_capabilities.get(target);
+        if (region == null) {
+            System.err.println("Subsystem " + target.getSubsystemId() + " has no region.");
+            return;
+        }
         for (String url : urls) {
             String location = url.trim();
-            Subsystem subsystem = null;
             try {
-                subsystem = root.install(location, new URL(location).openStream());
-            } catch (IllegalStateException ex) {
-                ex.printStackTrace(System.err);
-            } catch (SubsystemException ex) {
-                ex.printStackTrace(System.err);
+                File file = m_cache.fetch(location);
+                EsaScanner.Archive archive;
+                try {
+                    archive = EsaScanner.scan(file, EsaCache.getDigest(file));
+                } finally {
+                    m_cache.release(file);
+                }
+                InstallDryRun.Report report = InstallDryRun.check(archive, region);
+                out.println(location + ":");
+                out.printf("   SHA-1 %s, %d entries scanned, %d CRC verified in %.3f ms", archive.getDigest(),
+                        archive.getEntries(), archive.getVerified(), archive.getNanos() / 1e6).println();
+                out.printf("   %s %s (%s), %d bundles checked against %d packages of subsystem %d in %.3f ms",
+                        report.getSymbolicName(), report.getVersion(), report.getType(), report.getBundles(),
+                        report.getPackages(), target.getSubsystemId(), report.getNanos() / 1e6).println();
+                for (String requirement : report.getUnsatisfied()) {
+                    out.println("   " + requirement + " [UNSATISFIED]");
+                }
+                for (String note : report.getNotes()) {
+                    out.println("   " + note);
+                }
+                if (report.getUnsatisfied().isEmpty()) {
+                    out.println("   No unsatisfied requirements");
+                }
+            } catch (EsaScanner.InvalidArchiveException ex) {
+                System.err.println("Rejected " + location + ": " + ex.getMessage());
             } catch (Exception ex) {
                 ex.printStackTrace(System.err);
             }
-            if (subsystem != null) {
-                if (sb.length() > 0) {
-                    sb.append(", ");
-                }
-                sb.append(subsystem.getSubsystemId());
-            }
         }
-        if (sb.toString().indexOf(',') > 0) {
-            System.out.println("Subsystem IDs: " + sb.toString());
-        } else if (sb.length() > 0) {
-            System.out.println("Subsystem ID: " + sb.toString());
+    }
+
+    private static void printInstallSummary(OutputSink out, List<BatchInstaller.Result> results) {
+        out.printf("%5s|%9s|%9s|%9s|%9s|%s", "ID", "Fetch ms", "Scan ms", "Inst. ms", "Total ms", "Location").println();
+        for (BatchInstaller.Result result : results) {
+            if (result.getError() instanceof EsaScanner.InvalidArchiveException) {
+                System.err.println("Rejected " + result.getLocation() + ": " + result.getError().getMessage());
+            } else if (result.getError() != null) {
+                result.getError().printStackTrace(System.err);
+            }
+            Subsystem subsystem = result.getSubsystem();
+            out.printf("%5s|%9d|%9d|%9d|%9d|%s",
+                    subsystem != null ? String.valueOf(subsystem.getSubsystemId()) : "-",
+                    result.getFetchMillis(), result.getScanMillis(), result.getInstallMillis(), result.getTotalMillis(),
+                    result.getLocation()).println();
         }
+    }
 
-        m_bc.ungetService(serviceReference);
+    @Descriptor("display subsystem archive cache statistics")
+    public void cache() throws IOException {
+        cache("stats");
+    }
+
+    @Descriptor("manage subsystem archive cache")
+    public void cache(@Descriptor("('stats' | 'purge')") String action) throws IOException {
+        OutputSink out = OutputSink.console();
+        try {
+            if ("stats".equals(action)) {
+                EsaCache.Stats stats = m_cache.getStats();
+                out.println("Directory: " + m_cache.getDirectory());
+                out.printf("Locations: %d, archives: %d", stats.getLocations(), stats.getArchives()).println();
+                out.printf("Size: %d of %d bytes", stats.getSize(), stats.getMaxSize()).println();
+                out.printf("Hits: %d, misses: %d, evictions: %d",
+                        stats.getHits(), stats.getMisses(), stats.getEvictions()).println();
+            } else if ("purge".equals(action)) {
+                m_cache.purge();
+                out.println("Subsystem archive cache purged");
+            } else {
+                out.println("Invalid argument: " + action);
+            }
+        } finally {
+            out.close();
+        }
     }
 
     @Descriptor("list all installed subsystems")
-    public void ls() throws InvalidSyntaxException {
-        Subsystem rootSubsystem = getRootSubsystem();
-        if (rootSubsystem != null) {
-            printSubsystem(rootSubsystem, 1);
-        } else {
-            System.out.println("No Subsystems are installed");
+    public void ls(
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("maximum depth below the root subsystem") @Parameter(names = {"-d", "--depth"}, absentValue = "-1") int depth,
+            @Descriptor("comma separated subsystem states to show") @Parameter(names = {"-s", "--state"}, absentValue = "") String states)
+            throws InvalidSyntaxException, IOException {
+        OutputSink out = OutputSink.open(output);
+        try {
+            RecordEncoder encoder = RecordEncoder.create(format, out);
+            // Render from the event maintained snapshot, the live subsystems are not touched.
+            SubsystemTree tree = m_index.getTree();
+            Set<String> stateFilter = parseStates(states);
+            SubsystemTree.Node root = tree.getRoot();
+            if (root != null) {
+                printNode(out, encoder, tree, root, null, 0, depth, stateFilter);
+            } else {
+                out.println("No Subsystems are installed");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void printNode(OutputSink out, RecordEncoder encoder, SubsystemTree tree, SubsystemTree.Node node,
+                                 SubsystemTree.Node parent, int depth, int maxDepth, Set<String> states) {
+        if (states.isEmpty() || states.contains(String.valueOf(node.getState()).toUpperCase())) {
+            if (encoder != null) {
+                encoder.begin("subsystem")
+                        .field("id", node.getId())
+                        .field("parent", parent != null ? parent.getId() : null)
+                        .field("depth", depth)
+                        .field("symbolicName", node.getSymbolicName())
+                        .field("version", node.getVersion())
+                        .field("type", node.getType())
+                        .field("state", node.getState())
+                        .end();
+            } else {
+                out.printf("  %s", node.getId());
+                for (int i = 0; i <= depth; i++) {
+                    out.print("  ");
+                }
+                out.printf("%s  %s  %S", node.getSymbolicName(), node.getVersion(), node.getState()).println();
+            }
+        }
+        if (maxDepth < 0 || depth < maxDepth) {
+            for (SubsystemTree.Node child : tree.getChildren(node.getId())) {
+                printNode(out, encoder, tree, child, node, depth + 1, maxDepth, states);
+            }
         }
     }
 
-    private static void printSubsystem(Subsystem subsystem, int shift) {
-        System.out.print(String.format("  %s", subsystem.getSubsystemId()));
+    private static Set<String> parseStates(String states) {
+        Set<String> result = new HashSet<String>();
+        if (states != null) {
+            for (String state : states.split(",")) {
+                if (state.trim().length() > 0) {
+                    result.add(state.trim().toUpperCase());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void printSubsystem(OutputSink out, Subsystem subsystem, int shift) {
+        out.printf("  %s", subsystem.getSubsystemId());
         for (int i = 0; i < shift; i++) {
-            System.out.print("  ");
+            out.print("  ");
+        }
+        out.printf("%s  %s  %S", subsystem.getSymbolicName(), subsystem.getVersion(), subsystem.getState()).println();
+        Collection<Subsystem> children = subsystem.getChildren();
+        if (children != null) {
+            for (Subsystem child : children) {
+                printSubsystem(out, child, shift + 1);
+            }
         }
-        System.out.println(String.format("%s  %s  %S", subsystem.getSymbolicName(), subsystem.getVersion(), subsystem.getState()));
+    }
+
+    private static void encodeSubsystem(RecordEncoder encoder, Subsystem subsystem, Subsystem parent, int depth) {
+        encoder.begin("subsystem")
+                .field("id", subsystem.getSubsystemId())
+                .field("parent", parent != null ? parent.getSubsystemId() : null)
+                .field("depth", depth)
+                .field("symbolicName", subsystem.getSymbolicName())
+                .field("version", subsystem.getVersion())
+                .field("type", subsystem.getType())
+                .field("state", subsystem.getState())
+                .end();
         Collection<Subsystem> children = subsystem.getChildren();
         if (children != null) {
             for (Subsystem child : children) {
-                printSubsystem(child, shift + 1);
+                encodeSubsystem(encoder, child, subsystem, depth + 1);
             }
         }
     }
 
     private Subsystem getRootSubsystem() throws InvalidSyntaxException {
-        Collection<ServiceReference<Subsystem>> serviceReferences = m_bc.getServiceReferences(Subsystem.class, String.format("(%s=%s)",
-                SubsystemConstants.SUBSYSTEM_SYMBOLICNAME_PROPERTY, SubsystemConstants.ROOT_SUBSYSTEM_SYMBOLICNAME));
-        if (serviceReferences != null && serviceReferences.size() == 1) {
-            return m_bc.getService(serviceReferences.iterator().next());
+        ServiceReference<Subsystem> serviceReference = m_index.findRoot();
+        if (serviceReference != null) {
+            return m_bc.getService(serviceReference);
         }
         return null; // something wrong
     }
 
+    @Descriptor("display subsystem index statistics")
+    public void index() throws IOException {
+        OutputSink out = OutputSink.console();
+        try {
+            out.printf("Subsystems: %d", m_index.getIndexedCount()).println();
+            out.printf("Hits: %d, misses: %d, refreshes: %d",
+                    m_index.getHits(), m_index.getMisses(), m_index.getRefreshes()).println();
+            out.printf("Tree snapshot version: %d", m_index.getTree().getVersion()).println();
+            out.printf("Header cache hits: %d, misses: %d", m_headers.getHits(), m_headers.getMisses()).println();
+        } finally {
+            out.close();
+        }
+    }
 
-    @Descriptor("start subsystems")
-    public void start(@Descriptor("target subsystem identifiers") long[] ids) {
-        if ((ids != null) && (ids.length >= 1)) {
-            List<ServiceReference> refs = new ArrayList<ServiceReference>();
-
-            for (long id : ids) {
-                try {
-                    ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
-
-                    if (serviceReference != null) {
-                        refs.add(serviceReference);
-                        m_bc.getService(serviceReference).start();
-                    } else {
-                        System.err.println("Subsystem ID " + id + " is invalid.");
+    @Descriptor("display lifecycle latency percentiles and event counts per subsystem")
+    public void stats(
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("clear the metrics after displaying them") @Parameter(names = {"-r", "--reset"}, presentValue = "true", absentValue = "false") boolean reset)
+            throws IOException {
+        OutputSink out = OutputSink.open(output);
+        try {
+            RecordEncoder encoder = RecordEncoder.create(format, out);
+            SortedMap<Long, Metrics.SubsystemMetrics> subsystems = m_metrics.getSubsystems();
+            Map<Metrics.Operation, LatencyHistogram> totals = m_metrics.getTotals();
+            if (reset) {
+                m_metrics.reset();
+            }
+            if (encoder == null) {
+                out.printf("%5s|%-9s|%7s|%9s|%9s|%9s|%9s|%9s",
+                        "ID", "Operation", "Count", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms").println();
+            }
+            for (Map.Entry<Long, Metrics.SubsystemMetrics> entry : subsystems.entrySet()) {
+                for (Metrics.Operation operation : Metrics.Operation.values()) {
+                    LatencyHistogram histogram = entry.getValue().get(operation);
+                    if (histogram != null) {
+                        printLatency(out, encoder, String.valueOf(entry.getKey()), operation, histogram);
                     }
-                } catch (NumberFormatException ex) {
-                    System.err.println("Unable to parse id '" + id + "'.");
-                } catch (SubsystemException ex) {
-                    ex.printStackTrace(System.err);
-                } catch (Exception ex) {
-                    ex.printStackTrace(System.err);
                 }
             }
-            Util.ungetServices(m_bc, refs);
+            for (Map.Entry<Metrics.Operation, LatencyHistogram> entry : totals.entrySet()) {
+                printLatency(out, encoder, "*", entry.getKey(), entry.getValue());
+            }
+
+            if (encoder == null) {
+                out.println();
+                out.printf("%5s|%13s|%14s|%13s", "ID", "Bundle events", "Service events", "State changes").println();
+            }
+            for (Map.Entry<Long, Metrics.SubsystemMetrics> entry : subsystems.entrySet()) {
+                Metrics.SubsystemMetrics metrics = entry.getValue();
+                if (encoder != null) {
+                    encoder.begin("events")
+                            .field("subsystem", entry.getKey())
+                            .field("bundleEvents", metrics.getCount(Metrics.Counter.BUNDLE_EVENTS))
+                            .field("serviceEvents", metrics.getCount(Metrics.Counter.SERVICE_EVENTS))
+                            .field("stateChanges", metrics.getCount(Metrics.Counter.STATE_CHANGES))
+                            .end();
+                } else {
+                    out.printf("%5d|%13d|%14d|%13d", entry.getKey(),
+                            metrics.getCount(Metrics.Counter.BUNDLE_EVENTS),
+                            metrics.getCount(Metrics.Counter.SERVICE_EVENTS),
+                            metrics.getCount(Metrics.Counter.STATE_CHANGES)).println();
+                }
+            }
+            if (reset && encoder == null) {
+                out.println("Metrics reset");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void printLatency(OutputSink out, RecordEncoder encoder, String id,
+                                     Metrics.Operation operation, LatencyHistogram histogram) {
+        if (encoder != null) {
+            encoder.begin("latency")
+                    .field("subsystem", id)
+                    .field("operation", operation)
+                    .field("count", histogram.getCount())
+                    .field("meanNanos", histogram.getMean())
+                    .field("p50Nanos", histogram.getPercentile(50))
+                    .field("p90Nanos", histogram.getPercentile(90))
+                    .field("p99Nanos", histogram.getPercentile(99))
+                    .field("maxNanos", histogram.getMax())
+                    .end();
         } else {
-            System.err.println("Incorrect number of arguments");
+            out.printf("%5s|%-9s|%7d|%9.3f|%9.3f|%9.3f|%9.3f|%9.3f", id, operation, histogram.getCount(),
+                    histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                    histogram.getPercentile(90) / 1e6, histogram.getPercentile(99) / 1e6,
+                    histogram.getMax() / 1e6).println();
         }
     }
 
+
+    @Descriptor("start subsystems")
+    public void start(
+            @Descriptor("number of subsystems started concurrently") @Parameter(names = {"-p", "--parallel"}, absentValue = "1") int parallel,
+            @Descriptor("leave content bundles with a lazy activation policy waiting for their first use") @Parameter(names = {"-l", "--lazy"}, presentValue = "true", absentValue = "false") boolean lazy,
+            @Descriptor("measure the heap after garbage collection before, after the start and after first use of the content") @Parameter(names = {"-H", "--heap"}, presentValue = "true", absentValue = "false") boolean heap,
+            @Descriptor("target subsystem identifiers") long[] ids) throws IOException, InterruptedException {
+        execute(lazy ? LifecycleExecutor.Operation.LAZY_START : LifecycleExecutor.Operation.START, parallel, heap, ids);
+    }
+
     @Descriptor("stop subsystems")
-    public void stop(@Descriptor("target subsystem identifiers") long[] ids) {
-        if ((ids != null) && (ids.length >= 1)) {
-            List<ServiceReference> refs = new ArrayList<ServiceReference>();
-            for (long id : ids) {
-                try {
-                    ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
+    public void stop(
+            @Descriptor("number of subsystems stopped concurrently") @Parameter(names = {"-p", "--parallel"}, absentValue = "1") int parallel,
+            @Descriptor("target subsystem identifiers") long[] ids) throws IOException, InterruptedException {
+        execute(LifecycleExecutor.Operation.STOP, parallel, false, ids);
+    }
 
-                    if (serviceReference != null) {
-                        refs.add(serviceReference);
-                        m_bc.getService(serviceReference).stop();
-                    } else {
-                        System.err.println("Subsystem ID " + id + " is invalid.");
-                    }
-                } catch (NumberFormatException ex) {
-                    System.err.println("Unable to parse id '" + id + "'.");
-                } catch (SubsystemException ex) {
-                    ex.printStackTrace(System.err);
-                } catch (Exception ex) {
-                    ex.printStackTrace(System.err);
+    @Descriptor("uninstall subsystems")
+    public void uninstall(
+            @Descriptor("number of subsystems uninstalled concurrently") @Parameter(names = {"-p", "--parallel"}, absentValue = "1") int parallel,
+            @Descriptor("target subsystem identifiers") long[] ids) throws IOException, InterruptedException {
+        execute(LifecycleExecutor.Operation.UNINSTALL, parallel, false, ids);
+    }
+
+    @Descriptor("profile the bundle activations of a subsystem operation")
+    public void profile(
+            @Descriptor("write a Chrome trace JSON file") @Parameter(names = {"-t", "--trace"}, absentValue = "") String trace,
+            @Descriptor("leave content bundles with a lazy activation policy waiting for their first use") @Parameter(names = {"-l", "--lazy"}, presentValue = "true", absentValue = "false") boolean lazy,
+            @Descriptor("('start')") String action,
+            @Descriptor("target subsystem identifier") long id) throws IOException {
+        if (!"start".equals(action)) {
+            System.err.println("Invalid argument: " + action);
+            return;
+        }
+        ServiceReference<Subsystem> serviceReference = m_index.find(id);
+        if (serviceReference == null) {
+            System.err.println("Subsystem ID " + id + " is invalid.");
+            return;
+        }
+        Subsystem subsystem = m_bc.getService(serviceReference);
+        if (subsystem == null) {
+            System.err.println("Subsystem ID " + id + " is invalid.");
+            return;
+        }
+        try {
+            // profile what sub:start does, including the activation of lazy content
+            LifecycleExecutor.Operation operation =
+                    lazy ? LifecycleExecutor.Operation.LAZY_START : LifecycleExecutor.Operation.START;
+            ActivationProfiler profiler = new ActivationProfiler(subsystem);
+            profiler.open();
+            boolean started = false;
+            try {
+                operation.apply(subsystem);
+                started = true;
+            } catch (Exception ex) {
+                ex.printStackTrace(System.err);
+            } finally {
+                profiler.close();
+            }
+            if (started) {
+                // like execute, failed starts are not mixed into the start latency
+                m_metrics.record(id, operation.getMetric(), profiler.getDurationNanos());
+            }
+
+            List<ActivationProfiler.Entry> timeline = profiler.getTimeline();
+            List<ActivationProfiler.Activation> activations = profiler.getActivations(timeline);
+            OutputSink out = OutputSink.console();
+            try {
+                printProfile(out, profiler, timeline, activations);
+            } finally {
+                out.close();
+            }
+            if (trace.length() > 0) {
+                OutputSink file = OutputSink.open(trace);
+                try {
+                    profiler.writeTrace(file, timeline, activations);
+                } finally {
+                    file.close();
                 }
+                System.out.println("Trace written to " + trace);
             }
-            Util.ungetServices(m_bc, refs);
+        } finally {
+            m_bc.ungetService(serviceReference);
+        }
+    }
 
-        } else {
-            System.err.println("Incorrect number of arguments");
+    private static void printProfile(OutputSink out, ActivationProfiler profiler,
+                                     List<ActivationProfiler.Entry> timeline,
+                                     List<ActivationProfiler.Activation> activations) {
+        out.println("Timeline:");
+        for (ActivationProfiler.Entry entry : timeline) {
+            out.printf("%10.3f ms  %5d  %-15s  %s%s", (entry.getNanos() - profiler.getOrigin()) / 1e6,
+                    entry.getBundleId(), entry.getKind(), entry.getBundleName(),
+                    entry.getDetail() != null ? "  " + entry.getDetail() : "").println();
+        }
+
+        List<ActivationProfiler.Activation> sorted = new ArrayList<ActivationProfiler.Activation>(activations);
+        Collections.sort(sorted, new Comparator<ActivationProfiler.Activation>() {
+            public int compare(ActivationProfiler.Activation a1, ActivationProfiler.Activation a2) {
+                long d1 = a1.getActivationNanos();
+                long d2 = a2.getActivationNanos();
+                return d1 > d2 ? -1 : d1 == d2 ? 0 : 1;
+            }
+        });
+        out.println();
+        out.printf("%5s|%10s|%13s|%8s|%s", "ID", "Wait ms", "Activator ms", "Services", "Bundle").println();
+        for (ActivationProfiler.Activation activation : sorted) {
+            out.printf("%5d|%10s|%13s|%8d|%s", activation.getBundleId(),
+                    formatMillis(activation.getWaitNanos()), formatMillis(activation.getActivationNanos()),
+                    activation.getServices(), activation.getBundleName()).println();
+        }
+
+        out.println();
+        StringBuilder path = new StringBuilder();
+        long activators = 0;
+        for (ActivationProfiler.Activation activation : profiler.getCriticalPath(activations)) {
+            if (path.length() > 0) {
+                path.append(" -> ");
+            }
+            path.append(activation.getBundleName()).append(" (")
+                    .append(formatMillis(activation.getActivationNanos())).append(" ms)");
+            activators += activation.getActivationNanos();
         }
+        out.println("Critical path: " + (path.length() > 0 ? path : "-"));
+        out.printf("Total: %.3f ms, activators on the critical path: %.3f ms",
+                profiler.getDurationNanos() / 1e6, activators / 1e6).println();
     }
 
-    @Descriptor("uninstall subsystems")
-    public void uninstall(@Descriptor("target subsystem identifiers") long[] ids) {
+    private static String formatMillis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.3f", nanos / 1e6);
+    }
+
+    private void execute(LifecycleExecutor.Operation operation, int parallel, boolean heap, long[] ids)
+            throws IOException, InterruptedException {
         if ((ids != null) && (ids.length >= 1)) {
             List<ServiceReference> refs = new ArrayList<ServiceReference>();
+            List<Subsystem> subsystems = new ArrayList<Subsystem>();
             for (long id : ids) {
-                try {
-                    ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
+                ServiceReference<Subsystem> serviceReference = m_index.find(id);
 
-                    if (serviceReference != null) {
-                        refs.add(serviceReference);
-                        m_bc.getService(serviceReference).uninstall();
-                    } else {
-                        System.err.println("Subsystem ID " + id + " is invalid.");
-                    }
-                } catch (NumberFormatException ex) {
-                    System.err.println("Unable to parse id '" + id + "'.");
-                } catch (SubsystemException ex) {
-                    ex.printStackTrace(System.err);
-                } catch (Exception ex) {
-                    ex.printStackTrace(System.err);
+                if (serviceReference != null) {
+                    refs.add(serviceReference);
+                    subsystems.add(m_bc.getService(serviceReference));
+                } else {
+                    System.err.println("Subsystem ID " + id + " is invalid.");
+                }
+            }
+            long[] heapUsed = heap ? new long[]{getSettledHeap(), 0, 0} : null;
+            long start = System.nanoTime();
+            List<LifecycleExecutor.Result> results = new LifecycleExecutor(parallel).execute(operation, subsystems);
+            long wallClock = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (LifecycleExecutor.Result result : results) {
+                if (result.isSuccessful()) {
+                    m_metrics.record(result.getSubsystem().getSubsystemId(), operation.getMetric(),
+                            result.getDurationNanos());
                 }
             }
+            if (heap) {
+                heapUsed[1] = getSettledHeap();
+                List<ServiceReference> used = useContent(results);
+                heapUsed[2] = getSettledHeap();
+                Util.ungetServices(m_bc, used);
+            }
+            OutputSink out = OutputSink.console();
+            try {
+                printLifecycleReport(out, results, wallClock, heapUsed);
+            } finally {
+                out.close();
+            }
             Util.ungetServices(m_bc, refs);
         } else {
             System.err.println("Incorrect number of arguments");
         }
     }
 
+    /**
+     * Returns the heap in use after collecting garbage until the heap stops shrinking, at
+     * most five times. <code>System.gc()</code> is a request, so this is still an estimate.
+     */
+    private static long getSettledHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Uses the content of the started subsystems once: activates the bundles waiting for lazy
+     * activation and gets every service registered by the content bundles.
+     *
+     * @return the references of the services got
+     */
+    private List<ServiceReference> useContent(List<LifecycleExecutor.Result> results) {
+        List<ServiceReference> used = new ArrayList<ServiceReference>();
+        for (LifecycleExecutor.Result result : results) {
+            if (!result.isSuccessful()) {
+                continue;
+            }
+            try {
+                LifecycleExecutor.activate(result.getSubsystem());
+            } catch (BundleException ex) {
+                ex.printStackTrace(System.err);
+            }
+            for (Bundle bundle : LifecycleExecutor.getContentBundles(result.getSubsystem())) {
+                ServiceReference<?>[] references = bundle.getRegisteredServices();
+                if (references != null) {
+                    for (ServiceReference<?> reference : references) {
+                        if (m_bc.getService(reference) != null) {
+                            used.add(reference);
+                        }
+                    }
+                }
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @param heapUsed the heap before, after the operation and after first use of the
+     *                 content, or <code>null</code> if it was not measured
+     */
+    private static void printLifecycleReport(OutputSink out, List<LifecycleExecutor.Result> results, long wallClock,
+                                             long[] heapUsed) throws IOException {
+        out.printf("%5s|%9s|%9s|%9s|%s", "ID", "Begin ms", "Time ms", "End ms", "Critical path").println();
+        for (LifecycleExecutor.Result result : results) {
+            if (result.getError() != null) {
+                result.getError().printStackTrace(System.err);
+            } else if (result.getSkippedFor() != null) {
+                System.err.println("Subsystem ID " + result.getSubsystem().getSubsystemId()
+                        + " skipped, subsystem " + result.getSkippedFor().getSubsystemId() + " failed.");
+            }
+            StringBuilder path = new StringBuilder();
+            for (Subsystem subsystem : result.getCriticalPath()) {
+                if (path.length() > 0) {
+                    path.append(" -> ");
+                }
+                path.append(subsystem.getSubsystemId());
+            }
+            out.printf("%5d|%9d|%9d|%9d|%s%s", result.getSubsystem().getSubsystemId(),
+                    result.getStartMillis(), result.getDurationMillis(), result.getEndMillis(),
+                    path, result.isSuccessful() ? "" : " [FAILED]").println();
+        }
+        out.printf("Wall clock: %d ms", wallClock).println();
+        if (heapUsed != null) {
+            out.printf("Heap used: %d KB before, %d KB after start, %d KB after first use",
+                    heapUsed[0] / 1024, heapUsed[1] / 1024, heapUsed[2] / 1024).println();
+        }
+    }
+
     @Descriptor("list all installed bundles")
     public void lb(
-            @Descriptor("target subsystem identifier") long id) throws InvalidSyntaxException {
-        lb(id, false, false, false, null);
+            @Descriptor("target subsystem identifier") long id) throws InvalidSyntaxException, IOException {
+        lb(id, "", RecordEncoder.TEXT, false, false, false, null);
     }
 
     @Descriptor("list installed bundles matching a substring")
     public void lb(
             @Descriptor("target subsystem identifier") long id,
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
             @Descriptor("show location") @Parameter(names = {"-l", "--location"}, presentValue = "true", absentValue = "false") boolean showLoc,
             @Descriptor("show symbolic name") @Parameter(names = {"-s", "--symbolicname"}, presentValue = "true", absentValue = "false") boolean showSymbolic,
             @Descriptor("show update location") @Parameter(names = {"-u", "--updatelocation"}, presentValue = "true", absentValue = "false") boolean showUpdate,
-            @Descriptor("subtring matched against name or symbolic name") String pattern) throws InvalidSyntaxException {
+            @Descriptor("subtring matched against name or symbolic name") String pattern)
+            throws InvalidSyntaxException, IOException {
         // Keep track of service references.
         List<ServiceReference> refs = new ArrayList();
 
         List<Bundle> found = new ArrayList();
 
-        ServiceReference<Subsystem> serviceReference = Util.findSubsystem(id, m_bc);
+        ServiceReference<Subsystem> serviceReference = m_index.find(id);
         if (serviceReference == null) {
             System.out.println("Unknown Subsystem ID");
             return;
@@ -249,34 +766,128 @@ public class SubsystemCommands {
         if (pattern == null) {
             found.addAll(Arrays.asList(subsystem.getBundleContext().getBundles()));
         } else {
+            long[] matching = m_bundleNames.find(pattern);
             Bundle[] bundles = subsystem.getBundleContext().getBundles();
 
             for (Bundle bundle : bundles) {
-                String name = bundle.getHeaders().get(Constants.BUNDLE_NAME);
-                if (matchBundleName(bundle.getSymbolicName(), pattern)
-                        || matchBundleName(name, pattern)) {
+                if (Arrays.binarySearch(matching, bundle.getBundleId()) >= 0) {
                     found.add(bundle);
                 }
             }
         }
 
-        if (found.size() > 0) {
-            printBundleList(subsystem, (Bundle[]) found.toArray(new Bundle[found.size()]), showLoc, showSymbolic, showUpdate);
-        } else {
-            System.out.println("No matching bundles found");
-        }
+        printBundles(output, format, subsystem, null, found, showLoc, showSymbolic, showUpdate);
 
         m_bc.ungetService(serviceReference);
     }
 
-    private static boolean matchBundleName(String name, String pattern) {
-        return (name != null) && name.toLowerCase().contains(pattern.toLowerCase());
+    @Descriptor("list installed bundles of all subsystems matching a substring")
+    public void lb(
+            @Descriptor("search the bundles of all subsystems") @Parameter(names = {"-a", "--all"}, presentValue = "true", absentValue = "false") boolean all,
+            @Descriptor("write output to file") @Parameter(names = {"-o", "--output"}, absentValue = "") String output,
+            @Descriptor("output format ('text' | 'json' | 'csv')") @Parameter(names = {"-f", "--format"}, absentValue = "text") String format,
+            @Descriptor("show location") @Parameter(names = {"-l", "--location"}, presentValue = "true", absentValue = "false") boolean showLoc,
+            @Descriptor("show symbolic name") @Parameter(names = {"-s", "--symbolicname"}, presentValue = "true", absentValue = "false") boolean showSymbolic,
+            @Descriptor("show update location") @Parameter(names = {"-u", "--updatelocation"}, presentValue = "true", absentValue = "false") boolean showUpdate,
+            @Descriptor("subtring matched against name or symbolic name, or the subsystem identifier without --all") String pattern)
+            throws InvalidSyntaxException, IOException {
+        if (!all) {
+            // the shell may pick this method for 'lb <id>'
+            try {
+                lb(Long.parseLong(pattern), output, format, showLoc, showSymbolic, showUpdate, null);
+            } catch (NumberFormatException ex) {
+                System.err.println("Unable to parse id '" + pattern + "', use --all to search all subsystems.");
+            }
+            return;
+        }
+        List<Bundle> found = m_bundleNames.findBundles(pattern);
+        printBundles(output, format, null, getOwners(found), found, showLoc, showSymbolic, showUpdate);
     }
 
-    private static void printBundleList(Subsystem subsystem, Bundle[] bundles,
+    /**
+     * Returns the IDs of the subsystems a bundle is a constituent of, in ascending order, by
+     * bundle ID. Shared content belongs to several subsystems.
+     */
+    private Map<Long, List<Long>> getOwners(List<Bundle> bundles) {
+        Map<Long, List<Long>> owners = new HashMap<Long, List<Long>>();
+        for (Bundle bundle : bundles) {
+            owners.put(bundle.getBundleId(), new ArrayList<Long>(1));
+        }
+        ServiceReference<Subsystem>[] references = m_index.getServiceReferences();
+        if (references == null || owners.isEmpty()) {
+            return owners;
+        }
+        for (ServiceReference<Subsystem> reference : references) {
+            Subsystem subsystem = m_bc.getService(reference);
+            if (subsystem == null) {
+                continue;
+            }
+            try {
+                Collection<Resource> constituents = subsystem.getConstituents();
+                if (constituents != null) {
+                    for (Resource resource : constituents) {
+                        if (resource instanceof BundleRevision) {
+                            List<Long> ids = owners.get(((BundleRevision) resource).getBundle().getBundleId());
+                            if (ids != null && !ids.contains(subsystem.getSubsystemId())) {
+                                ids.add(subsystem.getSubsystemId());
+                            }
+                        }
+                    }
+                }
+            } catch (IllegalStateException ex) {
+                // uninstalled meanwhile
+            } finally {
+                m_bc.ungetService(reference);
+            }
+        }
+        for (List<Long> ids : owners.values()) {
+            Collections.sort(ids);
+        }
+        return owners;
+    }
+
+    /**
+     * @param owners the owning subsystems by bundle ID when the bundles are from several
+     *               subsystems, <code>null</code> if they are all from the given subsystem
+     */
+    private static void printBundles(String output, String format, Subsystem subsystem, Map<Long, List<Long>> owners,
+                                     List<Bundle> found, boolean showLoc, boolean showSymbolic, boolean showUpdate)
+            throws IOException {
+        OutputSink out = OutputSink.open(output);
+        try {
+            RecordEncoder encoder = RecordEncoder.create(format, out);
+            if (encoder != null) {
+                if (subsystem != null) {
+                    encodeSubsystem(encoder, subsystem, null, 0);
+                }
+                for (Bundle bundle : found) {
+                    encoder.begin("bundle")
+                            .field("subsystem", owners != null ? owners.get(bundle.getBundleId())
+                                    : subsystem != null ? subsystem.getSubsystemId() : null)
+                            .field("id", bundle.getBundleId())
+                            .field("state", getStateString(bundle).trim())
+                            .field("symbolicName", bundle.getSymbolicName())
+                            .field("name", bundle.getHeaders().get(Constants.BUNDLE_NAME))
+                            .field("version", bundle.getVersion())
+                            .field("location", bundle.getLocation())
+                            .end();
+                }
+            } else if (found.size() > 0) {
+                printBundleList(out, subsystem, owners, (Bundle[]) found.toArray(new Bundle[found.size()]), showLoc, showSymbolic, showUpdate);
+            } else {
+                out.println("No matching bundles found");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void printBundleList(OutputSink out, Subsystem subsystem, Map<Long, List<Long>> owners, Bundle[] bundles,
                                  boolean showLoc, boolean showSymbolic, boolean showUpdate) {
         // Display active start level.
-        printSubsystem(subsystem, 0);
+        if (subsystem != null) {
+            printSubsystem(out, subsystem, 0);
+        }
 
         // Determine last column.
         String lastColumn = "Name";
@@ -288,7 +899,11 @@ public class SubsystemCommands {
             lastColumn = "Update location";
         }
 
-        System.out.println(String.format("%5s|%-11s|%s", "ID", "State", lastColumn));
+        if (owners != null) {
+            out.printf("%5s|%-11s|%-10s|%s", "ID", "State", "Subsystems", lastColumn).println();
+        } else {
+            out.printf("%5s|%-11s|%s", "ID", "State", lastColumn).println();
+        }
         for (Bundle bundle : bundles) {
             // Get the bundle name or location.
             String name = (String) bundle.getHeaders().get(Constants.BUNDLE_NAME);
@@ -313,8 +928,13 @@ public class SubsystemCommands {
             name = (!showLoc && !showUpdate) ? name + " (" + bundle.getVersion() + ")"
                     : name;
 
-            System.out.println(String.format("%5d|%-11s|%s",
-                    bundle.getBundleId(), getStateString(bundle), name));
+            if (owners != null) {
+                out.printf("%5d|%-11s|%-10s|%s", bundle.getBundleId(), getStateString(bundle),
+                        Util.getValueString(owners.get(bundle.getBundleId()).toArray()), name).println();
+            } else {
+                out.printf("%5d|%-11s|%s",
+                        bundle.getBundleId(), getStateString(bundle), name).println();
+            }
         }
     }
 
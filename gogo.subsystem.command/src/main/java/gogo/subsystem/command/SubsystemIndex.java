@@ -0,0 +1,240 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the registered subsystem services by subsystem ID and symbolic name.
+ * <p/>
+ * The index is maintained from service events by a {@link ServiceTracker}, so commands
+ * look subsystems up without querying the service registry. The same events maintain a
+ * {@link SubsystemTree} snapshot of the subsystem hierarchy.
+ * <p/>
+ * The tracker callbacks only read service properties. The parents and children of added
+ * and modified subsystems are read from the subsystem services when the tree is next
+ * requested, outside the callbacks. Reading the children of a parent links subsystems that
+ * gained a parent after they were tracked, e.g. shared content of a newly installed feature.
+ */
+public class SubsystemIndex extends ServiceTracker<Subsystem, ServiceReference<Subsystem>> {
+    private final ConcurrentMap<Long, ServiceReference<Subsystem>> m_byId =
+            new ConcurrentHashMap<Long, ServiceReference<Subsystem>>();
+    private final ConcurrentMap<String, Set<ServiceReference<Subsystem>>> m_byName =
+            new ConcurrentHashMap<String, Set<ServiceReference<Subsystem>>>();
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_refreshes = new AtomicLong();
+
+    private final Object m_treeLock = new Object();
+    private volatile SubsystemTree m_tree = SubsystemTree.EMPTY;
+    // subsystems whose parents and children are to be read
+    private final Queue<ServiceReference<Subsystem>> m_unlinked =
+            new ConcurrentLinkedQueue<ServiceReference<Subsystem>>();
+
+    public SubsystemIndex(BundleContext bc) {
+        super(bc, Subsystem.class, null);
+    }
+
+    /**
+     * Returns the service reference of a subsystem, or <code>null</code> if no subsystem
+     * with the ID is registered.
+     */
+    public ServiceReference<Subsystem> find(long id) {
+        ServiceReference<Subsystem> reference = m_byId.get(id);
+        (reference != null ? m_hits : m_misses).incrementAndGet();
+        return reference;
+    }
+
+    /**
+     * Returns the service references of all subsystems with a symbolic name.
+     */
+    public Collection<ServiceReference<Subsystem>> findBySymbolicName(String symbolicName) {
+        Set<ServiceReference<Subsystem>> references = m_byName.get(symbolicName);
+        if (references == null || references.isEmpty()) {
+            m_misses.incrementAndGet();
+            return Collections.emptySet();
+        }
+        m_hits.incrementAndGet();
+        return references;
+    }
+
+    /**
+     * Returns the service reference of the root subsystem, or <code>null</code> if the
+     * subsystem service is not available.
+     */
+    public ServiceReference<Subsystem> findRoot() {
+        Collection<ServiceReference<Subsystem>> references =
+                findBySymbolicName(SubsystemConstants.ROOT_SUBSYSTEM_SYMBOLICNAME);
+        return references.size() == 1 ? references.iterator().next() : null;
+    }
+
+    /**
+     * Returns the current snapshot of the subsystem tree.
+     */
+    public SubsystemTree getTree() {
+        ServiceReference<Subsystem> reference;
+        while ((reference = m_unlinked.poll()) != null) {
+            link(reference);
+        }
+        return m_tree;
+    }
+
+    @Override
+    public ServiceReference<Subsystem> addingService(ServiceReference<Subsystem> reference) {
+        m_refreshes.incrementAndGet();
+        Long id = getId(reference);
+        if (id != null) {
+            m_byId.put(id, reference);
+        }
+        String name = getSymbolicName(reference);
+        if (name != null) {
+            Set<ServiceReference<Subsystem>> references = m_byName.get(name);
+            if (references == null) {
+                Set<ServiceReference<Subsystem>> created = new CopyOnWriteArraySet<ServiceReference<Subsystem>>();
+                references = m_byName.putIfAbsent(name, created);
+                if (references == null) {
+                    references = created;
+                }
+            }
+            references.add(reference);
+        }
+        updateTree(reference);
+        return reference;
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<Subsystem> reference, ServiceReference<Subsystem> tracked) {
+        // ID and symbolic name never change, only the state property does
+        m_refreshes.incrementAndGet();
+        updateTree(reference);
+    }
+
+    @Override
+    public void removedService(ServiceReference<Subsystem> reference, ServiceReference<Subsystem> tracked) {
+        m_refreshes.incrementAndGet();
+        Long id = getId(reference);
+        if (id != null) {
+            m_byId.remove(id, reference);
+        }
+        String name = getSymbolicName(reference);
+        if (name != null) {
+            Set<ServiceReference<Subsystem>> references = m_byName.get(name);
+            if (references != null) {
+                references.remove(reference);
+            }
+        }
+        if (id != null) {
+            synchronized (m_treeLock) {
+                m_tree = m_tree.without(id);
+            }
+        }
+    }
+
+    private void updateTree(ServiceReference<Subsystem> reference) {
+        Long id = getId(reference);
+        if (id == null) {
+            return;
+        }
+        synchronized (m_treeLock) {
+            // keep the known parents until the subsystem is linked
+            SubsystemTree.Node old = m_tree.get(id);
+            SubsystemTree.Node node = new SubsystemTree.Node(id, getSymbolicName(reference),
+                    getString(reference, SubsystemConstants.SUBSYSTEM_VERSION_PROPERTY),
+                    getString(reference, SubsystemConstants.SUBSYSTEM_TYPE_PROPERTY),
+                    getString(reference, SubsystemConstants.SUBSYSTEM_STATE_PROPERTY),
+                    old != null ? old.getParents() : new long[0]);
+            m_tree = m_tree.with(node);
+        }
+        m_unlinked.add(reference);
+    }
+
+    /**
+     * Reads the parents and children of a subsystem into the tree.
+     */
+    private void link(ServiceReference<Subsystem> reference) {
+        Long id = getId(reference);
+        if (id == null || m_byId.get(id) != reference) {
+            // removed or replaced since it was queued
+            return;
+        }
+        long[] parents;
+        long[] children;
+        Subsystem subsystem = context.getService(reference);
+        if (subsystem == null) {
+            return;
+        }
+        try {
+            parents = getIds(subsystem.getParents());
+            children = getIds(subsystem.getChildren());
+        } catch (IllegalStateException e) {
+            // uninstalled meanwhile, the removal updates the tree
+            return;
+        } finally {
+            context.ungetService(reference);
+        }
+        synchronized (m_treeLock) {
+            SubsystemTree.Node node = m_tree.get(id);
+            if (node != null) {
+                m_tree = m_tree.with(node.withParents(parents)).withChildren(id, children);
+            }
+        }
+    }
+
+    private static long[] getIds(Collection<Subsystem> subsystems) {
+        if (subsystems == null) {
+            return new long[0];
+        }
+        long[] ids = new long[subsystems.size()];
+        int i = 0;
+        for (Subsystem subsystem : subsystems) {
+            ids[i++] = subsystem.getSubsystemId();
+        }
+        return ids;
+    }
+
+    public int getIndexedCount() {
+        return m_byId.size();
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    public long getRefreshes() {
+        return m_refreshes.get();
+    }
+
+    private static Long getId(ServiceReference<Subsystem> reference) {
+        Object id = reference.getProperty(SubsystemConstants.SUBSYSTEM_ID_PROPERTY);
+        if (id instanceof Number) {
+            return ((Number) id).longValue();
+        }
+        return id != null ? Long.valueOf(id.toString()) : null;
+    }
+
+    private static String getSymbolicName(ServiceReference<Subsystem> reference) {
+        return getString(reference, SubsystemConstants.SUBSYSTEM_SYMBOLICNAME_PROPERTY);
+    }
+
+    private static String getString(ServiceReference<Subsystem> reference, String key) {
+        Object value = reference.getProperty(key);
+        return value != null ? value.toString() : null;
+    }
+}
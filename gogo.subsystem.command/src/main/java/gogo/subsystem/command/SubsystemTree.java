@@ -0,0 +1,267 @@
+package gogo.subsystem.command;
+
+import java.util.*;
+
+/**
+ * Immutable, versioned snapshot of the subsystem tree.
+ * <p/>
+ * Nodes and children lists are kept in persistent tries keyed by subsystem ID. A change
+ * copies only the trie path to the changed entries, every other node and children list is
+ * shared with the previous snapshot, so an update costs O(log n) and readers render a
+ * consistent tree without touching the live subsystems.
+ */
+public final class SubsystemTree {
+    // the root subsystem always has the ID 0
+    public static final long ROOT_ID = 0;
+
+    public static final SubsystemTree EMPTY = new SubsystemTree(0, 0, Trie.EMPTY, Trie.EMPTY);
+
+    private static final long[] NONE = new long[0];
+
+    private final long m_version;
+    private final int m_size;
+    private final Trie m_nodes;
+    // sorted child IDs by parent ID
+    private final Trie m_children;
+
+    private SubsystemTree(long version, int size, Trie nodes, Trie children) {
+        m_version = version;
+        m_size = size;
+        m_nodes = nodes;
+        m_children = children;
+    }
+
+    /**
+     * Returns a snapshot with the node added or replaced.
+     */
+    public SubsystemTree with(Node node) {
+        Node old = get(node.m_id);
+        Trie children = m_children;
+        long[] oldParents = old != null ? old.m_parents : NONE;
+        for (long parent : oldParents) {
+            if (!contains(node.m_parents, parent)) {
+                children = children.put(parent, remove(getChildIds(children, parent), node.m_id));
+            }
+        }
+        for (long parent : node.m_parents) {
+            if (!contains(oldParents, parent)) {
+                children = children.put(parent, insert(getChildIds(children, parent), node.m_id));
+            }
+        }
+        return new SubsystemTree(m_version + 1, old != null ? m_size : m_size + 1,
+                m_nodes.put(node.m_id, node), children);
+    }
+
+    /**
+     * Returns a snapshot without the node. Its children keep their other parents.
+     */
+    public SubsystemTree without(long id) {
+        Node old = get(id);
+        if (old == null) {
+            return this;
+        }
+        Trie children = m_children;
+        for (long parent : old.m_parents) {
+            children = children.put(parent, remove(getChildIds(children, parent), id));
+        }
+        return new SubsystemTree(m_version + 1, m_size - 1, m_nodes.put(id, null), children);
+    }
+
+    /**
+     * Returns a snapshot in which the children of a subsystem are exactly the given ones.
+     * Known children gain the subsystem as a parent, former children lose it. Children that
+     * are not in the snapshot yet are linked when they are added.
+     */
+    public SubsystemTree withChildren(long id, long[] children) {
+        SubsystemTree tree = this;
+        for (long child : getChildIds(m_children, id)) {
+            Node node = get(child);
+            if (node != null && !contains(children, child)) {
+                tree = tree.with(node.withParents(remove(node.m_parents, id)));
+            }
+        }
+        for (long child : children) {
+            Node node = get(child);
+            if (node != null && !contains(node.m_parents, id)) {
+                tree = tree.with(node.withParents(insert(node.m_parents, id)));
+            }
+        }
+        return tree;
+    }
+
+    public long getVersion() {
+        return m_version;
+    }
+
+    public Node get(long id) {
+        return (Node) m_nodes.get(id);
+    }
+
+    public Node getRoot() {
+        return get(ROOT_ID);
+    }
+
+    public List<Node> getChildren(long id) {
+        long[] ids = getChildIds(m_children, id);
+        List<Node> children = new ArrayList<Node>(ids.length);
+        for (long child : ids) {
+            Node node = get(child);
+            if (node != null) {
+                children.add(node);
+            }
+        }
+        return Collections.unmodifiableList(children);
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    private static long[] getChildIds(Trie children, long id) {
+        long[] ids = (long[]) children.get(id);
+        return ids != null ? ids : NONE;
+    }
+
+    private static boolean contains(long[] sorted, long id) {
+        return Arrays.binarySearch(sorted, id) >= 0;
+    }
+
+    private static long[] insert(long[] sorted, long id) {
+        int index = Arrays.binarySearch(sorted, id);
+        if (index >= 0) {
+            return sorted;
+        }
+        index = -index - 1;
+        long[] result = new long[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, index);
+        result[index] = id;
+        System.arraycopy(sorted, index, result, index + 1, sorted.length - index);
+        return result;
+    }
+
+    private static long[] remove(long[] sorted, long id) {
+        int index = Arrays.binarySearch(sorted, id);
+        if (index < 0) {
+            return sorted;
+        }
+        long[] result = new long[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, index);
+        System.arraycopy(sorted, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    /**
+     * Persistent 32-way trie keyed by the bits of a non-negative ID. Subsystem IDs are
+     * assigned sequentially, so the trie stays dense and shallow.
+     */
+    private static final class Trie {
+        private static final int BITS = 5;
+        private static final int WIDTH = 1 << BITS;
+        private static final int MASK = WIDTH - 1;
+        private static final int MAX_SHIFT = 60;
+
+        static final Trie EMPTY = new Trie(0, new Object[WIDTH]);
+
+        private final int m_shift;
+        private final Object[] m_root;
+
+        private Trie(int shift, Object[] root) {
+            m_shift = shift;
+            m_root = root;
+        }
+
+        Object get(long key) {
+            if (m_shift < MAX_SHIFT && (key >>> (m_shift + BITS)) != 0) {
+                return null;
+            }
+            Object[] slots = m_root;
+            for (int shift = m_shift; shift > 0; shift -= BITS) {
+                slots = (Object[]) slots[index(key, shift)];
+                if (slots == null) {
+                    return null;
+                }
+            }
+            return slots[index(key, 0)];
+        }
+
+        Trie put(long key, Object value) {
+            int shift = m_shift;
+            Object[] root = m_root;
+            while (shift < MAX_SHIFT && (key >>> (shift + BITS)) != 0) {
+                if (value == null) {
+                    return this;
+                }
+                Object[] grown = new Object[WIDTH];
+                grown[0] = root;
+                root = grown;
+                shift += BITS;
+            }
+            return new Trie(shift, put(root, shift, key, value));
+        }
+
+        private static Object[] put(Object[] slots, int shift, long key, Object value) {
+            Object[] copy = slots != null ? slots.clone() : new Object[WIDTH];
+            int index = index(key, shift);
+            copy[index] = shift == 0 ? value : put((Object[]) copy[index], shift - BITS, key, value);
+            return copy;
+        }
+
+        private static int index(long key, int shift) {
+            return (int) ((key >>> shift) & MASK);
+        }
+    }
+
+    public static final class Node implements Comparable<Node> {
+        private final long m_id;
+        private final String m_symbolicName;
+        private final String m_version;
+        private final String m_type;
+        private final String m_state;
+        private final long[] m_parents;
+
+        public Node(long id, String symbolicName, String version, String type, String state, long[] parents) {
+            m_id = id;
+            m_symbolicName = symbolicName;
+            m_version = version;
+            m_type = type;
+            m_state = state;
+            m_parents = parents.clone();
+            Arrays.sort(m_parents);
+        }
+
+        /**
+         * Returns a copy of the node with other parents.
+         */
+        public Node withParents(long[] parents) {
+            return new Node(m_id, m_symbolicName, m_version, m_type, m_state, parents);
+        }
+
+        public long getId() {
+            return m_id;
+        }
+
+        public String getSymbolicName() {
+            return m_symbolicName;
+        }
+
+        public String getVersion() {
+            return m_version;
+        }
+
+        public String getType() {
+            return m_type;
+        }
+
+        public String getState() {
+            return m_state;
+        }
+
+        public long[] getParents() {
+            return m_parents.clone();
+        }
+
+        public int compareTo(Node other) {
+            return m_id < other.m_id ? -1 : (m_id == other.m_id ? 0 : 1);
+        }
+    }
+}
@@ -19,59 +19,139 @@
 package gogo.subsystem.command;
 
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.service.subsystem.Subsystem;
-import org.osgi.service.subsystem.SubsystemConstants;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 public class Util {
 
-    private final static StringBuffer m_sb = new StringBuffer();
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+    // Each thread formats into its own builder, so callers never contend.
+    private final static ThreadLocal<StringBuilder> m_sb = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private static StringBuilder getBuilder() {
+        StringBuilder sb = m_sb.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            // do not keep a huge buffer per thread after formatting a large value
+            sb = new StringBuilder(256);
+            m_sb.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
 
     public static String getUnderlineString(int len) {
-        synchronized (m_sb) {
-            m_sb.delete(0, m_sb.length());
-            for (int i = 0; i < len; i++) {
-                m_sb.append('-');
-            }
-            return m_sb.toString();
+        StringBuilder sb = getBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append('-');
         }
+        return sb.toString();
     }
 
     public static String getValueString(Object obj) {
-        synchronized (m_sb) {
-            if (obj instanceof String) {
-                return (String) obj;
-            } else if (obj instanceof String[]) {
-                String[] array = (String[]) obj;
-                m_sb.delete(0, m_sb.length());
-                for (int i = 0; i < array.length; i++) {
-                    if (i != 0) {
-                        m_sb.append(", ");
-                    }
-                    m_sb.append(array[i].toString());
-                }
-                return m_sb.toString();
-            } else if (obj instanceof Boolean) {
-                return ((Boolean) obj).toString();
-            } else if (obj instanceof Long) {
-                return ((Long) obj).toString();
-            } else if (obj instanceof Integer) {
-                return ((Integer) obj).toString();
-            } else if (obj instanceof Short) {
-                return ((Short) obj).toString();
-            } else if (obj instanceof Double) {
-                return ((Double) obj).toString();
-            } else if (obj instanceof Float) {
-                return ((Float) obj).toString();
-            } else if (obj == null) {
-                return "null";
-            } else {
-                return obj.toString();
+        if (obj instanceof String) {
+            return (String) obj;
+        } else if (obj == null) {
+            return "null";
+        } else if (obj.getClass().isArray()) {
+            StringBuilder sb = getBuilder();
+            appendArray(sb, obj);
+            return sb.toString();
+        } else {
+            return obj.toString();
+        }
+    }
+
+    /**
+     * Appends the elements of an array separated by ", ". Nested arrays are enclosed
+     * in brackets.
+     */
+    private static void appendArray(StringBuilder sb, Object array) {
+        if (array instanceof Object[]) {
+            Object[] objects = (Object[]) array;
+            for (int i = 0; i < objects.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                Object obj = objects[i];
+                if (obj != null && obj.getClass().isArray()) {
+                    sb.append('[');
+                    appendArray(sb, obj);
+                    sb.append(']');
+                } else {
+                    sb.append(obj);
+                }
+            }
+        } else if (array instanceof long[]) {
+            long[] values = (long[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof int[]) {
+            int[] values = (int[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof short[]) {
+            short[] values = (short[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof byte[]) {
+            byte[] values = (byte[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof char[]) {
+            char[] values = (char[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof double[]) {
+            double[] values = (double[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+        } else if (array instanceof float[]) {
+            float[] values = (float[]) array;
+            for (int i = 0; i < values.length; i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
             }
         }
     }
@@ -237,14 +317,4 @@ public class Util {
 
         return result;
     }
-
-    static ServiceReference<Subsystem> findSubsystem(long id, BundleContext bundleContext) throws InvalidSyntaxException {
-        Collection<ServiceReference<Subsystem>> serviceReferences =
-                bundleContext.getServiceReferences(Subsystem.class, String.format("(%s=%s)",
-                        SubsystemConstants.SUBSYSTEM_ID_PROPERTY, id));
-        if (serviceReferences != null && serviceReferences.size() == 1) {
-            return serviceReferences.iterator().next();
-        }
-        return null; // something wrong
-    }
-}
\ No newline at end of file
+}
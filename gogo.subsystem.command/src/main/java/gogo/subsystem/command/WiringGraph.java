@@ -0,0 +1,165 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import java.util.*;
+
+/**
+ * Snapshot of the wiring of the bundles of one subsystem region, indexed by bundle and
+ * namespace.
+ * <p/>
+ * Capabilities and requirements are aggregated with their wires once when the graph is
+ * built, queries for an exact namespace are answered by a map lookup.
+ */
+public final class WiringGraph {
+    private final Map<Long, Node> m_nodes;
+
+    private WiringGraph(Map<Long, Node> nodes) {
+        m_nodes = nodes;
+    }
+
+    public static WiringGraph build(Bundle[] bundles) {
+        Map<Long, Node> nodes = new HashMap<Long, Node>(bundles.length * 2);
+        for (Bundle bundle : bundles) {
+            nodes.put(bundle.getBundleId(), new Node(bundle, bundle.adapt(BundleWiring.class)));
+        }
+        return new WiringGraph(nodes);
+    }
+
+    /**
+     * Returns the node of a bundle, or <code>null</code> if the bundle was not part of the
+     * region when the graph was built.
+     */
+    public Node get(long bundleId) {
+        return m_nodes.get(bundleId);
+    }
+
+    public int size() {
+        return m_nodes.size();
+    }
+
+    public static final class Node {
+        private final Bundle m_bundle;
+        private final boolean m_resolved;
+        private final List<Entry<BundleCapability>> m_capabilities;
+        private final List<Entry<BundleRequirement>> m_requirements;
+        private final Map<String, List<Entry<BundleCapability>>> m_capabilitiesByNamespace;
+        private final Map<String, List<Entry<BundleRequirement>>> m_requirementsByNamespace;
+
+        Node(Bundle bundle, BundleWiring wiring) {
+            m_bundle = bundle;
+            m_resolved = wiring != null;
+            if (wiring == null) {
+                m_capabilities = Collections.emptyList();
+                m_requirements = Collections.emptyList();
+                m_capabilitiesByNamespace = Collections.emptyMap();
+                m_requirementsByNamespace = Collections.emptyMap();
+                return;
+            }
+
+            Map<BundleCapability, List<BundleWire>> dependents = new HashMap<BundleCapability, List<BundleWire>>();
+            for (BundleWire wire : wiring.getProvidedWires(null)) {
+                add(dependents, wire.getCapability(), wire);
+            }
+            m_capabilities = new ArrayList<Entry<BundleCapability>>();
+            m_capabilitiesByNamespace = new HashMap<String, List<Entry<BundleCapability>>>();
+            for (BundleCapability cap : wiring.getCapabilities(null)) {
+                Entry<BundleCapability> entry = new Entry<BundleCapability>(cap, dependents.get(cap));
+                m_capabilities.add(entry);
+                add(m_capabilitiesByNamespace, cap.getNamespace(), entry);
+            }
+
+            Map<BundleRequirement, List<BundleWire>> providers = new HashMap<BundleRequirement, List<BundleWire>>();
+            for (BundleWire wire : wiring.getRequiredWires(null)) {
+                add(providers, wire.getRequirement(), wire);
+            }
+            m_requirements = new ArrayList<Entry<BundleRequirement>>();
+            m_requirementsByNamespace = new HashMap<String, List<Entry<BundleRequirement>>>();
+            for (BundleRequirement req : wiring.getRequirements(null)) {
+                Entry<BundleRequirement> entry = new Entry<BundleRequirement>(req, providers.get(req));
+                m_requirements.add(entry);
+                add(m_requirementsByNamespace, req.getNamespace(), entry);
+            }
+        }
+
+        public Bundle getBundle() {
+            return m_bundle;
+        }
+
+        public boolean isResolved() {
+            return m_resolved;
+        }
+
+        /**
+         * Returns the capabilities in matching namespaces with the wires of their requirers,
+         * in declaration order.
+         */
+        public List<Entry<BundleCapability>> getCapabilities(NamespacePattern namespace) {
+            return select(m_capabilities, m_capabilitiesByNamespace, namespace);
+        }
+
+        /**
+         * Returns the requirements in matching namespaces with the wires of their providers,
+         * in declaration order.
+         */
+        public List<Entry<BundleRequirement>> getRequirements(NamespacePattern namespace) {
+            return select(m_requirements, m_requirementsByNamespace, namespace);
+        }
+
+        private static <T> List<Entry<T>> select(
+                List<Entry<T>> all, Map<String, List<Entry<T>>> byNamespace, NamespacePattern namespace) {
+            String exact = namespace.getExactValue();
+            if (exact != null) {
+                List<Entry<T>> entries = byNamespace.get(exact);
+                return entries != null ? entries : Collections.<Entry<T>>emptyList();
+            }
+            List<Entry<T>> entries = new ArrayList<Entry<T>>();
+            for (Entry<T> entry : all) {
+                if (namespace.matches(entry.m_namespace)) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        private static <K, V> void add(Map<K, List<V>> map, K key, V value) {
+            List<V> values = map.get(key);
+            if (values == null) {
+                values = new ArrayList<V>(2);
+                map.put(key, values);
+            }
+            values.add(value);
+        }
+    }
+
+    /**
+     * A capability or requirement with its wires.
+     */
+    public static final class Entry<T> {
+        private final T m_value;
+        private final String m_namespace;
+        private final List<BundleWire> m_wires;
+
+        Entry(T value, List<BundleWire> wires) {
+            m_value = value;
+            m_namespace = value instanceof BundleCapability
+                    ? ((BundleCapability) value).getNamespace() : ((BundleRequirement) value).getNamespace();
+            m_wires = wires;
+        }
+
+        public T get() {
+            return m_value;
+        }
+
+        /**
+         * Returns the wires of the entry, or <code>null</code> if it is unused or unresolved.
+         */
+        public List<BundleWire> getWires() {
+            return m_wires;
+        }
+    }
+}
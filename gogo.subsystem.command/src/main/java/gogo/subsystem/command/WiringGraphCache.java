@@ -0,0 +1,128 @@
+package gogo.subsystem.command;
+
+import org.osgi.framework.*;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps one {@link WiringGraph} per subsystem region and drops it when the wiring of the
+ * region may have changed.
+ * <p/>
+ * The cache listens on the system bundle context, which sees the bundles of every region:
+ * bundles of other regions, child composites included, may wire to the exports of a
+ * region, so every bundle event except the activation events, and refreshed packages,
+ * invalidate the graphs of all regions. Wires created by dynamic imports do not cause an
+ * event and show up with the next invalidation.
+ */
+public class WiringGraphCache implements SynchronousBundleListener, FrameworkListener {
+    private final ConcurrentMap<Long, Region> m_regions = new ConcurrentHashMap<Long, Region>();
+    private BundleContext m_context;
+
+    public void open(BundleContext bc) {
+        m_context = bc.getBundle(0).getBundleContext();
+        m_context.addBundleListener(this);
+        m_context.addFrameworkListener(this);
+    }
+
+    public void close() {
+        try {
+            m_context.removeBundleListener(this);
+            m_context.removeFrameworkListener(this);
+        } catch (IllegalStateException e) {
+            // the framework is stopping
+        }
+        m_regions.clear();
+    }
+
+    /**
+     * Returns the wiring graph of the bundles in the region of a subsystem, building it if
+     * the wiring changed since the last call.
+     */
+    public WiringGraph get(Subsystem subsystem) {
+        long id = subsystem.getSubsystemId();
+        Region region = m_regions.get(id);
+        if (region == null) {
+            BundleContext context = subsystem.getBundleContext();
+            if (context == null) {
+                return WiringGraph.build(new Bundle[0]);
+            }
+            Region created = new Region(context);
+            region = m_regions.putIfAbsent(id, created);
+            if (region == null) {
+                region = created;
+            }
+        }
+        return region.get();
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.STARTING:
+            case BundleEvent.STARTED:
+            case BundleEvent.STOPPING:
+            case BundleEvent.STOPPED:
+            case BundleEvent.LAZY_ACTIVATION:
+                return;
+            case BundleEvent.UNINSTALLED:
+                long bundleId = event.getBundle().getBundleId();
+                for (Region region : m_regions.values()) {
+                    if (region.m_contextBundleId == bundleId) {
+                        // the subsystem is gone together with its region
+                        m_regions.values().remove(region);
+                    }
+                }
+                // fall through
+            default:
+                invalidate();
+        }
+    }
+
+    public void frameworkEvent(FrameworkEvent event) {
+        if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        for (Region region : m_regions.values()) {
+            region.invalidate();
+        }
+    }
+
+    private static class Region {
+        private final BundleContext m_context;
+        private final long m_contextBundleId;
+        // incremented on every invalidation so that a graph built concurrently is not kept
+        private long m_generation;
+        private WiringGraph m_graph;
+
+        Region(BundleContext context) {
+            m_context = context;
+            m_contextBundleId = context.getBundle().getBundleId();
+        }
+
+        WiringGraph get() {
+            long generation;
+            synchronized (this) {
+                if (m_graph != null) {
+                    return m_graph;
+                }
+                generation = m_generation;
+            }
+            WiringGraph graph = WiringGraph.build(m_context.getBundles());
+            synchronized (this) {
+                if (generation == m_generation) {
+                    m_graph = graph;
+                }
+            }
+            return graph;
+        }
+
+        synchronized void invalidate() {
+            m_generation++;
+            m_graph = null;
+        }
+    }
+}